@@ -9,6 +9,7 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.WalletTransaction;
 import org.smartcolors.core.ColorDefinition;
+import org.smartcolors.core.ColorKernel;
 import org.smartcolors.core.SmartColors;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -24,6 +25,11 @@ import static com.google.common.base.Preconditions.checkState;
 public abstract class AbstractColorScanner<TRACK extends ColorTrack> implements ColorScanner {
     protected final NetworkParameters params;
     protected Set<TRACK> tracks = Sets.newHashSet();
+    @GuardedBy("lock")
+    protected final Map<HashCode, TRACK> tracksByHash = Maps.newHashMap();
+    // Colored outputs of all tracks
+    @GuardedBy("lock")
+    protected final OutputIndex outputIndex = new OutputIndex();
     protected final ColorDefinition unknownDefinition;
     protected final ColorDefinition bitcoinDefinition;
     // General lock.  Wallet lock is internally obtained first for any wallet related work.
@@ -58,19 +64,22 @@ public abstract class AbstractColorScanner<TRACK extends ColorTrack> implements
     /** Add a color to the set of tracked colors */
     @Override
     public void addDefinition(ColorDefinition definition) throws ColorDefinitionExists, ColorDefinitionOutdated {
-        boolean exists = false;
-        if (exists) {
-            throw new ColorDefinitionExists();
-        }
-
-        boolean outdated = false;
-        if (outdated) {
-            throw new ColorDefinitionOutdated();
-        }
-
         lock.lock();
         try {
-            tracks.add(makeTrack(definition));
+            boolean exists = tracksByHash.containsKey(definition.getHash());
+            if (exists) {
+                throw new ColorDefinitionExists();
+            }
+
+            boolean outdated = false;
+            if (outdated) {
+                throw new ColorDefinitionOutdated();
+            }
+
+            TRACK track = makeTrack(definition);
+            tracks.add(track);
+            tracksByHash.put(definition.getHash(), track);
+            outputIndex.addTrack(track);
         } finally {
             lock.unlock();
         }
@@ -96,36 +105,41 @@ public abstract class AbstractColorScanner<TRACK extends ColorTrack> implements
 
     @Override
     public ColorDefinition getColorDefinitionByHash(HashCode hash) {
-        for (ColorDefinition def : getDefinitions()) {
-            if (def.getHash().equals(hash))
-                return def;
-        }
-        return null;
+        if (bitcoinDefinition.getHash().equals(hash))
+            return bitcoinDefinition;
+        if (unknownDefinition.getHash().equals(hash))
+            return unknownDefinition;
+        ColorTrack track = getColorTrackByHash(hash);
+        return track == null ? null : track.getDefinition();
     }
 
     @Override
     public boolean removeDefinition(ColorDefinition def) {
-        HashCode hash = def.getHash();
-        ColorTrack track = getColorTrackByHash(hash);
-        return tracks.remove(track);
+        lock.lock();
+        try {
+            TRACK track = tracksByHash.remove(def.getHash());
+            if (track == null)
+                return false;
+            outputIndex.removeTrack(track);
+            return tracks.remove(track);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public ColorTrack getColorTrackByHash(HashCode hash) {
-        for (ColorTrack track : tracks) {
-            if (track.getDefinition().getHash().equals(hash))
-                return track;
+        lock.lock();
+        try {
+            return tracksByHash.get(hash);
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     @Override
     public ColorTrack getColorTrackByDefinition(ColorDefinition def) {
-        for (ColorTrack track : tracks) {
-            if (track.getDefinition().equals(def))
-                return track;
-        }
-        return null;
+        return getColorTrackByHash(def.getHash());
     }
 
     /**
@@ -154,18 +168,16 @@ public abstract class AbstractColorScanner<TRACK extends ColorTrack> implements
                     applyOutputValue(out, res);
                 }
             }
-            inps:
             for (TransactionInput inp : tx.getInputs()) {
                 if (SmartColors.isInputMine(inp, wallet)) {
-                    for (ColorTrack track : tracks) {
-                        Long value = track.getOutputs().get(inp.getOutpoint());
-                        if (value != null) {
-                            Long existing = res.get(track.getDefinition());
-                            if (existing == null)
-                                existing = 0L;
-                            res.put(track.getDefinition(), existing - value);
-                            continue inps;
-                        }
+                    TransactionOutPoint point = inp.getOutpoint();
+                    List<ColorTrack> found = outputIndex.get(point);
+                    if (!found.isEmpty()) {
+                        ColorTrack track = found.get(0);
+                        Long existing = res.get(track.getDefinition());
+                        if (existing == null)
+                            existing = 0L;
+                        res.put(track.getDefinition(), existing - track.getColor(point));
                     }
                 }
             }
@@ -213,12 +225,9 @@ public abstract class AbstractColorScanner<TRACK extends ColorTrack> implements
         lock.lock();
         try {
             Map<ColorDefinition, Long> res = Maps.newHashMap();
-            for (ColorTrack track : tracks) {
-                TransactionOutPoint point = input.getOutpoint();
-                Long value = track.getOutputs().get(point);
-                if (value != null) {
-                    res.put(track.getDefinition(), value);
-                }
+            TransactionOutPoint point = input.getOutpoint();
+            for (ColorTrack track : outputIndex.get(point)) {
+                res.put(track.getDefinition(), track.getColor(point));
             }
             return res;
         } finally {
@@ -231,12 +240,7 @@ public abstract class AbstractColorScanner<TRACK extends ColorTrack> implements
     public boolean contains(TransactionOutPoint point) {
         lock.lock();
         try {
-            for (ColorTrack track : tracks) {
-                Long value = track.getOutputs().get(point);
-                if (value != null)
-                    return true;
-            }
-            return false;
+            return outputIndex.contains(point);
         } finally {
             lock.unlock();
         }
@@ -248,30 +252,44 @@ public abstract class AbstractColorScanner<TRACK extends ColorTrack> implements
 
     protected boolean applyOutputValue(TransactionOutput out, Map<ColorDefinition, Long> res, boolean useUnknown) {
         TransactionOutPoint point = out.getOutPointFor();
-        for (ColorTrack track : tracks) {
-            Long value = track.getOutputs().get(point);
-            if (value == null) {
-                // We don't know about this output yet, try applying the color kernel to figure
-                // it out from the inputs.  This is likely an unconfirmed transaction.
-                Long[] colorOuts = track.applyKernel(out.getParentTransaction());
-                value = colorOuts[out.getIndex()];
-            }
-            if (value != null) {
-                Long existing = res.get(track.getDefinition());
-                if (existing != null)
-                    value = existing + value;
-                res.put(track.getDefinition(), value);
-                return true;
+        ColorTrack track = null;
+        Long value = null;
+        List<ColorTrack> found = outputIndex.get(point);
+        if (!found.isEmpty()) {
+            track = found.get(0);
+            value = track.getColor(point);
+        } else {
+            // We don't know about this output yet, try applying the color kernel to figure
+            // it out from the inputs.  This is likely an unconfirmed transaction.
+            Transaction tx = out.getParentTransaction();
+            ColorKernel kernel = null;
+            for (ColorTrack candidate : outputIndex.getSpentTracks(tx)) {
+                // Decode the transaction once for all candidates
+                if (kernel == null)
+                    kernel = ColorKernel.compile(tx);
+                long[] colorOuts = candidate.applyKernelUnboxed(kernel);
+                if (colorOuts != null && colorOuts[out.getIndex()] != ColorDefinition.UNCOLORED) {
+                    value = colorOuts[out.getIndex()];
+                    track = candidate;
+                    break;
+                }
             }
         }
+        if (value != null) {
+            Long existing = res.get(track.getDefinition());
+            if (existing != null)
+                value = existing + value;
+            res.put(track.getDefinition(), value);
+            return true;
+        }
 
         if (useUnknown) {
             // Unknown asset on this output
-            Long value = SmartColors.removeMsbdropValuePadding(out.getValue().getValue());
+            long unknown = SmartColors.removeMsbdropValuePadding(out.getValue().getValue());
             Long existing = res.get(unknownDefinition);
             if (existing != null)
-                value = value + existing;
-            res.put(unknownDefinition, value);
+                unknown = unknown + existing;
+            res.put(unknownDefinition, unknown);
         }
         return false;
     }
@@ -0,0 +1,442 @@
+package org.smartcolors;
+
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartcolors.core.ColorProof;
+import org.smartcolors.core.ProofBundle;
+import org.smartcolors.core.SmartColors;
+import org.smartcolors.marshal.SerializationException;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fetches proofs from the server with non-blocking I/O.
+ * <p/>
+ * <p>Requests are multiplexed by a single I/O thread over a fixed pool of keep-alive connections,
+ * so the number of outstanding requests is not bounded by the threads of the caller - requests
+ * beyond the pool size wait for a connection.  Responses are decoded on a pool of threads with
+ * room for deep proofs, one per connection, streaming from the connection as the body arrives,
+ * so a slow response does not hold up the others.  Reading from a connection is suspended while
+ * its decoder is behind by more than the buffer size.  The client is started on first use and
+ * closed by {@link #stop()}.</p>
+ */
+public class AsyncFetcher extends ClientColorScanner.Fetcher {
+    private static final Logger log = LoggerFactory.getLogger(AsyncFetcher.class);
+
+    /** The size of the chunks read from a connection */
+    static final int CHUNK_SIZE = 8192;
+    /** The bytes of a response buffered ahead of the decoder, by default */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final int maxConnections;
+    private final boolean gzip;
+    private CloseableHttpAsyncClient client;
+    private ExecutorService decoder;
+    private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    public AsyncFetcher(URI base, NetworkParameters params) {
+        this(base, params, DEFAULT_MAX_CONNECTIONS, true);
+    }
+
+    /**
+     * @param maxConnections the size of the connection pool
+     * @param gzip           whether to ask for compressed responses
+     */
+    public AsyncFetcher(URI base, NetworkParameters params, int maxConnections, boolean gzip) {
+        super(base, params);
+        checkArgument(maxConnections > 0);
+        this.maxConnections = maxConnections;
+        this.gzip = gzip;
+    }
+
+    private synchronized CloseableHttpAsyncClient getClient() {
+        if (client == null) {
+            IOReactorConfig ioConfig = IOReactorConfig.custom()
+                    .setIoThreadCount(1)
+                    .setConnectTimeout(ClientColorScanner.NETWORK_TIMEOUT)
+                    .setSoTimeout(ClientColorScanner.NETWORK_TIMEOUT)
+                    .setSoKeepAlive(true)
+                    .build();
+            client = HttpAsyncClients.custom()
+                    .setUserAgent(getUserAgent())
+                    .setDefaultRequestConfig(makeRequestConfig())
+                    .setDefaultIOReactorConfig(ioConfig)
+                    .setSSLContext(getSslContext())
+                    .setMaxConnTotal(maxConnections)
+                    .setMaxConnPerRoute(maxConnections)
+                    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                    .build();
+            client.start();
+            // A decoder blocks on its response until the body is read, so there is one for each
+            // connection that can be receiving a response
+            decoder = SmartColors.makeSerializationExecutor("Decoder thread", maxConnections);
+        }
+        return client;
+    }
+
+    private synchronized ExecutorService getDecoder() {
+        getClient();
+        return decoder;
+    }
+
+    /** Limit the bytes of a response that are buffered ahead of the decoder */
+    void setBufferSize(int bufferSize) {
+        checkArgument(bufferSize > 0);
+        this.bufferSize = bufferSize;
+    }
+
+    private interface BodyReader<T> {
+        T read(InputStream is, boolean binary) throws IOException, SerializationException, ClientColorScanner.TemporaryFailureException;
+    }
+
+    private <T> ListenableFuture<T> execute(HttpUriRequest request, BodyReader<T> reader) {
+        final SettableFuture<T> future = SettableFuture.create();
+        if (gzip)
+            request.addHeader("Accept-Encoding", "gzip");
+        FutureCallback<Void> callback = new FutureCallback<Void>() {
+            @Override
+            public void completed(Void result) {
+            }
+
+            @Override
+            public void failed(Exception e) {
+                log.warn("got " + e);
+                future.setException(new ClientColorScanner.TemporaryFailureException());
+            }
+
+            @Override
+            public void cancelled() {
+                future.setException(new ClientColorScanner.TemporaryFailureException());
+            }
+        };
+        try {
+            // The decoder is looked up here, as the I/O thread must not wait for stop()
+            ResponseConsumer<T> consumer = new ResponseConsumer<T>(reader, future, getDecoder());
+            getClient().execute(HttpAsyncMethods.create(request), consumer, callback);
+        } catch (IllegalStateException e) {
+            // Closed by stop()
+            future.setException(new ClientColorScanner.TemporaryFailureException());
+        }
+        return future;
+    }
+
+    /**
+     * Hands the body of a response to a decoder thread as soon as its headers arrive.  The body
+     * is read into a {@link ResponseStream} by the I/O thread while the decoder deserializes it.
+     */
+    private class ResponseConsumer<T> extends AbstractAsyncResponseConsumer<Void> {
+        private final BodyReader<T> reader;
+        private final SettableFuture<T> future;
+        private final ExecutorService decoder;
+        private final ResponseStream stream = new ResponseStream(bufferSize);
+        private boolean ok;
+        private boolean enclosed;
+
+        ResponseConsumer(BodyReader<T> reader, SettableFuture<T> future, ExecutorService decoder) {
+            this.reader = reader;
+            this.future = future;
+            this.decoder = decoder;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            StatusLine statusLine = response.getStatusLine();
+            ok = statusLine.getStatusCode() < 300;
+            if (!ok) {
+                log.warn("got status " + statusLine);
+                future.setException(new ClientColorScanner.TemporaryFailureException());
+            }
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+            enclosed = true;
+            if (!ok) {
+                stream.close();
+                return;
+            }
+            Header encoding = entity.getContentEncoding();
+            final boolean gzipped = encoding != null && "gzip".equalsIgnoreCase(encoding.getValue());
+            final boolean binary = isBinary(entity);
+            try {
+                decoder.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        decode(gzipped, binary);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Stopped
+                stream.close();
+                future.setException(new ClientColorScanner.TemporaryFailureException());
+            }
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            if (decoder.read(chunk) > 0) {
+                chunk.flip();
+                stream.offer(chunk, ioctrl);
+            }
+        }
+
+        @Override
+        protected Void buildResult(HttpContext context) {
+            stream.complete();
+            if (!enclosed) {
+                log.warn("got no content");
+                future.setException(new ClientColorScanner.TemporaryFailureException());
+            }
+            return null;
+        }
+
+        @Override
+        protected void releaseResources() {
+            // Failed or cancelled before the end of the body, unless completed
+            stream.fail(new IOException("response ended early"));
+        }
+
+        private void decode(boolean gzipped, boolean binary) {
+            try {
+                InputStream is = gzipped ? new GZIPInputStream(stream) : stream;
+                future.set(reader.read(new BufferedInputStream(is), binary));
+            } catch (IOException e) {
+                log.warn("got IOException " + e.getMessage());
+                future.setException(new ClientColorScanner.TemporaryFailureException());
+            } catch (Exception e) {
+                future.setException(e);
+            } finally {
+                // Discard the rest of the body, if any
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * The body of a response, filled by the I/O thread and read by the decoder.  Input from the
+     * connection is suspended while more than the buffer size is waiting to be read.
+     */
+    static class ResponseStream extends InputStream {
+        private final int bufferSize;
+        private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+        private int buffered;
+        private boolean complete;
+        private boolean closed;
+        private IOException failure;
+        private IOControl suspended;
+
+        ResponseStream(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        synchronized void offer(ByteBuffer chunk, IOControl ioctrl) {
+            if (closed)
+                return;
+            chunks.add(chunk);
+            buffered += chunk.remaining();
+            if (buffered >= bufferSize) {
+                ioctrl.suspendInput();
+                suspended = ioctrl;
+            }
+            notifyAll();
+        }
+
+        synchronized void complete() {
+            complete = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            if (complete || failure != null)
+                return;
+            failure = e;
+            notifyAll();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            IOControl resume = null;
+            int n;
+            synchronized (this) {
+                while (chunks.isEmpty()) {
+                    if (failure != null)
+                        throw failure;
+                    if (complete || closed)
+                        return -1;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                ByteBuffer chunk = chunks.peek();
+                n = Math.min(len, chunk.remaining());
+                chunk.get(b, off, n);
+                if (!chunk.hasRemaining())
+                    chunks.poll();
+                buffered -= n;
+                if (buffered < bufferSize / 2)
+                    resume = takeSuspended();
+            }
+            // Outside the lock, which the I/O thread takes
+            if (resume != null)
+                resume.requestInput();
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffered;
+        }
+
+        @Override
+        public void close() {
+            IOControl resume;
+            synchronized (this) {
+                closed = true;
+                chunks.clear();
+                buffered = 0;
+                resume = takeSuspended();
+                notifyAll();
+            }
+            if (resume != null)
+                resume.requestInput();
+        }
+
+        @Nullable
+        private IOControl takeSuspended() {
+            IOControl result = suspended;
+            suspended = null;
+            return result;
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<ColorProof>> fetchAsync(final TransactionOutPoint point) {
+        if (isFetchDisabled())
+            return Futures.<List<ColorProof>>immediateFuture(ImmutableList.<ColorProof>of());
+        return execute(makeGet(point), new BodyReader<List<ColorProof>>() {
+            @Override
+            public List<ColorProof> read(InputStream is, boolean binary) throws IOException, SerializationException, ClientColorScanner.TemporaryFailureException {
+                return readProofs(point, is, binary);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<ProofBundle> fetchAllAsync(Collection<TransactionOutPoint> points) {
+        if (isFetchDisabled())
+            return Futures.immediateFuture(new ProofBundle());
+        List<ListenableFuture<ProofBundle>> batches = Lists.newArrayList();
+        for (List<TransactionOutPoint> batch : partition(points)) {
+            batches.add(execute(makeBatchPost(batch), new BodyReader<ProofBundle>() {
+                @Override
+                public ProofBundle read(InputStream is, boolean binary) throws IOException, SerializationException, ClientColorScanner.TemporaryFailureException {
+                    return readBundle(is, binary);
+                }
+            }));
+        }
+        return Futures.transform(Futures.allAsList(batches), new Function<List<ProofBundle>, ProofBundle>() {
+            @Override
+            public ProofBundle apply(List<ProofBundle> bundles) {
+                ProofBundle result = new ProofBundle();
+                for (ProofBundle bundle : bundles)
+                    result.addAll(bundle);
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public List<ColorProof> fetch(TransactionOutPoint point) throws SerializationException, ClientColorScanner.TemporaryFailureException {
+        return get(fetchAsync(point));
+    }
+
+    @Override
+    public ProofBundle fetchAll(Collection<TransactionOutPoint> points) throws SerializationException, ClientColorScanner.TemporaryFailureException {
+        return get(fetchAllAsync(points));
+    }
+
+    private static <T> T get(Future<T> future) throws SerializationException, ClientColorScanner.TemporaryFailureException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientColorScanner.TemporaryFailureException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SerializationException)
+                throw (SerializationException) cause;
+            if (cause instanceof ClientColorScanner.TemporaryFailureException)
+                throw (ClientColorScanner.TemporaryFailureException) cause;
+            throw Throwables.propagate(cause);
+        }
+    }
+
+    /** Close the connections and the decoder.  A new client is started on the next fetch. */
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        if (client == null)
+            return;
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.error("while stopping fetcher", e);
+        }
+        decoder.shutdownNow();
+        client = null;
+        decoder = null;
+    }
+}
@@ -5,15 +5,28 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
 import org.bitcoinj.core.*;
 import org.bitcoinj.utils.Threading;
@@ -21,19 +34,31 @@ import org.bitcoinj.wallet.WalletTransaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartcolors.core.ColorDefinition;
+import org.smartcolors.core.ColorKernel;
 import org.smartcolors.core.ColorProof;
+import org.smartcolors.core.ProofBundle;
+import org.smartcolors.core.ProofStore;
+import org.smartcolors.core.ProofValidator;
 import org.smartcolors.core.SmartColors;
+import org.smartcolors.core.ValidatedProofCache;
 import org.smartcolors.marshal.BytesDeserializer;
 import org.smartcolors.marshal.SerializationException;
 
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -45,8 +70,33 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
     public static final int NETWORK_TIMEOUT = 10000;
     private static boolean disableFetch = false;
 
+    public static final int DEFAULT_FETCH_CONCURRENCY = 4;
+    public static final int DEFAULT_VALIDATION_CONCURRENCY = 2;
+    public static final int DEFAULT_MAX_ACTIVE_LOOKUPS = 32;
+    public static final int DEFAULT_MAX_WAITING_LOOKUPS = 10000;
+    /** How long claimed outpoints wait for other lookups to join their batch, in milliseconds */
+    public static final int FETCH_BATCH_DELAY = 50;
+
     Fetcher fetcher;
-    ScheduledExecutorService fetchService;
+    volatile ScheduledExecutorService fetchService;
+    private volatile ExecutorService validationService;
+    private ProofValidator validator = new ProofValidator(null, new ValidatedProofCache());
+    private volatile ProofStore proofStore;
+    private int fetchConcurrency = DEFAULT_FETCH_CONCURRENCY;
+    private int validationConcurrency = DEFAULT_VALIDATION_CONCURRENCY;
+    private int maxActiveLookups = DEFAULT_MAX_ACTIVE_LOOKUPS;
+    private int maxWaitingLookups = DEFAULT_MAX_WAITING_LOOKUPS;
+    // Outpoints being fetched, validated or applied, shared by all lookups that need them
+    private final ConcurrentMap<TransactionOutPoint, SettableFuture<Void>> inFlight = Maps.newConcurrentMap();
+    // Admission control, so that a rescan does not flood the pipeline
+    private final ArrayDeque<Lookup> waitingLookups = Queues.newArrayDeque();
+    private int activeLookups;
+    // Whether lookups were dropped because too many were waiting
+    private boolean droppedLookups;
+    // Claimed outpoints waiting to be fetched in a shared batch
+    private final Set<TransactionOutPoint> fetchQueue = Sets.newLinkedHashSet();
+    // Guarded by fetchQueue
+    private boolean fetchScheduled;
     private MultiWallet wallet;
 
 
@@ -75,7 +125,86 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
         this.fetchService = fetchService;
     }
 
-    void setFetcher(Fetcher fetcher) {
+    /** Set the validator for fetched proofs, e.g. one backed by a thread pool */
+    public void setProofValidator(ProofValidator validator) {
+        this.validator = checkNotNull(validator);
+    }
+
+    /**
+     * Keep fetched proofs in a store on disk, and look outpoints up there before asking the
+     * server, e.g. after a reset or a rescan.  The caller owns the store and closes it.
+     */
+    public void setProofStore(@Nullable ProofStore proofStore) {
+        this.proofStore = proofStore;
+    }
+
+    @Nullable
+    public ProofStore getProofStore() {
+        return proofStore;
+    }
+
+    /**
+     * Drop the stored proofs that are not needed for the outputs in our tracks.
+     *
+     * @return the number of records dropped
+     */
+    public int compactProofStore() throws SerializationException {
+        ProofStore store = checkNotNull(proofStore);
+        Set<TransactionOutPoint> live = Sets.newHashSet();
+        lock.lock();
+        try {
+            for (ClientColorTrack track : tracks)
+                live.addAll(track.outputs.keySet());
+        } finally {
+            lock.unlock();
+        }
+        return store.compact(live);
+    }
+
+    /** The cache of validated proof hashes, persisted with the wallet, or null if there is none */
+    public ValidatedProofCache getValidatedProofCache() {
+        return validator.getCache();
+    }
+
+    /**
+     * Configure the lookup pipeline.  Must be called before {@link #start}.
+     *
+     * @param fetchThreads      the number of lookups fetching from the server at the same time
+     * @param validationThreads the number of proofs being validated at the same time
+     * @param maxActiveLookups  the number of pending transactions being looked up at the same time,
+     *                          the rest wait their turn
+     */
+    public void setConcurrency(int fetchThreads, int validationThreads, int maxActiveLookups) {
+        checkState(!isStarted());
+        checkArgument(fetchThreads > 0 && validationThreads > 0 && maxActiveLookups > 0);
+        this.fetchConcurrency = fetchThreads;
+        this.validationConcurrency = validationThreads;
+        this.maxActiveLookups = maxActiveLookups;
+    }
+
+    /**
+     * Bound the number of transactions waiting for their turn to be looked up.  Lookups beyond
+     * this are dropped, and their transactions stay pending until the waiting ones are done.
+     */
+    public void setMaxWaitingLookups(int maxWaitingLookups) {
+        checkArgument(maxWaitingLookups > 0);
+        synchronized (waitingLookups) {
+            this.maxWaitingLookups = maxWaitingLookups;
+        }
+    }
+
+    /** The number of transactions waiting for their turn to be looked up */
+    public int getWaitingLookupCount() {
+        synchronized (waitingLookups) {
+            return waitingLookups.size();
+        }
+    }
+
+    /**
+     * Replace the fetcher, e.g. with an {@link AsyncFetcher} to multiplex lookups over a few
+     * connections.  That needs the optional httpasyncclient dependency on the class path.
+     */
+    public void setFetcher(Fetcher fetcher) {
         this.fetcher = fetcher;
     }
 
@@ -87,12 +216,26 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
         }
         fetcher.stop();
         fetchService.shutdownNow();
+        if (validationService != null)
+            validationService.shutdownNow();
         try {
             fetchService.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             Throwables.propagate(e);
         }
         fetchService = null;
+        validationService = null;
+        // Abandon lookups in progress, pending transactions are looked up again on start
+        synchronized (waitingLookups) {
+            waitingLookups.clear();
+            activeLookups = 0;
+            droppedLookups = false;
+        }
+        synchronized (fetchQueue) {
+            fetchQueue.clear();
+            fetchScheduled = false;
+        }
+        inFlight.clear();
     }
 
     @Override
@@ -105,7 +248,8 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
         for (Map.Entry<Sha256Hash, Transaction> entry : pending.entrySet()) {
             pending.put(entry.getKey(), wallet.getTransaction(entry.getValue().getHash()));
         }
-        fetchService = SmartColors.makeSerializationService("Fetcher thread");
+        fetchService = SmartColors.makeSerializationService("Fetcher thread", fetchConcurrency);
+        validationService = SmartColors.makeSerializationExecutor("Validation thread", validationConcurrency);
         for (Transaction tx : pending.values()) {
             // Average 1 per second
             long millis = (long) (1000 * pending.size() * Math.random());
@@ -173,29 +317,112 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
 
     // True iff we can derive the color output information from the inputs
     private boolean tryLocalLookup(Transaction tx, boolean overrideFound) {
-        List<ClientColorTrack> found = Lists.newArrayList();
+        Set<ColorTrack> found = Sets.newLinkedHashSet();
         // Find all colors that know about inputs
         for (TransactionInput input : tx.getInputs()) {
-            boolean isFound = false;
-            for (ClientColorTrack track : tracks) {
-                if (track.isColored(input.getOutpoint())) {
-                    found.add(track);
-                    isFound = true;
-                }
-            }
+            List<ColorTrack> inputTracks = outputIndex.get(input.getOutpoint());
             // FIXME uncolored bitcoin inputs will always result in !isFound
-            if (!overrideFound && !isFound)
+            if (!overrideFound && inputTracks.isEmpty())
                 return false;
+            found.addAll(inputTracks);
         }
-        for (ClientColorTrack track : found) {
-            track.add(tx);
+        ColorKernel kernel = found.isEmpty() ? null : ColorKernel.compile(tx);
+        for (ColorTrack track : found) {
+            track.add(tx, kernel);
         }
         return true;
     }
 
+    // True if the lookup may run now, otherwise it waits for a running one to finish
+    private boolean admit(Lookup lookup) {
+        synchronized (waitingLookups) {
+            if (lookup.admitted)
+                return true;
+            if (activeLookups < maxActiveLookups) {
+                activeLookups++;
+                lookup.admitted = true;
+                return true;
+            }
+            if (waitingLookups.size() < maxWaitingLookups)
+                waitingLookups.add(lookup);
+            else
+                droppedLookups = true;
+            return false;
+        }
+    }
+
+    // Hand the slot of a finished lookup to the next waiting one
+    private void release(Lookup lookup) {
+        Lookup next;
+        synchronized (waitingLookups) {
+            if (!lookup.admitted)
+                return;
+            lookup.admitted = false;
+            next = waitingLookups.poll();
+            if (next == null) {
+                // Lookups that were running when we stopped no longer hold a slot
+                if (activeLookups > 0)
+                    activeLookups--;
+                if (!droppedLookups)
+                    return;
+                droppedLookups = false;
+            } else {
+                next.admitted = true;
+            }
+        }
+        if (next != null)
+            schedule(next, 0);
+        else
+            lookupPending();
+    }
+
+    // Look up the pending transactions again, once the lookups that were dropped have room to wait
+    private void lookupPending() {
+        List<Transaction> txs;
+        lock.lock();
+        try {
+            txs = Lists.newArrayList(pending.values());
+        } finally {
+            lock.unlock();
+        }
+        log.info("looking up " + txs.size() + " pending after dropping lookups");
+        for (Transaction tx : txs)
+            schedule(new Lookup(tx), 0);
+    }
+
+    // Callbacks take the scanner lock, so they run on the fetch service rather than on whatever
+    // thread completed the future, such as an I/O or validation thread
+    private Executor callbackExecutor() {
+        Executor service = fetchService;
+        return service != null ? service : MoreExecutors.sameThreadExecutor();
+    }
+
+    private void schedule(Runnable runnable, long millis) {
+        ScheduledExecutorService service = fetchService;
+        if (service == null)
+            return; // Stopped - pending transactions are looked up again on start
+        try {
+            service.schedule(runnable, millis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.info("not scheduling, shutting down");
+        }
+    }
+
+    /**
+     * Looks up the color of a pending transaction.
+     * <p/>
+     * <p>A lookup is the fetch stage of a pipeline.  It runs on the fetch service once admitted and
+     * claims the outpoints that no other lookup is working on.  Claimed outpoints are fetched in
+     * batches shared with the other lookups, and their proofs handed to the validation service.
+     * Each proof is then applied to the tracks under the scanner lock.  The lookup is done when all
+     * the outpoints it needs are done, including those claimed by other lookups, and retries with
+     * backoff if any of them failed.</p>
+     */
     class Lookup implements Runnable {
         private final Transaction tx;
         private int tries = 0;
+        // Guarded by waitingLookups
+        boolean admitted;
 
         Lookup(Transaction tx) {
             this.tx = tx;
@@ -203,69 +430,87 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
 
         @Override
         public void run() {
-            if (tx.getConfidence(wallet.getContext()).getConfidenceType().equals(TransactionConfidence.ConfidenceType.BUILDING)) {
-                for (TransactionOutput output : tx.getOutputs()) {
-                    TransactionOutPoint point = output.getOutPointFor();
-                    if (colorKeyChain.isOutputToMe(output)) {
-                        if (handleOutpoint(point)) return;
+            if (!admit(this))
+                return;
+            final boolean confirmed = isConfirmed();
+            List<ListenableFuture<Void>> futures = Lists.newArrayList();
+            queueFetch(loadStored(claim(getPoints(confirmed), futures)));
+
+            Futures.addCallback(Futures.allAsList(futures), new FutureCallback<List<Void>>() {
+                @Override
+                public void onSuccess(List<Void> result) {
+                    release(Lookup.this);
+                    if (!confirmed) {
+                        lock.lock();
+                        try {
+                            tryLocalLookup(tx, true);
+                        } finally {
+                            lock.unlock();
+                        }
                     }
+                    notifyTransactionDone(tx);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    release(Lookup.this);
+                    retry();
+                }
+            }, callbackExecutor());
+        }
+
+        private boolean isConfirmed() {
+            return tx.getConfidence(wallet.getContext()).getConfidenceType().equals(TransactionConfidence.ConfidenceType.BUILDING);
+        }
+
+        // The outpoints whose color we need
+        private List<TransactionOutPoint> getPoints(boolean confirmed) {
+            List<TransactionOutPoint> points = Lists.newArrayList();
+            if (confirmed) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    if (colorKeyChain.isOutputToMe(output))
+                        points.add(output.getOutPointFor());
                 }
             } else {
                 // Unconfirmed transaction
                 // Lookup all inputs, and derive color from that
                 for (TransactionInput input : tx.getInputs()) {
-                    if (handleOutpoint(input.getOutpoint())) return;
+                    points.add(input.getOutpoint());
                 }
-                tryLocalLookup(tx, true);
             }
-            notifyTransactionDone(tx);
+            return points;
         }
 
-        // True if retry initiated
-        private boolean handleOutpoint(TransactionOutPoint point) {
-            try {
-                if (!contains(point))
-                    doOutPoint(point);
-            } catch (SerializationException e) {
-                log.error("serialization problem", e);
-                retry();
-                return true;
-            } catch (TemporaryFailureException e) {
-                log.warn("tempfail " + point);
-                retry();
-                return true;
+        /**
+         * Claim the outpoints that no other lookup is working on, returning them.  The futures of
+         * all the outpoints that are not done yet are added to futures, if given.
+         */
+        private List<TransactionOutPoint> claim(List<TransactionOutPoint> points, @Nullable List<ListenableFuture<Void>> futures) {
+            List<TransactionOutPoint> claimed = Lists.newArrayList();
+            for (TransactionOutPoint point : points) {
+                SettableFuture<Void> future = SettableFuture.create();
+                SettableFuture<Void> existing = inFlight.putIfAbsent(point, future);
+                if (existing != null) {
+                    if (futures != null)
+                        futures.add(existing);
+                } else if (contains(point)) {
+                    // Proofs are applied before the outpoint leaves inFlight, so this is not racy
+                    inFlight.remove(point);
+                    future.set(null);
+                } else {
+                    if (futures != null)
+                        futures.add(future);
+                    claimed.add(point);
+                }
             }
-            return false;
+            return claimed;
         }
 
         private void retry() {
             tries++;
             // Jitter 2 seconds + 2 ** tries
             long delay = (long) (Math.random() * 2000 + 1000 * Math.pow(2, Math.min(tries, 7)));
-            fetchService.schedule(this, delay, TimeUnit.MILLISECONDS);
-        }
-
-        private void doOutPoint(TransactionOutPoint outPoint) throws SerializationException, TemporaryFailureException {
-            ColorProof proof = fetcher.fetch(outPoint);
-            log.info("after fetch: " + getPendingCount() + " pending");
-            if (proof == null)
-                return;
-            boolean found = false;
-            lock.lock();
-            try {
-                for (ClientColorTrack track : tracks) {
-                    if (track.definition.equals(proof.getDefinition())) {
-                        track.add(proof);
-                        found = true;
-                    }
-                }
-                if (!found) {
-                    // TODO handle new asset type
-                    log.warn("Unknown asset type fetched " + proof.getDefinition().getHash());
-                }
-            } finally {
-                lock.unlock();
-            }
+            schedule(this, delay);
         }
 
         private void notifyTransactionDone(Transaction tx) {
@@ -286,6 +531,219 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
         }
     }
 
+    // Submit the outpoints that have proofs in the store, returning those that must be fetched
+    private List<TransactionOutPoint> loadStored(List<TransactionOutPoint> points) {
+        ProofStore store = proofStore;
+        if (store == null)
+            return points;
+        List<TransactionOutPoint> missing = Lists.newArrayList();
+        for (TransactionOutPoint point : points) {
+            List<ColorProof> stored;
+            try {
+                stored = store.get(point);
+            } catch (SerializationException e) {
+                log.error("could not load stored proofs for " + point, e);
+                stored = ImmutableList.of();
+            }
+            if (stored.isEmpty())
+                missing.add(point);
+            else
+                submitProofs(point, stored);
+        }
+        return missing;
+    }
+
+    // Add claimed outpoints to the shared batch, fetching it after the other lookups had a chance to join
+    private void queueFetch(List<TransactionOutPoint> points) {
+        if (points.isEmpty())
+            return;
+        boolean full;
+        synchronized (fetchQueue) {
+            fetchQueue.addAll(points);
+            full = fetchQueue.size() >= Fetcher.MAX_BATCH_SIZE;
+            if (fetchScheduled && !full)
+                return;
+            fetchScheduled = true;
+        }
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushFetches();
+            }
+        }, full ? 0 : FETCH_BATCH_DELAY);
+    }
+
+    // Fetch the queued outpoints, topped up with those of waiting lookups, in batches of up to
+    // MAX_BATCH_SIZE.  The waiting lookups find their outpoints in flight when they are admitted.
+    private void flushFetches() {
+        List<TransactionOutPoint> points;
+        synchronized (fetchQueue) {
+            fetchScheduled = false;
+            points = Lists.newArrayList(fetchQueue);
+            fetchQueue.clear();
+        }
+        int room = Fetcher.MAX_BATCH_SIZE - points.size() % Fetcher.MAX_BATCH_SIZE;
+        if (room < Fetcher.MAX_BATCH_SIZE) {
+            List<Lookup> waiting;
+            synchronized (waitingLookups) {
+                waiting = Lists.newArrayList(waitingLookups);
+            }
+            for (Lookup lookup : waiting) {
+                if (room <= 0)
+                    break;
+                List<TransactionOutPoint> claimed = loadStored(lookup.claim(lookup.getPoints(lookup.isConfirmed()), null));
+                points.addAll(claimed);
+                room -= claimed.size();
+            }
+        }
+        for (List<TransactionOutPoint> batch : Fetcher.partition(points))
+            fetch(batch);
+    }
+
+    private void fetch(final List<TransactionOutPoint> points) {
+        if (points.size() == 1) {
+            final TransactionOutPoint point = points.get(0);
+            Futures.addCallback(fetcher.fetchAsync(point), new FutureCallback<List<ColorProof>>() {
+                @Override
+                public void onSuccess(List<ColorProof> proofs) {
+                    log.info("after fetch: " + getPendingCount() + " pending");
+                    submitProofs(point, proofs);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    fetchFailed(points, t);
+                }
+            }, callbackExecutor());
+        } else {
+            // Fetch several outpoints in one round trip
+            Futures.addCallback(fetcher.fetchAllAsync(points), new FutureCallback<ProofBundle>() {
+                @Override
+                public void onSuccess(ProofBundle bundle) {
+                    log.info("after batch fetch of " + points.size() + ": " + getPendingCount() + " pending");
+                    for (TransactionOutPoint point : points)
+                        submitProofs(point, bundle.get(point));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    fetchFailed(points, t);
+                }
+            }, callbackExecutor());
+        }
+    }
+
+    private void fetchFailed(List<TransactionOutPoint> points, Throwable t) {
+        if (t instanceof TemporaryFailureException)
+            log.warn("tempfail " + points);
+        else
+            log.error("fetch problem", t);
+        failOutPoints(points, t);
+    }
+
+    // Hand the fetched proofs of an outpoint, one per color, to the validation stage, or finish
+    // the outpoint if it is not colored
+    private void submitProofs(final TransactionOutPoint point, final List<ColorProof> proofs) {
+        if (proofs.isEmpty()) {
+            finishOutPoint(point, null);
+            return;
+        }
+        Runnable validation = new Runnable() {
+            @Override
+            public void run() {
+                List<ColorProof> valid = Lists.newArrayListWithCapacity(proofs.size());
+                ColorProof.ValidationException failure = null;
+                try {
+                    // Validate outside the lock, since deep proofs can take a while.  Subproofs
+                    // shared between colors are validated once, through the validator cache.
+                    for (ColorProof proof : proofs) {
+                        try {
+                            ProofValidator.Report report = proof.validate(validator);
+                            log.info("validated {}", report);
+                            valid.add(proof);
+                        } catch (ColorProof.ValidationException e) {
+                            log.error("validation problem", e);
+                            failure = e;
+                        }
+                    }
+                    // Apply the colors that are valid even if another one is not
+                    ColorProof.ValidationException rejected = applyProofs(valid);
+                    storeProofs(valid);
+                    finishOutPoint(point, failure != null ? failure : rejected);
+                } catch (RuntimeException e) {
+                    finishOutPoint(point, e);
+                    throw e;
+                }
+            }
+        };
+        ExecutorService service = validationService;
+        try {
+            if (service == null)
+                validation.run();
+            else
+                service.execute(validation);
+        } catch (RejectedExecutionException e) {
+            finishOutPoint(point, e);
+        }
+    }
+
+    private void storeProofs(List<ColorProof> proofs) {
+        ProofStore store = proofStore;
+        if (store == null)
+            return;
+        try {
+            store.putAll(proofs);
+        } catch (SerializationException e) {
+            log.error("could not store proofs", e);
+        }
+    }
+
+    // Route each proof to the track of its color.  Proofs the track rejects are removed from the
+    // list, and the last rejection is returned.
+    @Nullable
+    private ColorProof.ValidationException applyProofs(List<ColorProof> proofs) {
+        if (proofs.isEmpty())
+            return null;
+        ColorProof.ValidationException failure = null;
+        lock.lock();
+        try {
+            for (Iterator<ColorProof> iter = proofs.iterator(); iter.hasNext(); ) {
+                ColorProof proof = iter.next();
+                ClientColorTrack track = tracksByHash.get(proof.getDefinition().getHash());
+                if (track != null) {
+                    try {
+                        track.addValidated(proof);
+                    } catch (ColorProof.ValidationException e) {
+                        log.error("proof rejected by track", e);
+                        failure = e;
+                        iter.remove();
+                    }
+                } else {
+                    // TODO handle new asset type
+                    log.warn("Unknown asset type fetched " + proof.getDefinition().getHash());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return failure;
+    }
+
+    private void finishOutPoint(TransactionOutPoint point, @Nullable Throwable failure) {
+        SettableFuture<Void> future = inFlight.remove(point);
+        if (future == null)
+            return; // Dropped by stop()
+        if (failure == null)
+            future.set(null);
+        else
+            future.setException(failure);
+    }
+
+    private void failOutPoints(List<TransactionOutPoint> points, Throwable failure) {
+        for (TransactionOutPoint point : points)
+            finishOutPoint(point, failure);
+    }
+
     static class TemporaryFailureException extends Exception {
     }
 
@@ -311,17 +769,55 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
         }
     }
 
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class BatchResponse {
+        public String status;
+        public String error;
+        public String details;
+        /** A serialized {@link ProofBundle} */
+        public byte[] bundle;
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("status", status)
+                    .add("error", error)
+                    .add("details", details)
+                    .toString();
+        }
+    }
+
+    public static class BatchRequest {
+        /** Outpoints as hash:index */
+        public List<String> outpoints = Lists.newArrayList();
+    }
+
+    /**
+     * Fetches proofs from the server with blocking I/O.
+     * <p/>
+     * <p>The client is made on first use and closed by {@link #stop()}.  Connections are pooled
+     * and kept alive between requests.  See {@link AsyncFetcher} for a non-blocking variant.</p>
+     * <p/>
+     * <p>Binary responses of type {@link #PROOFS_MIME_TYPE} are preferred.  They are a serialized
+     * {@link ProofBundle} and are deserialized straight from the connection.  Servers that don't
+     * have them answer with JSON.</p>
+     */
     public static class Fetcher {
+        /** The most outpoints sent in one batch request */
+        public static final int MAX_BATCH_SIZE = 500;
+        /** The media type of binary responses */
+        public static final String PROOFS_MIME_TYPE = "application/x-smartcolors-proofs";
+        public static final String ACCEPT = PROOFS_MIME_TYPE + ", application/json;q=0.5";
+        public static final int DEFAULT_MAX_CONNECTIONS = 8;
         private static SSLContext sslContext;
         private final URI base;
-        private final NetworkParameters params;
+        protected final NetworkParameters params;
         CloseableHttpClient httpclient;
         ObjectMapper mapper = new ObjectMapper();
 
         public Fetcher(URI base, NetworkParameters params) {
             this.base = base;
             this.params = params;
-            initClient();
         }
 
         Fetcher(URI base, NetworkParameters params, CloseableHttpClient httpclient) {
@@ -334,56 +830,230 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
             Fetcher.sslContext = sslContext;
         }
 
-        private void initClient() {
-            RequestConfig config = RequestConfig.custom()
+        protected static SSLContext getSslContext() {
+            return sslContext;
+        }
+
+        protected static boolean isFetchDisabled() {
+            return disableFetch;
+        }
+
+        protected static RequestConfig makeRequestConfig() {
+            return RequestConfig.custom()
                     .setConnectionRequestTimeout(NETWORK_TIMEOUT)
                     .setConnectTimeout(NETWORK_TIMEOUT)
                     .setSocketTimeout(NETWORK_TIMEOUT)
                     .build();
-            httpclient = HttpClients.custom()
-                    .setUserAgent("SmartColors-java-" + SmartColors.getVersion())
-                    .setDefaultRequestConfig(config)
-                    .setSslcontext(sslContext)
-                    .build();
         }
 
-        public ColorProof fetch(TransactionOutPoint point) throws SerializationException, TemporaryFailureException {
+        protected static String getUserAgent() {
+            return "SmartColors-java-" + SmartColors.getVersion();
+        }
+
+        private synchronized CloseableHttpClient getClient() {
+            if (httpclient == null) {
+                httpclient = HttpClients.custom()
+                        .setUserAgent(getUserAgent())
+                        .setDefaultRequestConfig(makeRequestConfig())
+                        .setSslcontext(sslContext)
+                        .setMaxConnTotal(DEFAULT_MAX_CONNECTIONS)
+                        .setMaxConnPerRoute(DEFAULT_MAX_CONNECTIONS)
+                        .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                        .build();
+            }
+            return httpclient;
+        }
+
+        /**
+         * Fetch the proofs for an outpoint, one for each color it carries.  The result is empty if
+         * the outpoint is not colored.
+         */
+        public List<ColorProof> fetch(final TransactionOutPoint point) throws SerializationException, TemporaryFailureException {
+            if (disableFetch)
+                return ImmutableList.of();
+            return execute(makeGet(point), new ResponseReader<List<ColorProof>>() {
+                @Override
+                public List<ColorProof> read(HttpEntity entity) throws IOException, SerializationException, TemporaryFailureException {
+                    return readProofs(point, entity.getContent(), isBinary(entity));
+                }
+            });
+        }
+
+        /**
+         * Fetch the proofs for many outpoints, in as few round trips as possible.  Outpoints that
+         * are not colored are missing from the result.
+         */
+        public ProofBundle fetchAll(Collection<TransactionOutPoint> points) throws SerializationException, TemporaryFailureException {
+            ProofBundle result = new ProofBundle();
             if (disableFetch)
-                return null;
+                return result;
+            for (List<TransactionOutPoint> batch : partition(points)) {
+                result.addAll(execute(makeBatchPost(batch), new ResponseReader<ProofBundle>() {
+                    @Override
+                    public ProofBundle read(HttpEntity entity) throws IOException, SerializationException, TemporaryFailureException {
+                        return readBundle(entity.getContent(), isBinary(entity));
+                    }
+                }));
+            }
+            return result;
+        }
+
+        /**
+         * Like {@link #fetch}, returning a future.  This implementation blocks the calling thread
+         * and returns a completed future.
+         */
+        public ListenableFuture<List<ColorProof>> fetchAsync(TransactionOutPoint point) {
+            try {
+                return Futures.immediateFuture(fetch(point));
+            } catch (SerializationException e) {
+                return Futures.immediateFailedFuture(e);
+            } catch (TemporaryFailureException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+
+        /**
+         * Like {@link #fetchAll}, returning a future.  This implementation blocks the calling thread
+         * and returns a completed future.
+         */
+        public ListenableFuture<ProofBundle> fetchAllAsync(Collection<TransactionOutPoint> points) {
+            try {
+                return Futures.immediateFuture(fetchAll(points));
+            } catch (SerializationException e) {
+                return Futures.immediateFailedFuture(e);
+            } catch (TemporaryFailureException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+
+        protected static List<List<TransactionOutPoint>> partition(Collection<TransactionOutPoint> points) {
+            return Lists.partition(Lists.newArrayList(points), MAX_BATCH_SIZE);
+        }
+
+        protected HttpGet makeGet(TransactionOutPoint point) {
             String relative = "outpoint/" + point.getHash() + "/" + point.getIndex();
             log.info("fetching " + relative);
             HttpGet get = new HttpGet(base.resolve(relative));
+            get.addHeader("Accept", ACCEPT);
+            return get;
+        }
 
-            CloseableHttpResponse response = null;
+        protected HttpPost makeBatchPost(List<TransactionOutPoint> points) {
+            BatchRequest request = new BatchRequest();
+            for (TransactionOutPoint point : points)
+                request.outpoints.add(point.getHash() + ":" + point.getIndex());
+            log.info("batch fetching " + points.size() + " outpoints");
+            HttpPost post = new HttpPost(base.resolve("outpoints"));
+            post.addHeader("Accept", ACCEPT);
             try {
-                response = httpclient.execute(get);
-                StatusLine statusLine = response.getStatusLine();
-                if (statusLine.getStatusCode() >= 300) {
-                    log.warn("got status " + statusLine);
-                    throw new TemporaryFailureException();
-                }
-                OutPointResponse res = mapper.readValue(response.getEntity().getContent(), OutPointResponse.class);
+                post.setEntity(new StringEntity(mapper.writeValueAsString(request), ContentType.APPLICATION_JSON));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            return post;
+        }
+
+        /** Whether the response is binary rather than JSON */
+        protected static boolean isBinary(HttpEntity entity) {
+            ContentType type = ContentType.get(entity);
+            return type != null && PROOFS_MIME_TYPE.equalsIgnoreCase(type.getMimeType());
+        }
+
+        protected List<ColorProof> readProofs(TransactionOutPoint point, InputStream is, boolean binary) throws IOException, SerializationException, TemporaryFailureException {
+            if (!binary)
+                return decode(mapper.readValue(is, OutPointResponse.class));
+            // The proofs share the memo table of the bundle
+            ProofBundle bundle = deserializeBundle(is);
+            log.info("fetch success, " + bundle.get(point).size() + " proofs");
+            return bundle.get(point);
+        }
 
-                if (res.proofs == null) {
-                    log.warn("fetch failure " + res.status + " " + res.details);
+        protected ProofBundle readBundle(InputStream is, boolean binary) throws IOException, SerializationException, TemporaryFailureException {
+            if (!binary)
+                return decode(mapper.readValue(is, BatchResponse.class));
+            ProofBundle bundle = deserializeBundle(is);
+            log.info("batch fetch success, " + bundle.size() + " colored");
+            return bundle;
+        }
+
+        private ProofBundle deserializeBundle(InputStream is) throws SerializationException, TemporaryFailureException {
+            try {
+                return ProofBundle.deserialize(params, is);
+            } catch (SerializationException e) {
+                // The connection failed while streaming
+                if (e.getCause() instanceof IOException) {
+                    log.warn("got IOException " + e.getCause().getMessage());
                     throw new TemporaryFailureException();
                 }
+                throw e;
+            } catch (StackOverflowError e) {
+                log.error("could not deserialize bundle, deeming UNKNOWN");
+                return new ProofBundle();
+            }
+        }
+
+        protected List<ColorProof> decode(OutPointResponse res) throws SerializationException, TemporaryFailureException {
+            if (res.proofs == null) {
+                log.warn("fetch failure " + res.status + " " + res.details);
+                throw new TemporaryFailureException();
+            }
 
-                log.info("fetch success " + res.status + ", " + res.proofs.size() + " proofs");
+            log.info("fetch success " + res.status + ", " + res.proofs.size() + " proofs");
 
+            // Each proof is serialized on its own, so they can't share a memo table
+            List<ColorProof> result = Lists.newArrayList();
+            try {
                 for (ProofMap map : res.proofs.values()) {
-                    // TODO this only returns first
                     for (byte[] bytes : map.values()) {
-                        return ColorProof.deserialize(params, new BytesDeserializer(bytes));
+                        result.add(ColorProof.deserialize(params, new BytesDeserializer(bytes)));
                     }
                 }
+            } catch (StackOverflowError e) {
+                log.error("could not deserialize proof, deeming UNKNOWN");
+                return ImmutableList.of();
+            }
+            return result;
+        }
+
+        protected ProofBundle decode(BatchResponse res) throws SerializationException, TemporaryFailureException {
+            if (res.bundle == null) {
+                log.warn("batch fetch failure " + res.status + " " + res.details);
+                throw new TemporaryFailureException();
+            }
+
+            try {
+                ProofBundle bundle = ProofBundle.deserialize(params, res.bundle);
+                log.info("batch fetch success " + res.status + ", " + bundle.size() + " colored");
+                return bundle;
+            } catch (StackOverflowError e) {
+                log.error("could not deserialize bundle, deeming UNKNOWN");
+                return new ProofBundle();
+            }
+        }
+
+        private interface ResponseReader<T> {
+            T read(HttpEntity entity) throws IOException, SerializationException, TemporaryFailureException;
+        }
+
+        private <T> T execute(HttpUriRequest request, ResponseReader<T> reader) throws SerializationException, TemporaryFailureException {
+            CloseableHttpResponse response = null;
+            try {
+                response = getClient().execute(request);
+                StatusLine statusLine = response.getStatusLine();
+                if (statusLine.getStatusCode() >= 300) {
+                    log.warn("got status " + statusLine);
+                    throw new TemporaryFailureException();
+                }
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    log.warn("got no content");
+                    throw new TemporaryFailureException();
+                }
+                return reader.read(entity);
             } catch (IOException e) {
                 // temporary failure
                 log.warn("got IOException " + e.getMessage());
                 throw new TemporaryFailureException();
-            } catch (StackOverflowError e) {
-                log.error("could not deserialize proof, deeming UNKNOWN");
-                return null;
             } finally {
                 if (response != null) {
                     try {
@@ -394,16 +1064,18 @@ public class ClientColorScanner extends AbstractColorScanner<ClientColorTrack> {
                     }
                 }
             }
-            return null;
         }
 
-        public void stop() {
+        /** Close the connections.  A new client is made on the next fetch. */
+        public synchronized void stop() {
+            if (httpclient == null)
+                return;
             try {
                 httpclient.close();
             } catch (IOException e) {
                 log.error("while stopping fetcher", e);
             }
-            initClient();
+            httpclient = null;
         }
     }
 
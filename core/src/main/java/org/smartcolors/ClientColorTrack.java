@@ -19,8 +19,13 @@ public class ClientColorTrack extends ColorTrack {
 
     public void add(ColorProof proof) throws ColorProof.ValidationException {
         proof.validate();
+        addValidated(proof);
+    }
+
+    /** Add a proof that was already validated, e.g. by a {@link org.smartcolors.core.ProofValidator} */
+    void addValidated(ColorProof proof) throws ColorProof.ValidationException {
         if (!proof.getDefinition().equals(definition))
             throw new ColorProof.ValidationException("proof is not for our definition - got " + proof.getDefinition() + ", expected " + definition);
-        outputs.put(proof.getOutPoint(), proof.getQuantity());
+        putOutput(proof.getOutPoint(), proof.getQuantity());
     }
 }
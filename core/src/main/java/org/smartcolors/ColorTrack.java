@@ -2,22 +2,28 @@ package org.smartcolors;
 
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutPoint;
 import org.smartcolors.core.ColorDefinition;
+import org.smartcolors.core.ColorKernel;
 
 import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Created by devrandom on 2014-Nov-23.
  */
 public abstract class ColorTrack {
     protected final ColorDefinition definition;
-    protected Map<TransactionOutPoint, Long> outputs;
+    protected OutPointValueMap outputs;
     protected Ordering<TransactionOutPoint> outputOrdering =
             Ordering.natural().onResultOf(new Function<TransactionOutPoint, Comparable>() {
                 @Nullable
@@ -26,38 +32,105 @@ public abstract class ColorTrack {
                     return Sha256Hash.of(input.bitcoinSerialize());
                 }
             });
+    // The index of the scanner we belong to, if any
+    @Nullable
+    private OutputIndex index;
+    // Kernel buffers, reused from one transaction to the next
+    private long[] colorIns = new long[8];
+    private long[] colorOuts = new long[8];
 
     public ColorTrack(ColorDefinition definition) {
+        this(definition, new OutPointValueMap(definition.getParams()));
+    }
+
+    protected ColorTrack(ColorDefinition definition, OutPointValueMap outputs) {
         this.definition = definition;
-        outputs = Maps.newHashMap();
+        this.outputs = outputs;
     }
 
     public abstract Sha256Hash getStateHash();
 
+    /** The outpoints in {@link #outputOrdering}, hashing each outpoint once rather than on every comparison */
+    protected List<TransactionOutPoint> sortOutPoints(Collection<TransactionOutPoint> points) {
+        TreeMap<Sha256Hash, TransactionOutPoint> sorted = Maps.newTreeMap();
+        for (TransactionOutPoint point : points) {
+            sorted.put(Sha256Hash.of(point.bitcoinSerialize()), point);
+        }
+        return Lists.newArrayList(sorted.values());
+    }
+
     public Long[] applyKernel(Transaction tx) {
+        long[] outs = applyKernelUnboxed(ColorKernel.compile(tx));
+        Long[] res = new Long[tx.getOutputs().size()];
+        if (outs != null) {
+            for (int i = 0; i < res.length; i++) {
+                if (outs[i] != ColorDefinition.UNCOLORED)
+                    res[i] = outs[i];
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Apply the kernel without allocating, for scanning.  The color of each output is left in the
+     * returned array, marked {@link ColorDefinition#UNCOLORED} if the output is not colored.  The
+     * array is reused by the next call.
+     *
+     * @return the output colors, or null if no output is colored
+     */
+    @Nullable
+    long[] applyKernelUnboxed(ColorKernel kernel) {
+        Transaction tx = kernel.getTransaction();
         // Set up the input color
-        Long colorIn[] = new Long[tx.getInputs().size()];
-        for (int i = 0; i < colorIn.length; i++) {
+        int numInputs = kernel.getInputCount();
+        if (colorIns.length < numInputs)
+            colorIns = new long[Math.max(numInputs, colorIns.length * 2)];
+        boolean colored = false;
+        for (int i = 0; i < numInputs; i++) {
             TransactionOutPoint prev = tx.getInput(i).getOutpoint();
-            if (outputs.containsKey(prev))
-                colorIn[i] = outputs.get(prev);
+            colorIns[i] = outputs.getValue(prev, ColorDefinition.UNCOLORED);
+            if (colorIns[i] != ColorDefinition.UNCOLORED)
+                colored = true;
         }
+        // The kernel only moves color from inputs
+        if (!colored)
+            return null;
 
-        // Apply kernel and add output colors to output maps
-        return definition.applyKernel(tx, colorIn);
+        int numOutputs = kernel.getOutputCount();
+        if (colorOuts.length < numOutputs)
+            colorOuts = new long[Math.max(numOutputs, colorOuts.length * 2)];
+        return definition.applyKernel(kernel, colorIns, colorOuts) ? colorOuts : null;
     }
 
     public void add(Transaction tx) {
-        Long[] colorOuts = applyKernel(tx);
+        add(tx, ColorKernel.compile(tx));
+    }
+
+    /** Add a transaction whose kernel was already compiled, e.g. for another track */
+    public void add(Transaction tx, ColorKernel kernel) {
+        long[] outs = applyKernelUnboxed(kernel);
+        if (outs == null)
+            return;
         for (int i = 0; i < tx.getOutputs().size(); i++) {
-            if (colorOuts[i] != null) {
-                outputs.put(tx.getOutput(i).getOutPointFor(), colorOuts[i]);
+            if (outs[i] != ColorDefinition.UNCOLORED) {
+                putOutput(tx.getOutput(i).getOutPointFor(), outs[i]);
             }
         }
     }
 
+    /** Set the color value of an outpoint.  All changes to outputs must go through here or {@link #removeOutput}. */
+    protected void putOutput(TransactionOutPoint point, long value) {
+        if (outputs.putValue(point, value) && index != null)
+            index.add(point, this);
+    }
+
+    protected void removeOutput(TransactionOutPoint point) {
+        if (outputs.remove(point) != null && index != null)
+            index.remove(point, this);
+    }
+
     public Map<TransactionOutPoint, Long> getOutputs() {
-        return outputs;
+        return Collections.unmodifiableMap(outputs);
     }
 
     /** Get the color value of an outpoint, regardless whether it was spent */
@@ -70,11 +143,26 @@ public abstract class ColorTrack {
     }
 
     public void reset() {
+        if (index != null)
+            index.removeAll(this);
         outputs.clear();
     }
 
-    void setOutputs(Map<TransactionOutPoint, Long> outputs) {
-        this.outputs = outputs;
+    void setOutputs(OutPointValueMap outputs) {
+        if (index != null)
+            index.removeAll(this);
+        if (this.outputs.isMapped()) {
+            this.outputs.clear();
+            this.outputs.putAll(outputs);
+        } else {
+            this.outputs = outputs;
+        }
+        if (index != null)
+            index.addAll(this);
+    }
+
+    void setIndex(@Nullable OutputIndex index) {
+        this.index = index;
     }
 
     public boolean isColored(TransactionOutPoint point) {
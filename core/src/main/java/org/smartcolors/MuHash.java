@@ -0,0 +1,80 @@
+package org.smartcolors;
+
+import com.google.common.base.Throwables;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A hash of a multiset of byte strings that is updated in place as elements are added and removed.
+ * <p/>
+ * <p>This is MuHash over the multiplicative group modulo the prime 2<sup>3072</sup> - 1103717.  Each
+ * element is expanded with SHA-256 into a 3072-bit number, and the set hashes to the product of
+ * its elements.  Finding two sets with the same product is as hard as a discrete logarithm in that
+ * group, so unlike a sum of hashes it commits to the set even against an adversary.</p>
+ * <p/>
+ * <p>Removed elements are multiplied into a separate denominator, so an update is one modular
+ * multiplication and the inverse is only taken by {@link #getDigest}.  Not thread safe.</p>
+ */
+class MuHash {
+    private static final int BITS = 3072;
+    static final BigInteger PRIME = BigInteger.ONE.shiftLeft(BITS).subtract(BigInteger.valueOf(1103717));
+
+    private BigInteger numerator = BigInteger.ONE;
+    private BigInteger denominator = BigInteger.ONE;
+    private final MessageDigest sha256;
+    private final byte[] expanded = new byte[BITS / 8 + 1];
+
+    MuHash() {
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /** Add an element.  The bytes are not kept. */
+    void add(byte[] element) {
+        numerator = numerator.multiply(toGroup(element)).mod(PRIME);
+    }
+
+    /** Remove an element, which must have been added */
+    void remove(byte[] element) {
+        denominator = denominator.multiply(toGroup(element)).mod(PRIME);
+    }
+
+    /** Forget all elements */
+    void clear() {
+        numerator = BigInteger.ONE;
+        denominator = BigInteger.ONE;
+    }
+
+    /** The SHA-256 of the product of the elements, written as 384 big-endian bytes */
+    byte[] getDigest() {
+        if (!denominator.equals(BigInteger.ONE)) {
+            numerator = numerator.multiply(denominator.modInverse(PRIME)).mod(PRIME);
+            denominator = BigInteger.ONE;
+        }
+        byte[] bytes = numerator.toByteArray();
+        byte[] fixed = new byte[BITS / 8];
+        // toByteArray may add a sign byte, or be shorter
+        int length = Math.min(bytes.length, fixed.length);
+        System.arraycopy(bytes, bytes.length - length, fixed, fixed.length - length, length);
+        return sha256.digest(fixed);
+    }
+
+    // Expand the element into the group by hashing its SHA-256 with a counter
+    private BigInteger toGroup(byte[] element) {
+        byte[] seed = sha256.digest(element);
+        for (int i = 0; i < BITS / 256; i++) {
+            sha256.update(seed);
+            sha256.update((byte) i);
+            System.arraycopy(sha256.digest(), 0, expanded, 1 + i * 32, 32);
+        }
+        // The leading zero byte keeps the number positive.  A value of at least the prime is
+        // reduced, which happens with negligible probability.
+        BigInteger res = new BigInteger(expanded).mod(PRIME);
+        return res.signum() == 0 ? BigInteger.ONE : res;
+    }
+}
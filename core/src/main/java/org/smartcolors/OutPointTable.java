@@ -0,0 +1,216 @@
+package org.smartcolors;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A multimap from outpoints to a few distinct values, such as tracks, stored in a flat buffer.
+ * <p/>
+ * <p>Each value gets a small id, and a slot is 40 bytes - the transaction hash, the output index
+ * and the id - in an open-addressing table with linear probing, like {@link OutPointValueMap}.
+ * An outpoint with more than one value has a slot per value.  The table is in direct memory, and
+ * outpoint objects are never created, so keys are passed as a hash and an index.</p>
+ * <p/>
+ * <p>Not thread safe.</p>
+ */
+class OutPointTable<T> {
+    private static final int SLOT_LENGTH = 40;
+    private static final int INDEX_OFFSET = 32;
+    private static final int ID_OFFSET = 36;
+    // Ids are stored plus one, so that zero marks a free slot
+    private static final int FREE = 0;
+    private static final int REMOVED = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private ByteBuffer buffer;
+    private int capacity;
+    private int size;
+    // Occupied slots, including removed ones that still lengthen probes
+    private int used;
+    // Values by id, with null for unused ids
+    private final List<T> values = Lists.newArrayList();
+    private final Map<T, Integer> ids = Maps.newHashMap();
+
+    OutPointTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        checkState((long) capacity * SLOT_LENGTH <= Integer.MAX_VALUE, "table too large");
+        buffer = ByteBuffer.allocateDirect(capacity * SLOT_LENGTH);
+        this.capacity = capacity;
+        used = 0;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long res = 0;
+        for (int i = 0; i < 8; i++)
+            res = (res << 8) | (bytes[offset + i] & 0xff);
+        return res;
+    }
+
+    private static int hash(long w0, int index) {
+        // The words of a transaction hash are already uniformly distributed
+        long h = w0 ^ (index * 0x9E3779B97F4A7C15L);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private boolean keyAt(int pos, long w0, long w1, long w2, long w3, int index) {
+        return buffer.getLong(pos) == w0 && buffer.getLong(pos + 8) == w1 &&
+                buffer.getLong(pos + 16) == w2 && buffer.getLong(pos + 24) == w3 &&
+                buffer.getInt(pos + INDEX_OFFSET) == index;
+    }
+
+    /**
+     * The slot of the key with the stored id, or if absent minus one minus the slot where it would
+     * be inserted.
+     */
+    private int find(long w0, long w1, long w2, long w3, int index, int stored) {
+        int mask = capacity - 1;
+        int slot = hash(w0, index) & mask;
+        int insert = -1;
+        while (true) {
+            int pos = slot * SLOT_LENGTH;
+            int id = buffer.getInt(pos + ID_OFFSET);
+            if (id == FREE)
+                return -1 - (insert >= 0 ? insert : slot);
+            if (id == REMOVED) {
+                if (insert < 0)
+                    insert = slot;
+            } else if (id == stored && keyAt(pos, w0, w1, w2, w3, index)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** Add a value to the outpoint, returning whether it was not there before */
+    boolean put(Sha256Hash hash, long index, T value) {
+        byte[] bytes = hash.getBytes();
+        long w0 = readLong(bytes, 0), w1 = readLong(bytes, 8), w2 = readLong(bytes, 16), w3 = readLong(bytes, 24);
+        int stored = idFor(value) + 1;
+        int slot = find(w0, w1, w2, w3, (int) index, stored);
+        if (slot >= 0)
+            return false;
+        slot = -1 - slot;
+        if (buffer.getInt(slot * SLOT_LENGTH + ID_OFFSET) == FREE) {
+            if ((used + 1) * 4 > capacity * 3) {
+                // Grow if mostly live, otherwise just clear out removed slots
+                rehash(size * 4 >= capacity ? capacity * 2 : capacity);
+                slot = -1 - find(w0, w1, w2, w3, (int) index, stored);
+            }
+            used++;
+        }
+        int pos = slot * SLOT_LENGTH;
+        buffer.putLong(pos, w0);
+        buffer.putLong(pos + 8, w1);
+        buffer.putLong(pos + 16, w2);
+        buffer.putLong(pos + 24, w3);
+        buffer.putInt(pos + INDEX_OFFSET, (int) index);
+        buffer.putInt(pos + ID_OFFSET, stored);
+        size++;
+        return true;
+    }
+
+    /** Remove a value from the outpoint, returning whether it was there */
+    boolean remove(Sha256Hash hash, long index, T value) {
+        Integer id = ids.get(value);
+        if (id == null)
+            return false;
+        byte[] bytes = hash.getBytes();
+        int slot = find(readLong(bytes, 0), readLong(bytes, 8), readLong(bytes, 16), readLong(bytes, 24), (int) index, id + 1);
+        if (slot < 0)
+            return false;
+        buffer.putInt(slot * SLOT_LENGTH + ID_OFFSET, REMOVED);
+        size--;
+        return true;
+    }
+
+    /** Remove the value from all outpoints.  Reads the whole table. */
+    void removeAll(T value) {
+        Integer id = ids.remove(value);
+        if (id == null)
+            return;
+        for (int slot = 0; slot < capacity; slot++) {
+            int pos = slot * SLOT_LENGTH + ID_OFFSET;
+            if (buffer.getInt(pos) == id + 1) {
+                buffer.putInt(pos, REMOVED);
+                size--;
+            }
+        }
+        values.set(id, null);
+    }
+
+    /** The values of the outpoint, in no particular order */
+    List<T> get(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        long w0 = readLong(bytes, 0), w1 = readLong(bytes, 8), w2 = readLong(bytes, 16), w3 = readLong(bytes, 24);
+        int mask = capacity - 1;
+        int slot = hash(w0, (int) index) & mask;
+        List<T> res = null;
+        while (true) {
+            int pos = slot * SLOT_LENGTH;
+            int id = buffer.getInt(pos + ID_OFFSET);
+            if (id == FREE)
+                break;
+            if (id != REMOVED && keyAt(pos, w0, w1, w2, w3, (int) index)) {
+                if (res == null)
+                    res = Lists.newArrayListWithCapacity(1);
+                res.add(values.get(id - 1));
+            }
+            slot = (slot + 1) & mask;
+        }
+        return res == null ? Collections.<T>emptyList() : res;
+    }
+
+    boolean contains(Sha256Hash hash, long index) {
+        return !get(hash, index).isEmpty();
+    }
+
+    /** The number of outpoint and value pairs */
+    int size() {
+        return size;
+    }
+
+    private int idFor(T value) {
+        Integer id = ids.get(value);
+        if (id != null)
+            return id;
+        // Reuse the id of a removed value
+        int free = values.indexOf(null);
+        if (free < 0) {
+            free = values.size();
+            values.add(value);
+        } else {
+            values.set(free, value);
+        }
+        ids.put(value, free);
+        return free;
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer old = buffer;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            int from = i * SLOT_LENGTH;
+            int id = old.getInt(from + ID_OFFSET);
+            if (id == FREE || id == REMOVED)
+                continue;
+            int slot = -1 - find(old.getLong(from), old.getLong(from + 8), old.getLong(from + 16),
+                    old.getLong(from + 24), old.getInt(from + INDEX_OFFSET), id);
+            int to = slot * SLOT_LENGTH;
+            for (int j = 0; j < SLOT_LENGTH; j += 8)
+                buffer.putLong(to + j, old.getLong(from + j));
+            used++;
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package org.smartcolors;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A map from outpoint to color value, stored in a flat buffer.
+ * <p/>
+ * <p>A {@link java.util.HashMap} entry costs a {@link TransactionOutPoint} with its
+ * {@link Sha256Hash}, a boxed {@link Long} and the entry itself - well over 100 bytes.  Here a
+ * slot is 48 bytes - the hash, the output index, a state and the value - in an open-addressing
+ * table with linear probing.</p>
+ * <p/>
+ * <p>The table lives on the heap by default.  {@link #offHeap} keeps it in direct memory, and
+ * {@link #open} in a memory-mapped file, so that a large table does not add to garbage collection
+ * work and can be reopened without reading it in.  Changes to a mapped table reach the disk on
+ * {@link #flush()} or {@link #close()}.  A table that was not flushed is recounted on open.</p>
+ * <p/>
+ * <p>Outpoint objects are only created by the {@link java.util.Map} views, so hot paths should use
+ * {@link #getValue} and {@link #containsOutPoint}.  Not thread safe.</p>
+ * <p/>
+ * <p>{@link #getDigest} commits to the entries.  Once requested, it is kept up to date by each
+ * change.</p>
+ */
+public class OutPointValueMap extends AbstractMap<TransactionOutPoint, Long> implements Closeable {
+    // File header: magic, version, capacity, size, used, dirty flag
+    private static final int MAGIC = 0x53434f56;
+    private static final int VERSION = 1;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int USED_OFFSET = 16;
+    private static final int DIRTY_OFFSET = 20;
+    private static final int HEADER_LENGTH = 32;
+
+    // Slot layout
+    private static final int SLOT_LENGTH = 48;
+    private static final int INDEX_OFFSET = 32;
+    private static final int STATE_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+
+    private static final int FREE = 0;
+    private static final int FULL = 1;
+    private static final int REMOVED = 2;
+    private static final int MIN_CAPACITY = 16;
+
+    private final NetworkParameters params;
+    private final boolean direct;
+    // The backing file if mapped
+    @Nullable
+    private final File file;
+    private ByteBuffer buffer;
+    private int capacity;
+    private int size;
+    // Occupied slots, including removed ones that still lengthen probes
+    private int used;
+    private boolean dirty;
+    private int modCount;
+    private EntrySet entrySet;
+    // Multiset hash of the entries, once requested
+    @Nullable
+    private MuHash digest;
+    private ByteBuffer entryBytes;
+
+    public OutPointValueMap(NetworkParameters params) {
+        this(params, MIN_CAPACITY);
+    }
+
+    public OutPointValueMap(NetworkParameters params, int expectedSize) {
+        this(params, false, null);
+        allocate(capacityFor(expectedSize));
+    }
+
+    public OutPointValueMap(NetworkParameters params, Map<TransactionOutPoint, Long> map) {
+        this(params, map.size());
+        putAll(map);
+    }
+
+    private OutPointValueMap(NetworkParameters params, boolean direct, @Nullable File file) {
+        this.params = params;
+        this.direct = direct;
+        this.file = file;
+    }
+
+    /** A map with the table in direct memory */
+    public static OutPointValueMap offHeap(NetworkParameters params, int expectedSize) {
+        OutPointValueMap map = new OutPointValueMap(params, true, null);
+        map.allocate(capacityFor(expectedSize));
+        return map;
+    }
+
+    /** Open a map with the table in a memory-mapped file, creating the file if it does not exist */
+    public static OutPointValueMap open(NetworkParameters params, File file) throws IOException {
+        OutPointValueMap map = new OutPointValueMap(params, false, file);
+        if (!file.exists() || file.length() == 0) {
+            map.allocate(MIN_CAPACITY);
+            return map;
+        }
+        map.buffer = map(file, file.length());
+        ByteBuffer buffer = map.buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("not an outpoint map " + file);
+        map.capacity = buffer.getInt(CAPACITY_OFFSET);
+        if (Integer.bitCount(map.capacity) != 1 || HEADER_LENGTH + (long) map.capacity * SLOT_LENGTH != file.length())
+            throw new IOException("corrupt outpoint map " + file);
+        if (buffer.getInt(DIRTY_OFFSET) != 0) {
+            map.recount();
+        } else {
+            map.size = buffer.getInt(SIZE_OFFSET);
+            map.used = buffer.getInt(USED_OFFSET);
+        }
+        return map;
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 <= expectedSize)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        try {
+            buffer = makeBuffer(capacity, file);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        this.capacity = capacity;
+        used = 0;
+        dirty = false;
+        writeHeader();
+    }
+
+    private ByteBuffer makeBuffer(int capacity, @Nullable File target) throws IOException {
+        long length = HEADER_LENGTH + (long) capacity * SLOT_LENGTH;
+        checkState(length <= Integer.MAX_VALUE, "table too large");
+        if (target != null) {
+            // Start from an empty file, since free slots must be zero
+            if (target.exists() && !target.delete())
+                throw new IOException("could not delete " + target);
+            return map(target, length);
+        }
+        return direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(SIZE_OFFSET, size);
+        buffer.putInt(USED_OFFSET, used);
+        buffer.putInt(DIRTY_OFFSET, dirty ? 1 : 0);
+    }
+
+    private void recount() {
+        size = 0;
+        used = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int state = state(slot);
+            if (state != FREE)
+                used++;
+            if (state == FULL)
+                size++;
+        }
+    }
+
+    // Called before each change, so an unflushed file is recounted when opened
+    private void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            buffer.putInt(DIRTY_OFFSET, 1);
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long res = 0;
+        for (int i = 0; i < 8; i++)
+            res = (res << 8) | (bytes[offset + i] & 0xff);
+        return res;
+    }
+
+    private static int hash(long w0, int index) {
+        // The words of a transaction hash are already uniformly distributed
+        long h = w0 ^ (index * 0x9E3779B97F4A7C15L);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int position(int slot) {
+        return HEADER_LENGTH + slot * SLOT_LENGTH;
+    }
+
+    private int state(int slot) {
+        return buffer.getInt(position(slot) + STATE_OFFSET);
+    }
+
+    /**
+     * The slot of the key, or if absent minus one minus the slot where it would be inserted.
+     */
+    private int find(long w0, long w1, long w2, long w3, int index) {
+        int mask = capacity - 1;
+        int slot = hash(w0, index) & mask;
+        int insert = -1;
+        while (true) {
+            int pos = position(slot);
+            int state = buffer.getInt(pos + STATE_OFFSET);
+            if (state == FREE)
+                return -1 - (insert >= 0 ? insert : slot);
+            if (state == REMOVED) {
+                if (insert < 0)
+                    insert = slot;
+            } else if (buffer.getLong(pos) == w0 && buffer.getLong(pos + 8) == w1 &&
+                    buffer.getLong(pos + 16) == w2 && buffer.getLong(pos + 24) == w3 &&
+                    buffer.getInt(pos + INDEX_OFFSET) == index) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int find(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        return find(readLong(bytes, 0), readLong(bytes, 8), readLong(bytes, 16), readLong(bytes, 24), (int) index);
+    }
+
+    private int find(Object key) {
+        if (!(key instanceof TransactionOutPoint))
+            return -1;
+        TransactionOutPoint point = (TransactionOutPoint) key;
+        return find(point.getHash(), point.getIndex());
+    }
+
+    /** Whether the outpoint is in the map, without creating an outpoint */
+    public boolean containsOutPoint(Sha256Hash hash, long index) {
+        return find(hash, index) >= 0;
+    }
+
+    /** The value of the outpoint, or missing if it is not in the map */
+    public long getValue(TransactionOutPoint point, long missing) {
+        int slot = find(point.getHash(), point.getIndex());
+        return slot >= 0 ? buffer.getLong(position(slot) + VALUE_OFFSET) : missing;
+    }
+
+    /** Put a value, returning whether the outpoint was not in the map before */
+    public boolean putValue(TransactionOutPoint point, long value) {
+        byte[] bytes = point.getHash().getBytes();
+        long w0 = readLong(bytes, 0), w1 = readLong(bytes, 8), w2 = readLong(bytes, 16), w3 = readLong(bytes, 24);
+        int index = (int) point.getIndex();
+        int slot = find(w0, w1, w2, w3, index);
+        markDirty();
+        if (slot >= 0) {
+            setValueAt(slot, value);
+            return false;
+        }
+        slot = -1 - slot;
+        if (state(slot) == FREE) {
+            if ((used + 1) * 4 > capacity * 3) {
+                // Grow if mostly live, otherwise just clear out removed slots
+                rehash(size * 4 >= capacity ? capacity * 2 : capacity);
+                slot = -1 - find(w0, w1, w2, w3, index);
+            }
+            used++;
+        }
+        int pos = position(slot);
+        buffer.putLong(pos, w0);
+        buffer.putLong(pos + 8, w1);
+        buffer.putLong(pos + 16, w2);
+        buffer.putLong(pos + 24, w3);
+        buffer.putInt(pos + INDEX_OFFSET, index);
+        buffer.putLong(pos + VALUE_OFFSET, value);
+        buffer.putInt(pos + STATE_OFFSET, FULL);
+        size++;
+        buffer.putInt(SIZE_OFFSET, size);
+        buffer.putInt(USED_OFFSET, used);
+        modCount++;
+        updateDigest(slot, false);
+        return true;
+    }
+
+    private void setValueAt(int slot, long value) {
+        if (valueAt(slot) == value)
+            return;
+        updateDigest(slot, true);
+        buffer.putLong(position(slot) + VALUE_OFFSET, value);
+        updateDigest(slot, false);
+    }
+
+    /**
+     * A commitment to the entries, regardless of their order and of how the table is stored.
+     * <p/>
+     * <p>It is the {@link MuHash} of the entries - the transaction hash, the output index as four
+     * bytes and the value as eight bytes, big-endian.  The first call reads all of the entries,
+     * later changes update it with one modular multiplication each.</p>
+     */
+    public byte[] getDigest() {
+        if (digest == null) {
+            digest = new MuHash();
+            for (int slot = 0; slot < capacity; slot++) {
+                if (state(slot) == FULL)
+                    updateDigest(slot, false);
+            }
+        }
+        return digest.getDigest();
+    }
+
+    // Add the entry in the slot to the digest, or remove it
+    private void updateDigest(int slot, boolean remove) {
+        if (digest == null)
+            return;
+        if (entryBytes == null)
+            entryBytes = ByteBuffer.allocate(44);
+        int pos = position(slot);
+        for (int i = 0; i < 32; i += 8)
+            entryBytes.putLong(i, buffer.getLong(pos + i));
+        entryBytes.putInt(32, buffer.getInt(pos + INDEX_OFFSET));
+        entryBytes.putLong(36, buffer.getLong(pos + VALUE_OFFSET));
+        if (remove)
+            digest.remove(entryBytes.array());
+        else
+            digest.add(entryBytes.array());
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer old = buffer;
+        int oldCapacity = capacity;
+        File tmp = file == null ? null : new File(file.getPath() + ".tmp");
+        try {
+            buffer = makeBuffer(newCapacity, tmp);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        capacity = newCapacity;
+        used = 0;
+        for (int i = 0; i < oldCapacity; i++) {
+            int from = position(i);
+            if (old.getInt(from + STATE_OFFSET) != FULL)
+                continue;
+            int slot = -1 - find(old.getLong(from), old.getLong(from + 8), old.getLong(from + 16),
+                    old.getLong(from + 24), old.getInt(from + INDEX_OFFSET));
+            int to = position(slot);
+            for (int j = 0; j < SLOT_LENGTH; j += 8)
+                buffer.putLong(to + j, old.getLong(from + j));
+            used++;
+        }
+        writeHeader();
+        if (file != null) {
+            try {
+                // Replace the old table only once the new one is complete
+                ((MappedByteBuffer) buffer).force();
+                Files.move(tmp, file);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private void removeSlot(int slot) {
+        markDirty();
+        updateDigest(slot, true);
+        modCount++;
+        buffer.putInt(position(slot) + STATE_OFFSET, REMOVED);
+        size--;
+        buffer.putInt(SIZE_OFFSET, size);
+    }
+
+    private TransactionOutPoint keyAt(int slot) {
+        byte[] bytes = new byte[32];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(position(slot));
+        dup.get(bytes);
+        long index = buffer.getInt(position(slot) + INDEX_OFFSET) & 0xffffffffL;
+        return new TransactionOutPoint(params, index, Sha256Hash.wrap(bytes));
+    }
+
+    private long valueAt(int slot) {
+        return buffer.getLong(position(slot) + VALUE_OFFSET);
+    }
+
+    /** Whether the table is in a memory-mapped file */
+    public boolean isMapped() {
+        return file != null;
+    }
+
+    /** Write changes to a mapped table to the disk */
+    public void flush() {
+        if (file == null || !dirty)
+            return;
+        dirty = false;
+        writeHeader();
+        ((MappedByteBuffer) buffer).force();
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public Long get(Object key) {
+        int slot = find(key);
+        return slot >= 0 ? valueAt(slot) : null;
+    }
+
+    @Override
+    public Long put(TransactionOutPoint key, Long value) {
+        checkNotNull(value);
+        int slot = find(key.getHash(), key.getIndex());
+        Long previous = slot >= 0 ? valueAt(slot) : null;
+        putValue(key, value);
+        return previous;
+    }
+
+    @Override
+    public Long remove(Object key) {
+        int slot = find(key);
+        if (slot < 0)
+            return null;
+        removeSlot(slot);
+        return valueAt(slot);
+    }
+
+    @Override
+    public void clear() {
+        if (used == 0)
+            return;
+        modCount++;
+        size = 0;
+        if (digest != null)
+            digest.clear();
+        allocate(MIN_CAPACITY);
+        dirty = true;
+        writeHeader();
+    }
+
+    @Override
+    public Set<Entry<TransactionOutPoint, Long>> entrySet() {
+        if (entrySet == null)
+            entrySet = new EntrySet();
+        return entrySet;
+    }
+
+    private class EntrySet extends AbstractSet<Entry<TransactionOutPoint, Long>> {
+        @Override
+        public Iterator<Entry<TransactionOutPoint, Long>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            OutPointValueMap.this.clear();
+        }
+    }
+
+    private class SlotEntry extends SimpleEntry<TransactionOutPoint, Long> {
+        private final int slot;
+
+        SlotEntry(int slot) {
+            super(keyAt(slot), valueAt(slot));
+            this.slot = slot;
+        }
+
+        @Override
+        public Long setValue(Long value) {
+            checkNotNull(value);
+            markDirty();
+            setValueAt(slot, value);
+            return super.setValue(value);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Entry<TransactionOutPoint, Long>> {
+        private int next = advance(0);
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        private int advance(int slot) {
+            while (slot < capacity && state(slot) != FULL)
+                slot++;
+            return slot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < capacity;
+        }
+
+        @Override
+        public Entry<TransactionOutPoint, Long> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next;
+            next = advance(next + 1);
+            return new SlotEntry(last);
+        }
+
+        @Override
+        public void remove() {
+            checkState(last >= 0);
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            // Removing leaves the table in place, so iteration can continue
+            removeSlot(last);
+            expectedModCount = modCount;
+            last = -1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.smartcolors;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The colored outputs of all the tracks of a scanner, by outpoint.
+ * <p/>
+ * <p>Tracks report every change to their outputs, so finding the colors of an outpoint does not
+ * depend on the number of tracks.  An outpoint may carry more than one color.</p>
+ * <p>The outpoints are kept in an {@link OutPointTable}, so the index holds no outpoint objects.
+ * Tracks whose outputs are in a memory-mapped table are not copied in, since that would read the
+ * whole table each time they are reopened.  They are asked directly, costing one probe of their
+ * table per lookup.</p>
+ * <p>Guarded by the lock of the owning scanner.</p>
+ */
+class OutputIndex {
+    private final OutPointTable<ColorTrack> tracksByOutPoint = new OutPointTable<ColorTrack>();
+    // Tracks with mapped outputs, which answer lookups themselves
+    private final List<ColorTrack> mappedTracks = Lists.newArrayList();
+
+    /** Start following the outputs of the track */
+    void addTrack(ColorTrack track) {
+        if (track.outputs.isMapped()) {
+            mappedTracks.add(track);
+            return;
+        }
+        track.setIndex(this);
+        addAll(track);
+    }
+
+    /** Stop following the outputs of the track and forget them */
+    void removeTrack(ColorTrack track) {
+        if (mappedTracks.remove(track))
+            return;
+        track.setIndex(null);
+        removeAll(track);
+    }
+
+    void add(TransactionOutPoint point, ColorTrack track) {
+        tracksByOutPoint.put(point.getHash(), point.getIndex(), track);
+    }
+
+    void remove(TransactionOutPoint point, ColorTrack track) {
+        tracksByOutPoint.remove(point.getHash(), point.getIndex(), track);
+    }
+
+    void addAll(ColorTrack track) {
+        for (TransactionOutPoint point : track.outputs.keySet()) {
+            add(point, track);
+        }
+    }
+
+    void removeAll(ColorTrack track) {
+        tracksByOutPoint.removeAll(track);
+    }
+
+    /** The tracks that color the outpoint */
+    List<ColorTrack> get(TransactionOutPoint point) {
+        List<ColorTrack> res = tracksByOutPoint.get(point.getHash(), point.getIndex());
+        for (ColorTrack track : mappedTracks) {
+            if (track.outputs.containsOutPoint(point.getHash(), point.getIndex())) {
+                if (res.isEmpty())
+                    res = Lists.newArrayListWithCapacity(1);
+                res.add(track);
+            }
+        }
+        return res;
+    }
+
+    boolean contains(TransactionOutPoint point) {
+        if (tracksByOutPoint.contains(point.getHash(), point.getIndex()))
+            return true;
+        for (ColorTrack track : mappedTracks) {
+            if (track.outputs.containsOutPoint(point.getHash(), point.getIndex()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The tracks that color any of the inputs of the transaction.  The kernel only moves color from
+     * inputs to outputs, so these are the only tracks that can color its outputs.
+     */
+    Set<ColorTrack> getSpentTracks(Transaction tx) {
+        Set<ColorTrack> res = Sets.newLinkedHashSet();
+        for (TransactionInput input : tx.getInputs()) {
+            res.addAll(get(input.getOutpoint()));
+        }
+        return res;
+    }
+}
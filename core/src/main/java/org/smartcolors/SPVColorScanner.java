@@ -1,6 +1,7 @@
 package org.smartcolors;
 
 import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.SettableFuture;
 import org.bitcoinj.core.*;
@@ -11,13 +12,19 @@ import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartcolors.core.ColorDefinition;
+import org.smartcolors.core.ColorKernel;
 import org.smartcolors.core.SmartColors;
+import org.smartcolors.marshal.MerbinnerTree;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * A blockchain and peer listener that keeps a set of color trackers updated with blockchain events.
  * <p/>
@@ -29,6 +36,8 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> implements PeerFilterProvider, BlockChainListener {
     private static final Logger log = LoggerFactory.getLogger(SPVColorScanner.class);
+    /** Blocks this deep are assumed to never be reorganized away */
+    public static final int DEFAULT_FINALITY_DEPTH = 100;
 
     private final AbstractPeerEventListener peerEventListener;
 
@@ -37,6 +46,18 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
     protected final ReentrantLock filterLock = Threading.lock("colorScannerFilter");
     @GuardedBy("lock")
     SetMultimap<Sha256Hash, SortedTransaction> mapBlockTx = TreeMultimap.create();
+    // The blocks in mapBlockTx by height, for pruning
+    @GuardedBy("lock")
+    private final TreeMultimap<Integer, Sha256Hash> blocksByHeight = TreeMultimap.create();
+    // Blocks in mapBlockTx whose height we don't know yet, because they were deserialized
+    @GuardedBy("lock")
+    private final Set<Sha256Hash> blocksWithoutHeight = Sets.newHashSet();
+    private volatile int finalityDepth = DEFAULT_FINALITY_DEPTH;
+    // Tracks by their genesis outpoints
+    @GuardedBy("lock")
+    private final OutPointTable<SPVColorTrack> genesisTracks = new OutPointTable<SPVColorTrack>();
+    @Nullable
+    private File trackDirectory;
 
     public SPVColorScanner(NetworkParameters params) {
         super(params);
@@ -58,9 +79,157 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
         return peerEventListener;
     }
 
+    /**
+     * Keep the tracks of definitions added from now on in files under the directory, one
+     * subdirectory per definition, rather than on the heap.  See {@link SPVColorTrack#open}.
+     */
+    public void setTrackDirectory(@Nullable File trackDirectory) {
+        this.trackDirectory = trackDirectory;
+    }
+
     @Override
     protected SPVColorTrack makeTrack(ColorDefinition definition) {
-        return new SPVColorTrack(definition);
+        if (trackDirectory == null)
+            return new SPVColorTrack(definition);
+        try {
+            return SPVColorTrack.open(definition, new File(trackDirectory, definition.getHash().toString()));
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public void addDefinition(ColorDefinition definition) throws ColorDefinitionExists, ColorDefinitionOutdated {
+        lock.lock();
+        try {
+            super.addDefinition(definition);
+            final SPVColorTrack track = tracksByHash.get(definition.getHash());
+            definition.getOutPointGenesisPoints().visitAll(new MerbinnerTree.Visitor<TransactionOutPoint, Long>() {
+                @Override
+                public void visit(TransactionOutPoint point, Long value) {
+                    genesisTracks.put(point.getHash(), point.getIndex(), track);
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean removeDefinition(ColorDefinition def) {
+        lock.lock();
+        try {
+            SPVColorTrack track = tracksByHash.get(def.getHash());
+            if (track == null)
+                return false;
+            genesisTracks.removeAll(track);
+            return super.removeDefinition(def);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The tracks the transaction is relevant to - those it spends unspent color of, and those it
+     * creates genesis outputs for.  The transaction is walked once against the scanner wide
+     * indexes, so the cost depends on the colors the transaction touches rather than on the
+     * number of tracks.
+     */
+    @GuardedBy("lock")
+    Set<SPVColorTrack> getRelevantTracks(Transaction tx) {
+        Set<SPVColorTrack> res = null;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint point = input.getOutpoint();
+            for (ColorTrack found : outputIndex.get(point)) {
+                SPVColorTrack track = (SPVColorTrack) found;
+                if (track.isUnspent(point)) {
+                    if (res == null)
+                        res = Sets.newLinkedHashSet();
+                    res.add(track);
+                }
+            }
+        }
+        int numOutputs = tx.getOutputs().size();
+        for (int i = 0; i < numOutputs; i++) {
+            List<SPVColorTrack> found = genesisTracks.get(tx.getHash(), i);
+            if (!found.isEmpty()) {
+                if (res == null)
+                    res = Sets.newLinkedHashSet();
+                res.addAll(found);
+            }
+        }
+        return res == null ? Collections.<SPVColorTrack>emptySet() : res;
+    }
+
+    /**
+     * Add the transaction to all the tracks it is relevant to, decoding it once.  Tracks that
+     * already have it are skipped - after a crash the track files can be ahead of the wallet, and
+     * the blocks since the wallet was saved are replayed.
+     */
+    @GuardedBy("lock")
+    private void addToTracks(Transaction tx) {
+        Set<SPVColorTrack> relevant = getRelevantTracks(tx);
+        ColorKernel kernel = null;
+        for (SPVColorTrack track : relevant) {
+            if (track.contains(tx))
+                continue;
+            if (kernel == null)
+                kernel = ColorKernel.compile(tx);
+            track.add(tx, kernel);
+        }
+    }
+
+    /**
+     * Set how deep a block must be before its transactions are forgotten.  A reorganization
+     * deeper than this can't be undone, so it should be well beyond any reorganization expected
+     * on the chain.
+     */
+    public void setFinalityDepth(int finalityDepth) {
+        checkArgument(finalityDepth > 0);
+        this.finalityDepth = finalityDepth;
+    }
+
+    public int getFinalityDepth() {
+        return finalityDepth;
+    }
+
+    /** Forget the transactions of blocks that are final as of the best block */
+    @GuardedBy("lock")
+    private void prune(int bestHeight) {
+        // Only now do we know a height that is at least that of any deserialized block
+        for (Sha256Hash hash : blocksWithoutHeight) {
+            blocksByHeight.put(bestHeight, hash);
+        }
+        blocksWithoutHeight.clear();
+        SortedMap<Integer, Collection<Sha256Hash>> finalBlocks =
+                blocksByHeight.asMap().headMap(bestHeight - finalityDepth + 1);
+        if (finalBlocks.isEmpty())
+            return;
+        for (Collection<Sha256Hash> hashes : finalBlocks.values()) {
+            for (Sha256Hash hash : hashes) {
+                mapBlockTx.removeAll(hash);
+            }
+        }
+        finalBlocks.clear();
+    }
+
+    /** Write the stored tracks to the disk.  Called when the wallet is saved. */
+    public void flushTracks() {
+        lock.lock();
+        try {
+            for (SPVColorTrack track : tracks) {
+                track.flush();
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void stop() {
+        flushTracks();
     }
 
     @Override
@@ -70,6 +239,7 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
         try {
             futures = Lists.newArrayList(unknownTransactionFutures.values());
             unknownTransactionFutures.clear();
+            prune(block.getHeight());
         } finally {
             lock.unlock();
         }
@@ -91,29 +261,26 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
 
     private void doReorganize(List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
         log.info("reorganize {} -> {}", newBlocks.size(), oldBlocks.size());
-        // Remove transactions from old blocks
+        if (oldBlocks.size() >= finalityDepth)
+            log.warn("reorganization of {} blocks is deeper than the finality depth, transactions of pruned blocks are not undone", oldBlocks.size());
+        // Remove transactions from old blocks.  Transactions that are topologically later are
+        // removed along with the earliest one, so roll each track back to before that one.
         for (SPVColorTrack track : tracks) {
-            blocks:
+            int checkpoint = track.getCheckpoint();
             for (StoredBlock block : oldBlocks) {
                 for (SortedTransaction tx : mapBlockTx.get(block.getHeader().getHash())) {
-                    if (track.contains(tx.tx)) {
-                        track.undo(tx.tx);
-                        // Transactions that are topologically later are automatically removed by
-                        // ColorTrack.undo, so we can break here.
-                        break blocks;
-                    }
+                    int position = track.getPosition(tx.tx);
+                    if (position >= 0)
+                        checkpoint = Math.min(checkpoint, position);
                 }
             }
+            track.rollback(checkpoint);
         }
 
         // Add transactions from new blocks
-        for (SPVColorTrack track : tracks) {
-            for (StoredBlock block : newBlocks) {
-                for (SortedTransaction tx : mapBlockTx.get(block.getHeader().getHash())) {
-                    if (track.isTransactionRelevant(tx.tx)) {
-                        track.add(tx.tx);
-                    }
-                }
+        for (StoredBlock block : newBlocks) {
+            for (SortedTransaction tx : mapBlockTx.get(block.getHeader().getHash())) {
+                addToTracks(tx.tx);
             }
         }
     }
@@ -135,12 +302,9 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
         try {
             log.info("receive {} {}", tx, relativityOffset);
             mapBlockTx.put(block.getHeader().getHash(), new SortedTransaction(tx, relativityOffset));
+            blocksByHeight.put(block.getHeight(), block.getHeader().getHash());
             if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
-                for (SPVColorTrack track : tracks) {
-                    if (track.isTransactionRelevant(tx)) {
-                        track.add(tx);
-                    }
-                }
+                addToTracks(tx);
                 futures = unknownTransactionFutures.removeAll(tx);
             }
         } finally {
@@ -165,10 +329,12 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
         }
 
         // Try some more while our genesis points don't have OP_RETURN
-        for (SPVColorTrack track : tracks) {
-            if (track.isTransactionRelevant(tx)) {
+        lock.lock();
+        try {
+            if (!getRelevantTracks(tx).isEmpty())
                 return true;
-            }
+        } finally {
+            lock.unlock();
         }
 
         log.info("not relevant");
@@ -246,6 +412,9 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
 
     void setMapBlockTx(SetMultimap<Sha256Hash, SortedTransaction> mapBlockTx) {
         this.mapBlockTx = mapBlockTx;
+        blocksByHeight.clear();
+        blocksWithoutHeight.clear();
+        blocksWithoutHeight.addAll(mapBlockTx.keySet());
     }
 
     SetMultimap<Sha256Hash, SortedTransaction> getMapBlockTx() {
@@ -274,5 +443,7 @@ public class SPVColorScanner extends AbstractColorScanner<SPVColorTrack> impleme
     @Override
     public void doReset() {
         mapBlockTx.clear();
+        blocksByHeight.clear();
+        blocksWithoutHeight.clear();
     }
 }
@@ -1,18 +1,22 @@
 package org.smartcolors;
 
 import com.google.common.base.Throwables;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
 import org.smartcolors.core.ColorDefinition;
+import org.smartcolors.core.ColorKernel;
 import org.smartcolors.core.SmartColors;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndex;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -22,16 +26,42 @@ import static com.google.common.base.Preconditions.checkState;
  * to the genesis points. Also manages updates to the track as
  * blocks/transactions are added/removed.
  * <p>Also used to update bloom filters for SPV scanning
+ * <p>The state is on the heap, unless the track was opened with {@link #open}, which keeps it in
+ * files under a directory - outputs and unspent outputs in memory-mapped tables and the
+ * transactions in a log.  A stored track is reopened without reading it in.
  */
-public class SPVColorTrack extends ColorTrack {
+public class SPVColorTrack extends ColorTrack implements Closeable {
     public static final String SMART_ASSET_MARKER = "SMARTASS";
-    private Map<TransactionOutPoint, Long> unspentOutputs;
-    private TreeSet<SortedTransaction> txs;
+    /** The number of latest transactions that can be undone from the journal */
+    public static final int JOURNAL_SIZE = 10000;
+    private OutPointValueMap unspentOutputs;
+    private final TransactionLog txs;
+    // Undo records of the latest transactions, the first for the transaction at journalStart
+    private final List<UndoRecord> journal = Lists.newArrayList();
+    private int journalStart;
 
     public SPVColorTrack(ColorDefinition definition) {
         super(definition);
-        unspentOutputs = Maps.newHashMap();
-        txs = Sets.newTreeSet();
+        unspentOutputs = new OutPointValueMap(definition.getParams());
+        txs = new TransactionLog(definition.getParams());
+    }
+
+    private SPVColorTrack(ColorDefinition definition, OutPointValueMap outputs, OutPointValueMap unspentOutputs, TransactionLog txs) {
+        super(definition, outputs);
+        this.unspentOutputs = unspentOutputs;
+        this.txs = txs;
+        this.journalStart = txs.size();
+    }
+
+    /** Open a track stored under the directory, creating it if needed */
+    public static SPVColorTrack open(ColorDefinition definition, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("could not create " + directory);
+        NetworkParameters params = definition.getParams();
+        return new SPVColorTrack(definition,
+                OutPointValueMap.open(params, new File(directory, "outputs")),
+                OutPointValueMap.open(params, new File(directory, "unspent")),
+                TransactionLog.open(params, new File(directory, "txs")));
     }
 
     /**
@@ -43,19 +73,19 @@ public class SPVColorTrack extends ColorTrack {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
             //bos.write(definition.getHash().getBytes());
-            for (TransactionOutPoint point : outputOrdering.immutableSortedCopy(outputs.keySet())) {
+            for (TransactionOutPoint point : sortOutPoints(outputs.keySet())) {
                 bos.write(point.bitcoinSerialize());
                 Utils.uint32ToByteStreamLE(outputs.get(point), bos);
             }
             bos.write(new byte[1]);
-            for (TransactionOutPoint point : outputOrdering.immutableSortedCopy(unspentOutputs.keySet())) {
+            for (TransactionOutPoint point : sortOutPoints(unspentOutputs.keySet())) {
                 bos.write(point.bitcoinSerialize());
                 Utils.uint32ToByteStreamLE(unspentOutputs.get(point), bos);
             }
             bos.write(new byte[1]);
-            for (SortedTransaction tx : txs) {
-                bos.write(tx.tx.getHash().getBytes());
-                bos.write(new VarInt(tx.index).encode());
+            for (int i = 0; i < txs.size(); i++) {
+                bos.write(txs.getHash(i).getBytes());
+                bos.write(new VarInt(i).encode());
             }
         } catch (IOException e) {
             Throwables.propagate(e);
@@ -63,6 +93,25 @@ public class SPVColorTrack extends ColorTrack {
         return Sha256Hash.of(bos.toByteArray());
     }
 
+    /**
+     * A commitment to the same state as {@link #getStateHash()}, kept up to date as transactions are
+     * added and undone.  The first call reads the whole state, later calls do not depend on its
+     * size.
+     * <p/>
+     * <p>It is the hash of the {@link OutPointValueMap#getDigest digests} of the outputs, the
+     * unspent outputs and the transactions, so it does not depend on the order of changes and two
+     * tracks with the same state have the same commitment, also across nodes.  The digests are
+     * multiset hashes, so a different state with the same commitment can't be crafted.  It
+     * differs from the state hash.</p>
+     */
+    public Sha256Hash getStateCommitment() {
+        byte[] bytes = new byte[96];
+        System.arraycopy(outputs.getDigest(), 0, bytes, 0, 32);
+        System.arraycopy(unspentOutputs.getDigest(), 0, bytes, 32, 32);
+        System.arraycopy(txs.getDigest(), 0, bytes, 64, 32);
+        return Sha256Hash.of(bytes);
+    }
+
     /**
      * Add a new transaction to the track.  outputs and unspentOutputs will be updated.
      * <p/>
@@ -71,68 +120,128 @@ public class SPVColorTrack extends ColorTrack {
      * transactions are added before the transaction itself.</p>
      */
     @Override
-    public void add(Transaction tx) {
+    public void add(Transaction tx, ColorKernel kernel) {
         int numOutputs = tx.getOutputs().size();
         // Check that the tx is being added in topological order - i.e. that none of its outputs
         // are spent by transactions already added.
         for (int i = 0; i < numOutputs; i++) {
             checkState(!outputs.containsKey(tx.getOutput(i).getOutPointFor()));
         }
+        UndoRecord undo = new UndoRecord(tx.getHash());
         // Add genesis outpoints to the output maps
         for (int i = 0; i < numOutputs; i++) {
             if (definition.contains(tx.getOutput(i).getOutPointFor())) {
                 long qty = SmartColors.removeMsbdropValuePadding(tx.getOutput(i).getValue().value);
-                outputs.put(tx.getOutput(i).getOutPointFor(), qty);
-                unspentOutputs.put(tx.getOutput(i).getOutPointFor(), qty);
+                putOutput(tx.getOutput(i).getOutPointFor(), qty);
+                unspentOutputs.putValue(tx.getOutput(i).getOutPointFor(), qty);
+                undo.addOutput(i);
             }
         }
 
-        Long[] colorOut = applyKernel(tx);
+        long[] colorOut = applyKernelUnboxed(kernel);
 
-        for (int i = 0; i < colorOut.length; i++) {
-            if (colorOut[i] != null) {
-                TransactionOutPoint outPoint = new TransactionOutPoint(tx.getParams(), i, tx);
-                outputs.put(outPoint, colorOut[i]);
-                unspentOutputs.put(outPoint, colorOut[i]);
+        if (colorOut != null) {
+            for (int i = 0; i < numOutputs; i++) {
+                if (colorOut[i] != ColorDefinition.UNCOLORED) {
+                    TransactionOutPoint outPoint = new TransactionOutPoint(tx.getParams(), i, tx);
+                    putOutput(outPoint, colorOut[i]);
+                    unspentOutputs.putValue(outPoint, colorOut[i]);
+                    undo.addOutput(i);
+                }
             }
         }
 
         // Remove spent
         for (TransactionInput input : tx.getInputs()) {
-            unspentOutputs.remove(input.getOutpoint());
+            Long value = unspentOutputs.remove(input.getOutpoint());
+            if (value != null)
+                undo.addSpent(input.getOutpoint(), value);
+        }
+        txs.add(tx);
+        journal.add(undo);
+        if (journal.size() >= 2 * JOURNAL_SIZE) {
+            // Forget the oldest half, those transactions are undone by recomputing
+            int forget = journal.size() - JOURNAL_SIZE;
+            journal.subList(0, forget).clear();
+            journalStart += forget;
         }
-        txs.add(new SortedTransaction(tx, txs.size()));
     }
 
     public boolean contains(Transaction tx) {
-        return txs.contains(new SortedTransaction(tx, 0));
+        return txs.contains(tx);
+    }
+
+    /** The position of the transaction in the track, or -1 if it was not added */
+    public int getPosition(Transaction tx) {
+        return txs.indexOf(tx.getHash());
     }
 
     /** Undoes all adds at and after the transaction */
     public void undo(Transaction tx) {
-        checkArgument(txs.contains(new SortedTransaction(tx, 0)));
-        while (true) {
-            if (tx.equals(undoLast()))
-                break;
+        int position = getPosition(tx);
+        checkArgument(position >= 0);
+        rollback(position);
+    }
+
+    /** A checkpoint to {@link #rollback} to, undoing any transactions added later */
+    public int getCheckpoint() {
+        return txs.size();
+    }
+
+    /**
+     * Undoes the adds after the checkpoint.  Journaled transactions are undone in time
+     * proportional to the changes they made, without reading them back.
+     */
+    public void rollback(int checkpoint) {
+        checkPositionIndex(checkpoint, txs.size());
+        while (txs.size() > checkpoint) {
+            int last = txs.size() - 1;
+            if (last >= journalStart) {
+                revert(journal.remove(last - journalStart));
+                txs.truncate(last);
+            } else {
+                undoLast();
+            }
+        }
+    }
+
+    private void revert(UndoRecord undo) {
+        NetworkParameters params = definition.getParams();
+        for (int i = 0; i < undo.numOutputs; i++) {
+            TransactionOutPoint point = new TransactionOutPoint(params, undo.outputs[i], undo.hash);
+            removeOutput(point);
+            unspentOutputs.remove(point);
+        }
+        for (int i = 0; i < undo.numSpent; i++) {
+            unspentOutputs.putValue(undo.spent[i], undo.spentValues[i]);
         }
     }
 
     /** Undoes the last add transaction */
     public Transaction undoLast() {
-        Transaction tx = txs.pollLast().tx;
+        int last = txs.size() - 1;
+        if (last >= 0 && last >= journalStart) {
+            Transaction tx = txs.get(last);
+            rollback(last);
+            return tx;
+        }
+        // Not journaled, recompute the changes from the transaction
+        Transaction tx = txs.removeLast();
+        journalStart = txs.size();
         int numInputs = tx.getInputs().size();
         int numOutputs = tx.getOutputs().size();
         for (int i = 0; i < numOutputs; i++) {
             TransactionOutPoint point = new TransactionOutPoint(tx.getParams(), i, tx);
             if (outputs.containsKey(point)) {
-                outputs.remove(point);
+                removeOutput(point);
                 unspentOutputs.remove(point);
             }
         }
         for (int i = 0; i < numInputs; i++) {
             TransactionOutPoint point = tx.getInput(i).getOutpoint();
-            if (outputs.containsKey(point)) {
-                unspentOutputs.put(point, outputs.get(point));
+            Long value = outputs.get(point);
+            if (value != null) {
+                unspentOutputs.put(point, value);
             }
         }
         return tx;
@@ -150,8 +259,13 @@ public class SPVColorTrack extends ColorTrack {
                 return true;
             }
         }
-        int numOutputs = tx.getOutputs().size();
         // Contains a genesis point?
+        return hasGenesisOutput(tx);
+    }
+
+    /** Whether any output of the transaction is a genesis point of our color */
+    boolean hasGenesisOutput(Transaction tx) {
+        int numOutputs = tx.getOutputs().size();
         for (int i = 0; i < numOutputs; i++) {
             if (definition.contains(tx.getOutput(i).getOutPointFor())) {
                 return true;
@@ -160,6 +274,11 @@ public class SPVColorTrack extends ColorTrack {
         return false;
     }
 
+    /** Whether the outpoint carries our color and is not spent yet */
+    boolean isUnspent(TransactionOutPoint point) {
+        return unspentOutputs.containsKey(point);
+    }
+
     /** The creation time of our color definition, so we know where to SPV scan from */
     public long getCreationTime() {
         return definition.getCreationTime();
@@ -184,11 +303,11 @@ public class SPVColorTrack extends ColorTrack {
         StringBuilder builder = new StringBuilder();
         builder.append("[ColorProof");
         builder.append(" name=" + definition.getName() + " hash=" + definition.getHash());
-        builder.append("\n State hash: ");
-        builder.append(getStateHash());
+        builder.append("\n State commitment: ");
+        builder.append(getStateCommitment());
         builder.append("\n All:\n");
 
-        for (TransactionOutPoint point : outputOrdering.immutableSortedCopy(outputs.keySet())) {
+        for (TransactionOutPoint point : sortOutPoints(outputs.keySet())) {
             builder.append("  ");
             builder.append(point.toString());
             builder.append(" = ");
@@ -196,7 +315,7 @@ public class SPVColorTrack extends ColorTrack {
             builder.append("\n");
         }
         builder.append("\nUnspent:\n");
-        for (TransactionOutPoint point : outputOrdering.immutableSortedCopy(unspentOutputs.keySet())) {
+        for (TransactionOutPoint point : sortOutPoints(unspentOutputs.keySet())) {
             builder.append("  ");
             builder.append(point.toString());
             builder.append(" = ");
@@ -212,18 +331,82 @@ public class SPVColorTrack extends ColorTrack {
         super.reset();
         unspentOutputs.clear();
         txs.clear();
+        journal.clear();
+        journalStart = 0;
     }
 
-    void setUnspentOutputs(Map<TransactionOutPoint, Long> unspentOutputs) {
-        this.unspentOutputs = unspentOutputs;
+    void setUnspentOutputs(OutPointValueMap unspentOutputs) {
+        if (isStored()) {
+            this.unspentOutputs.clear();
+            this.unspentOutputs.putAll(unspentOutputs);
+        } else {
+            this.unspentOutputs = unspentOutputs;
+        }
     }
 
-    void setTxs(TreeSet<SortedTransaction> txs) {
-        this.txs = txs;
+    /** Replace the transactions, which must be in order */
+    void setTxs(Iterable<SortedTransaction> txs) {
+        this.txs.clear();
+        for (SortedTransaction tx : txs) {
+            this.txs.add(tx.tx);
+        }
+        // The changes of these were not seen
+        journal.clear();
+        journalStart = this.txs.size();
     }
 
-    TreeSet<SortedTransaction> getTxs() {
+    TransactionLog getTxs() {
         return txs;
     }
 
+    /** Whether the track is kept in files */
+    public boolean isStored() {
+        return txs.isStored();
+    }
+
+    /** Write the changes of a stored track to the disk */
+    public void flush() throws IOException {
+        outputs.flush();
+        unspentOutputs.flush();
+        txs.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputs.close();
+        unspentOutputs.close();
+        txs.close();
+    }
+
+    /** The changes made by adding a transaction */
+    private static class UndoRecord {
+        private final Sha256Hash hash;
+        // Colored outputs of the transaction, by index
+        private int[] outputs = new int[2];
+        private int numOutputs;
+        // Unspent outpoints the transaction spent, with their value
+        private TransactionOutPoint[] spent = new TransactionOutPoint[2];
+        private long[] spentValues = new long[2];
+        private int numSpent;
+
+        UndoRecord(Sha256Hash hash) {
+            this.hash = hash;
+        }
+
+        void addOutput(int index) {
+            if (numOutputs == outputs.length)
+                outputs = Arrays.copyOf(outputs, numOutputs * 2);
+            outputs[numOutputs++] = index;
+        }
+
+        void addSpent(TransactionOutPoint point, long value) {
+            if (numSpent == spent.length) {
+                spent = Arrays.copyOf(spent, numSpent * 2);
+                spentValues = Arrays.copyOf(spentValues, numSpent * 2);
+            }
+            spent[numSpent] = point;
+            spentValues[numSpent] = value;
+            numSpent++;
+        }
+    }
 }
@@ -14,6 +14,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartcolors.core.ColorDefinition;
 import org.smartcolors.core.SmartColors;
+import org.smartcolors.core.ValidatedProofCache;
 import org.smartcolors.protos.Protos;
 
 import java.io.IOException;
@@ -128,6 +129,12 @@ public class SmartwalletExtension implements WalletExtension {
         for (ColorTrack track : scanner.getColorTracks()) {
             scannerBuilder.addTracks(serializeTrack((ClientColorTrack) track));
         }
+        ValidatedProofCache cache = scanner.getValidatedProofCache();
+        if (cache != null) {
+            for (HashCode hash : cache.getHashes()) {
+                scannerBuilder.addValidatedProofs(getHash(hash));
+            }
+        }
         return scannerBuilder.build();
     }
 
@@ -156,6 +163,16 @@ public class SmartwalletExtension implements WalletExtension {
 
     Protos.ColorTrack serializeTrack(SPVColorTrack track) {
         Protos.ColorTrack.Builder trackBuilder = Protos.ColorTrack.newBuilder();
+        if (track.isStored()) {
+            // The state is in the files of the track, only the definition goes in the wallet
+            try {
+                track.flush();
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            serializeDefinition(track, trackBuilder);
+            return trackBuilder.build();
+        }
         serializeTrack(track, trackBuilder);
         for (Map.Entry<TransactionOutPoint, Long> entry : track.getUnspentOutputs().entrySet()) {
             trackBuilder.addUnspentOutputs(Protos.OutPointValue.newBuilder()
@@ -178,6 +195,10 @@ public class SmartwalletExtension implements WalletExtension {
                     .setIndex(entry.getKey().getIndex())
                     .setValue(entry.getValue()));
         }
+        serializeDefinition(track, trackBuilder);
+    }
+
+    private void serializeDefinition(ColorTrack track, Protos.ColorTrack.Builder trackBuilder) {
         try {
             trackBuilder.setColorDefinition(Protos.ColorDefinition.newBuilder()
                             .setHash(getHash(track.getDefinition().getHash()))
@@ -290,11 +311,22 @@ public class SmartwalletExtension implements WalletExtension {
             pending.put(tx.getHash(), tx);
         }
         scanner.setPending(pending);
+
+        ValidatedProofCache cache = scanner.getValidatedProofCache();
+        if (cache != null) {
+            for (ByteString bytes : proto.getValidatedProofsList()) {
+                cache.add(getHash(bytes));
+            }
+        }
     }
 
     static void deserializeTrackSPV(NetworkParameters params, Protos.ColorTrack trackp, SPVColorTrack track) {
+        if (track.isStored() && trackp.getOutputsCount() == 0 && trackp.getUnspentOutputsCount() == 0 && trackp.getTxsCount() == 0) {
+            // Saved from a stored track, the files of the track are up to date
+            return;
+        }
         deserializeTrack(params, trackp, track);
-        Map<TransactionOutPoint, Long> unspentOutputs = Maps.newHashMap();
+        OutPointValueMap unspentOutputs = new OutPointValueMap(params, trackp.getUnspentOutputsCount());
         for (Protos.OutPointValue outp : trackp.getUnspentOutputsList()) {
             TransactionOutPoint out = new TransactionOutPoint(params, outp.getIndex(), getSha256Hash(outp.getHash()));
             unspentOutputs.put(out, outp.getValue());
@@ -310,7 +342,7 @@ public class SmartwalletExtension implements WalletExtension {
     }
 
     private static void deserializeTrack(NetworkParameters params, Protos.ColorTrack trackp, ColorTrack track) {
-        Map<TransactionOutPoint, Long> outputs = Maps.newHashMap();
+        OutPointValueMap outputs = new OutPointValueMap(params, trackp.getOutputsCount());
         for (Protos.OutPointValue outp : trackp.getOutputsList()) {
             TransactionOutPoint out = new TransactionOutPoint(params, outp.getIndex(), getSha256Hash(outp.getHash()));
             outputs.put(out, outp.getValue());
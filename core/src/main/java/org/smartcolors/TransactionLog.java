@@ -0,0 +1,307 @@
+package org.smartcolors;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkPositionIndex;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * The transactions of a track in the order they were added.
+ * <p/>
+ * <p>The transactions are kept in memory by default.  {@link #open} keeps them in an append-only
+ * file instead, with only the record offsets in memory, and reads a transaction back when it is
+ * needed.  Removing the last transaction truncates the file.  Appends reach the disk on
+ * {@link #flush()} or {@link #close()}, and a record cut short by a crash is dropped on open.</p>
+ * <p/>
+ * <p>Record format: the transaction hash, the length of the transaction as four bytes and the
+ * serialized transaction.</p>
+ */
+public class TransactionLog implements Iterable<SortedTransaction>, Closeable {
+    private static final int MAGIC = 0x5343544c;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 36;
+
+    private final NetworkParameters params;
+    // Position of each transaction by hash, keyed as the outpoint with index zero
+    private final OutPointValueMap positions;
+    // In memory mode
+    @Nullable
+    private final List<Transaction> txs;
+    // In file mode
+    @Nullable
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long[] offsets;
+    private int size;
+    private long end;
+
+    public TransactionLog(NetworkParameters params) {
+        this.params = params;
+        this.positions = new OutPointValueMap(params);
+        this.txs = Lists.newArrayList();
+        this.file = null;
+    }
+
+    private TransactionLog(NetworkParameters params, File file) {
+        this.params = params;
+        this.positions = new OutPointValueMap(params);
+        this.txs = null;
+        this.file = file;
+        this.offsets = new long[16];
+    }
+
+    /** Open a log in a file, creating the file if it does not exist */
+    public static TransactionLog open(NetworkParameters params, File file) throws IOException {
+        TransactionLog log = new TransactionLog(params, file);
+        log.raf = new RandomAccessFile(file, "rw");
+        log.channel = log.raf.getChannel();
+        try {
+            log.load();
+        } catch (IOException e) {
+            log.raf.close();
+            throw e;
+        }
+        return log;
+    }
+
+    private void load() throws IOException {
+        long length = channel.size();
+        if (length == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+            end = FILE_HEADER_LENGTH;
+            return;
+        }
+        ByteBuffer header = readFully(0, FILE_HEADER_LENGTH);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException("not a transaction log " + file);
+        long pos = FILE_HEADER_LENGTH;
+        byte[] hash = new byte[32];
+        while (pos + RECORD_HEADER_LENGTH <= length) {
+            ByteBuffer recordHeader = readFully(pos, RECORD_HEADER_LENGTH);
+            recordHeader.get(hash);
+            int txLength = recordHeader.getInt();
+            if (txLength < 0 || pos + RECORD_HEADER_LENGTH + txLength > length)
+                break;
+            index(Sha256Hash.wrap(hash.clone()), pos);
+            pos += RECORD_HEADER_LENGTH + txLength;
+        }
+        end = pos;
+        if (end < length) {
+            // Drop a record cut short by a crash
+            channel.truncate(end);
+        }
+    }
+
+    private ByteBuffer readFully(long pos, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf, pos + buf.position());
+    }
+
+    private void index(Sha256Hash hash, long offset) {
+        if (size == offsets.length)
+            offsets = Arrays.copyOf(offsets, size * 2);
+        offsets[size] = offset;
+        positions.putValue(key(hash), size);
+        size++;
+    }
+
+    private TransactionOutPoint key(Sha256Hash hash) {
+        return new TransactionOutPoint(params, 0, hash);
+    }
+
+    /** Append a transaction, returning its position */
+    public int add(Transaction tx) {
+        if (txs != null) {
+            positions.putValue(key(tx.getHash()), txs.size());
+            txs.add(tx);
+            return txs.size() - 1;
+        }
+        byte[] bytes = tx.bitcoinSerialize();
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_LENGTH + bytes.length);
+        buf.put(tx.getHash().getBytes()).putInt(bytes.length).put(bytes).flip();
+        try {
+            writeFully(buf, end);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        index(tx.getHash(), end);
+        end += RECORD_HEADER_LENGTH + bytes.length;
+        return size - 1;
+    }
+
+    public boolean contains(Transaction tx) {
+        return positions.containsOutPoint(tx.getHash(), 0);
+    }
+
+    /** The position of the transaction, or -1 if it is not in the log */
+    public int indexOf(Sha256Hash hash) {
+        return (int) positions.getValue(key(hash), -1);
+    }
+
+    /** A commitment to the transaction hashes and their positions, see {@link OutPointValueMap#getDigest} */
+    public byte[] getDigest() {
+        return positions.getDigest();
+    }
+
+    public int size() {
+        return txs != null ? txs.size() : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** The transaction at the position */
+    public Transaction get(int position) {
+        checkElementIndex(position, size());
+        if (txs != null)
+            return txs.get(position);
+        try {
+            ByteBuffer recordHeader = readFully(offsets[position], RECORD_HEADER_LENGTH);
+            recordHeader.position(32);
+            int txLength = recordHeader.getInt();
+            ByteBuffer body = readFully(offsets[position] + RECORD_HEADER_LENGTH, txLength);
+            return new Transaction(params, body.array());
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /** The hash of the transaction at the position, without reading the transaction */
+    public Sha256Hash getHash(int position) {
+        checkElementIndex(position, size());
+        if (txs != null)
+            return txs.get(position).getHash();
+        try {
+            byte[] hash = new byte[32];
+            readFully(offsets[position], 32).get(hash);
+            return Sha256Hash.wrap(hash);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /** Remove and return the last transaction */
+    public Transaction removeLast() {
+        checkState(!isEmpty());
+        Transaction tx = get(size() - 1);
+        truncate(size() - 1);
+        return tx;
+    }
+
+    /** Remove the transactions at and after the position, without reading them */
+    public void truncate(int position) {
+        checkPositionIndex(position, size());
+        for (int i = position; i < size(); i++) {
+            positions.remove(key(getHash(i)));
+        }
+        if (txs != null) {
+            txs.subList(position, txs.size()).clear();
+            return;
+        }
+        if (position == size)
+            return;
+        size = position;
+        end = offsets[size];
+        try {
+            channel.truncate(end);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public void clear() {
+        positions.clear();
+        if (txs != null) {
+            txs.clear();
+            return;
+        }
+        size = 0;
+        end = FILE_HEADER_LENGTH;
+        try {
+            channel.truncate(end);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /** The transactions with their positions, in order */
+    @Override
+    public Iterator<SortedTransaction> iterator() {
+        return new Iterator<SortedTransaction>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public SortedTransaction next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                SortedTransaction res = new SortedTransaction(get(next), next);
+                next++;
+                return res;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Whether the transactions are in a file */
+    public boolean isStored() {
+        return file != null;
+    }
+
+    public void flush() throws IOException {
+        if (channel != null)
+            channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (raf == null)
+            return;
+        flush();
+        raf.close();
+        raf = null;
+        channel = null;
+    }
+}
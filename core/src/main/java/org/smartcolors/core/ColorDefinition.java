@@ -6,11 +6,14 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
 import org.smartcolors.marshal.*;
 
+import javax.annotation.Nullable;
 import java.io.*;
+import java.util.Arrays;
 import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -28,6 +31,8 @@ public class ColorDefinition extends HashableSerializable {
     public static final String NETWORK_ID_INJECTABLE = "networkId";
     private final NetworkParameters params;
     public static final int MAX_COLOR_OUTPUTS = 32;
+    /** Marks an uncolored input or output in the primitive kernel arrays */
+    public static final long UNCOLORED = -1;
     public static final int VERSION = 1;
 
     public static final String METADATA_NAME = "name";
@@ -137,6 +142,36 @@ public class ColorDefinition extends HashableSerializable {
         return new ColorDefinition(params, outTree, scriptTree, Maps.<String, String>newHashMap(), blockheight, stegkey);
     }
 
+    /**
+     * Read a definition with its genesis trees pruned, keeping them in the buffer of the
+     * deserializer.  Genesis points are read from the buffer when looked up, so the buffer must
+     * not change while the definition is in use.
+     */
+    public static ColorDefinition deserializePruned(final NetworkParameters params, MappedDeserializer des) throws SerializationException {
+        long version = des.readVarulong();
+        if (version != VERSION)
+            throw new SerializationException("unknown version " + version);
+        long blockheight = des.readVarulong();
+        byte[] stegkey = des.readBytes(16);
+        GenesisOutPointsMerbinnerTree outTree = des.readObject(new Deserializer.ObjectReader<GenesisOutPointsMerbinnerTree>() {
+            @Override
+            public GenesisOutPointsMerbinnerTree readObject(Deserializer des) throws SerializationException {
+                MappedMerbinnerSource<TransactionOutPoint, Long> source =
+                        MappedMerbinnerSource.index(new GenesisOutPointsMerbinnerTree(params), (MappedDeserializer) des);
+                return new GenesisOutPointsMerbinnerTree(params, source.getRootHash(), source.getRootSum(), source);
+            }
+        });
+        GenesisScriptMerbinnerTree scriptTree = des.readObject(new Deserializer.ObjectReader<GenesisScriptMerbinnerTree>() {
+            @Override
+            public GenesisScriptMerbinnerTree readObject(Deserializer des) throws SerializationException {
+                MappedMerbinnerSource<Script, Void> source =
+                        MappedMerbinnerSource.index(new GenesisScriptMerbinnerTree(), (MappedDeserializer) des);
+                return new GenesisScriptMerbinnerTree(source.getRootHash(), source);
+            }
+        });
+        return new ColorDefinition(params, outTree, scriptTree, Maps.<String, String>newHashMap(), blockheight, stegkey);
+    }
+
     @JsonIgnore
     public String getName() {
         return metadata.get(METADATA_NAME);
@@ -157,46 +192,59 @@ public class ColorDefinition extends HashableSerializable {
      * @param colorIn   color qty of input
      * @param colorOuts color qty on each output - modified in place
      * @param tx        transferring transaction
+     * @throws ColorKernel.KernelException if the input can't transfer color
+     * @deprecated compiles the transaction and searches its inputs on every call - compile a
+     * {@link ColorKernel} once and use {@link #applyColorTransferred(ColorKernel, int, long, long[])}
+     * or {@link #applyKernel(ColorKernel, long[], long[])}
      */
+    @Deprecated
     public void applyColorTransferred(TransactionInput input, long colorIn, Long colorOuts[], Transaction tx) {
+        long[] outs = unbox(colorOuts);
+        applyColorTransferred(ColorKernel.compile(tx), tx.getInputs().indexOf(input), colorIn, outs);
+        box(outs, colorOuts);
+    }
+
+    /**
+     * Calculate the color transferred by a txin of a compiled kernel, without allocating
+     *
+     * @param input     the index of the input
+     * @param colorIn   color qty of input
+     * @param colorOuts color qty on each output, {@link #UNCOLORED} if not colored - modified in place
+     * @return whether any output was marked as colored
+     * @throws ColorKernel.KernelException if the input can't transfer color
+     */
+    public boolean applyColorTransferred(ColorKernel kernel, int input, long colorIn, long[] colorOuts) {
+        return applyColorTransferred(kernel.getBitfield(input), colorIn, colorOuts, kernel);
+    }
+
+    /**
+     * Calculate the color transferred by a decoded txin, without allocating
+     *
+     * @param colorBitfield the outputs the color goes to, as decoded from nSequence
+     * @param colorOuts     color qty on each output, {@link #UNCOLORED} if not colored - modified in place
+     * @return whether any output was marked as colored
+     */
+    private boolean applyColorTransferred(int colorBitfield, long colorIn, long[] colorOuts, ColorKernel kernel) {
         long remainingColorIn = colorIn;
-        int numOutputs = Math.min(tx.getOutputs().size(), MAX_COLOR_OUTPUTS);
+        boolean colored = false;
+        int numOutputs = kernel.getColorableOutputCount();
         // Which outputs the color in is being sent to is specified by nSequence.
-
-        long nseq = input.getSequenceNumber();
-        int kernel = (int) (nseq & 0x7F);
-        long decryptedNseq = nseq;
-        if ((nseq & 0x80) == 0x80)
-            throw new UnsupportedOperationException();
-        if (kernel == 0x7F)
-            throw new UnsupportedOperationException();
-        int qtyShift = 0;
-        int colorBitfield = 0;
-        if (kernel == 0x7E) {
-            qtyShift = (int) ((decryptedNseq >> 8) & 0xFF);
-            if (qtyShift > 0)
-                throw new UnsupportedOperationException();
-            colorBitfield = (int) ((decryptedNseq >> 16) & 0xFFFF);
-        } else {
-            throw new UnsupportedOperationException();
-        }
         for (int j = 0; j < numOutputs; j++) {
-            TransactionOutput output = tx.getOutput(j);
             // An output is marked as colored if the corresponding bit
             // in nSequence is set to one. This is chosen to allow
             // standard transactions with standard-looking nSquence's to
             // move color.
             if (remainingColorIn > 0 && ((colorBitfield >> j) & 1) == 1) {
                 // Mark the output as being colored if it hasn't been already.
-                if (colorOuts[j] == null)
-                    colorOuts[j] = 0L;
+                if (colorOuts[j] == UNCOLORED)
+                    colorOuts[j] = 0;
+                colored = true;
                 // Color is allocated to outputs "bucket-style", where
                 // each colored input adds to colored outputs until the
                 // output is "full". As color_out is modified in place the
                 // allocation is stateful - a previous txin can change where the
                 // next txin sends its quantity of color.
-                long maxColorOut = SmartColors.removeMsbdropValuePadding(output.getValue().value);
-                long transferred = Math.min(remainingColorIn, maxColorOut - colorOuts[j]);
+                long transferred = Math.min(remainingColorIn, kernel.getCapacity(j) - colorOuts[j]);
                 colorOuts[j] += transferred;
                 remainingColorIn -= transferred;
 
@@ -209,6 +257,7 @@ public class ColorDefinition extends HashableSerializable {
             // useful in the future to reduce track sizes for large
             // transactions.
         }
+        return colored;
     }
 
     /**
@@ -219,16 +268,53 @@ public class ColorDefinition extends HashableSerializable {
      *
      * @param colorIns color input values, by tx input
      * @return amount of color out indexed by vout index. Colored outputs are a non-zero integers, uncolored outputs are null.
+     * @throws ColorKernel.KernelException if color arrives on an input that can't transfer it
      */
     public Long[] applyKernel(Transaction tx, Long colorIns[]) {
-        Long[] colorOuts = new Long[tx.getOutputs().size()];
-        int numInputs = tx.getInputs().size();
+        long[] colorOuts = new long[tx.getOutputs().size()];
+        applyKernel(ColorKernel.compile(tx), unbox(colorIns), colorOuts);
+        Long[] res = new Long[colorOuts.length];
+        box(colorOuts, res);
+        return res;
+    }
+
+    /**
+     * Apply a compiled color kernel, without allocating.  Uncolored inputs and outputs are marked
+     * with {@link #UNCOLORED}.  The same kernel can be applied for any number of definitions.
+     *
+     * @param colorIns  color input values, by tx input
+     * @param colorOuts receives the color out, by vout index - must have room for the outputs
+     * @return whether any output is colored
+     * @throws ColorKernel.KernelException if color arrives on an input that can't transfer it
+     */
+    public boolean applyKernel(ColorKernel kernel, long[] colorIns, long[] colorOuts) {
+        Arrays.fill(colorOuts, 0, kernel.getOutputCount(), UNCOLORED);
+        boolean colored = false;
+        int numInputs = kernel.getInputCount();
         for (int i = 0; i < numInputs; i++) {
-            if (colorIns[i] != null) {
-                applyColorTransferred(tx.getInput(i), colorIns[i], colorOuts, tx);
+            if (colorIns[i] != UNCOLORED) {
+                if (applyColorTransferred(kernel.getBitfield(i), colorIns[i], colorOuts, kernel))
+                    colored = true;
             }
         }
-        return colorOuts;
+        return colored;
+    }
+
+    private static long[] unbox(Long[] values) {
+        long[] res = new long[values.length];
+        for (int i = 0; i < values.length; i++)
+            res[i] = values[i] == null ? UNCOLORED : values[i];
+        return res;
+    }
+
+    private static void box(long[] values, Long[] res) {
+        for (int i = 0; i < res.length; i++)
+            res[i] = values[i] == UNCOLORED ? null : values[i];
+    }
+
+    @JsonIgnore
+    public NetworkParameters getParams() {
+        return params;
     }
 
     /** Creation time in seconds since the epoch */
@@ -267,14 +353,14 @@ public class ColorDefinition extends HashableSerializable {
         builder.append(Utils.HEX.encode(stegkey));
         builder.append("\n  blockheight: " + blockheight);
         builder.append("\n");
-        for (TransactionOutPoint point : outPointGenesisPoints.keySet()) {
+        for (Map.Entry<TransactionOutPoint, Long> entry : outPointGenesisPoints.getAll().entrySet()) {
             builder.append("  ");
-            builder.append(point.toString());
+            builder.append(entry.getKey().toString());
             builder.append(" : ");
-            builder.append(outPointGenesisPoints.get(point));
+            builder.append(entry.getValue());
             builder.append("\n");
         }
-        for (Script script : scriptGenesisPoints.keySet()) {
+        for (Script script : scriptGenesisPoints.getAll().keySet()) {
             builder.append("  ");
             builder.append(script.getToAddress(params));
             builder.append("\n");
@@ -283,10 +369,12 @@ public class ColorDefinition extends HashableSerializable {
         return builder.toString();
     }
 
+    private static final byte[] HMAC_KEY = Utils.HEX.decode("1d8801c1323b4cc5d1b48b289d35aad0");
+
     @JsonIgnore
     @Override
     public byte[] getHmacKey() {
-        return Utils.HEX.decode("1d8801c1323b4cc5d1b48b289d35aad0");
+        return HMAC_KEY.clone();
     }
 
     @JsonIgnore
@@ -319,8 +407,32 @@ public class ColorDefinition extends HashableSerializable {
     public static final byte[] FILE_MAGIC = Utils.HEX.decode("00536d617274636f6c6f727300fcbe8800436f6c6f7264656600a8edddf21401");
 
     public static ColorDefinition deserializeFromFile(final NetworkParameters params, InputStream is) throws SerializationException {
-        MemoizedDeserializer des = new MemoizedDeserializer(is);
+        return deserializeFromFile(params, new MemoizedDeserializer(is));
+    }
+
+    /** Read a definition file through a read-only mapping */
+    public static ColorDefinition deserializeFromFile(final NetworkParameters params, File file) throws SerializationException {
+        return deserializeFromFile(params, MappedDeserializer.open(file));
+    }
+
+    /**
+     * Map a definition file, keeping only the index of the genesis trees in memory, see
+     * {@link #deserializePruned}.  The file must not change while the definition is in use.
+     */
+    public static ColorDefinition loadPruned(final NetworkParameters params, File file) throws SerializationException {
+        MappedDeserializer des = MappedDeserializer.open(file);
+        fileSerializer.readHeader(des);
+        ColorDefinition me = des.readObject(new Deserializer.ObjectReader<ColorDefinition>() {
+            @Override
+            public ColorDefinition readObject(Deserializer des) throws SerializationException {
+                return deserializePruned(params, (MappedDeserializer) des);
+            }
+        });
+        fileSerializer.verifyHash(des, me);
+        return me;
+    }
 
+    public static ColorDefinition deserializeFromFile(final NetworkParameters params, Deserializer des) throws SerializationException {
         fileSerializer.readHeader(des);
         ColorDefinition me = des.readObject(new Deserializer.ObjectReader<ColorDefinition>() {
             @Override
@@ -368,4 +480,83 @@ public class ColorDefinition extends HashableSerializable {
     public static long makeSequence() {
         return 0xFFFF007EL;
     }
+
+    /** The fields that the hash of this definition commits to, with the genesis trees as their roots */
+    @JsonIgnore
+    public Header getHeader() {
+        return new Header(params, blockheight, stegkey, outPointGenesisPoints.getHash(), scriptGenesisPoints.getHash(),
+                metadata.containsKey(METADATA_EXTRAHASH) ? metadata.get(METADATA_EXTRAHASH).getBytes() : null);
+    }
+
+    /**
+     * The fields of a definition that its hash commits to, with only the roots of the genesis trees.
+     * <p/>
+     * <p>A client that only knows the hash of a definition checks genesis points against it here.
+     * The header is first checked to hash to the definition hash, so a proof can't be verified
+     * against roots of another definition.</p>
+     */
+    public static class Header {
+        private final NetworkParameters params;
+        private final long blockheight;
+        private final byte[] stegkey;
+        private final HashCode outPointRoot;
+        private final HashCode scriptRoot;
+        @Nullable
+        private final byte[] extraHash;
+
+        /**
+         * @param extraHash the bytes of the {@link #METADATA_EXTRAHASH} metadata, if any
+         */
+        public Header(NetworkParameters params, long blockheight, byte[] stegkey, HashCode outPointRoot, HashCode scriptRoot, @Nullable byte[] extraHash) {
+            this.params = params;
+            this.blockheight = blockheight;
+            this.stegkey = stegkey;
+            this.outPointRoot = outPointRoot;
+            this.scriptRoot = scriptRoot;
+            this.extraHash = extraHash;
+        }
+
+        /** The hash of a definition with these fields, computed as {@link ColorDefinition#serialize} does */
+        public HashCode getHash() {
+            HashSerializer ser = new HashSerializer(HMAC_KEY.clone());
+            try {
+                ser.write(VERSION);
+                ser.write(blockheight);
+                ser.write(stegkey);
+                ser.write(outPointRoot.asBytes());
+                ser.write(scriptRoot.asBytes());
+                if (extraHash != null)
+                    ser.write(extraHash);
+                return ser.finish();
+            } catch (SerializationException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                ser.release();
+            }
+        }
+
+        /** Whether the proof shows the outpoint is a genesis point with the value, in the definition with the hash */
+        public boolean verifyGenesisOutPoint(HashCode definitionHash, MerbinnerProof proof, TransactionOutPoint point, long value) throws SerializationException {
+            return getHash().equals(definitionHash) &&
+                    new GenesisOutPointsMerbinnerTree(params).verify(proof, outPointRoot, point, value);
+        }
+
+        /** Whether the proof shows the outpoint is not a genesis point of the definition with the hash */
+        public boolean verifyNotGenesisOutPoint(HashCode definitionHash, MerbinnerProof proof, TransactionOutPoint point) throws SerializationException {
+            return getHash().equals(definitionHash) &&
+                    new GenesisOutPointsMerbinnerTree(params).verifyAbsent(proof, outPointRoot, point);
+        }
+
+        /** Whether the proof shows the script is a genesis script of the definition with the hash */
+        public boolean verifyGenesisScript(HashCode definitionHash, MerbinnerProof proof, Script script) throws SerializationException {
+            return getHash().equals(definitionHash) &&
+                    new GenesisScriptMerbinnerTree().verify(proof, scriptRoot, script, null);
+        }
+
+        /** Whether the proof shows the script is not a genesis script of the definition with the hash */
+        public boolean verifyNotGenesisScript(HashCode definitionHash, MerbinnerProof proof, Script script) throws SerializationException {
+            return getHash().equals(definitionHash) &&
+                    new GenesisScriptMerbinnerTree().verifyAbsent(proof, scriptRoot, script);
+        }
+    }
 }
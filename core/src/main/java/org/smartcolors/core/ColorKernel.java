@@ -0,0 +1,131 @@
+package org.smartcolors.core;
+
+import org.bitcoinj.core.Transaction;
+
+import javax.annotation.Nullable;
+
+/**
+ * The color kernel of a transaction, decoded once so it can be applied for any number of
+ * definitions.
+ * <p/>
+ * <p>The nSequence of every input is decoded into the bitfield of outputs its color goes to, and
+ * the color capacity of every colorable output is calculated.  Inputs that can't carry color are
+ * recorded with the reason, and a {@link KernelException} is thrown only if color actually
+ * arrives on such an input - uncolored inputs are free to use any nSequence.</p>
+ */
+public class ColorKernel {
+    /** Why an input can't transfer color */
+    public enum Reason {
+        ENCRYPTED_NSEQUENCE,
+        RESERVED_KERNEL,
+        UNSUPPORTED_QTY_SHIFT,
+        UNKNOWN_KERNEL
+    }
+
+    private static final Reason[] REASONS = Reason.values();
+
+    private final Transaction tx;
+    // Output bitfield by input, or -(reason ordinal + 1) if the input can't transfer color
+    private final int[] bitfields;
+    // Color capacity by output, up to MAX_COLOR_OUTPUTS
+    private final long[] capacities;
+
+    private ColorKernel(Transaction tx) {
+        this.tx = tx;
+        int numInputs = tx.getInputs().size();
+        bitfields = new int[numInputs];
+        for (int i = 0; i < numInputs; i++)
+            bitfields[i] = decode(tx.getInput(i).getSequenceNumber());
+        capacities = new long[Math.min(tx.getOutputs().size(), ColorDefinition.MAX_COLOR_OUTPUTS)];
+        for (int j = 0; j < capacities.length; j++)
+            capacities[j] = SmartColors.removeMsbdropValuePadding(tx.getOutput(j).getValue().value);
+    }
+
+    public static ColorKernel compile(Transaction tx) {
+        return new ColorKernel(tx);
+    }
+
+    /** Decode an nSequence into the bitfield of colored outputs, or -(reason ordinal + 1) */
+    static int decode(long nseq) {
+        int kernel = (int) (nseq & 0x7F);
+        if ((nseq & 0x80) == 0x80)
+            return encode(Reason.ENCRYPTED_NSEQUENCE);
+        if (kernel == 0x7F)
+            return encode(Reason.RESERVED_KERNEL);
+        if (kernel != 0x7E)
+            return encode(Reason.UNKNOWN_KERNEL);
+        int qtyShift = (int) ((nseq >> 8) & 0xFF);
+        if (qtyShift > 0)
+            return encode(Reason.UNSUPPORTED_QTY_SHIFT);
+        return (int) ((nseq >> 16) & 0xFFFF);
+    }
+
+    private static int encode(Reason reason) {
+        return -(reason.ordinal() + 1);
+    }
+
+    /** The bitfield of outputs the color of an input goes to, if the input can transfer color */
+    static int checkBitfield(int bitfield, int input) throws KernelException {
+        if (bitfield < 0)
+            throw new KernelException(REASONS[-bitfield - 1], input);
+        return bitfield;
+    }
+
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    public int getInputCount() {
+        return bitfields.length;
+    }
+
+    public int getOutputCount() {
+        return tx.getOutputs().size();
+    }
+
+    /** Whether color arriving on the input can be transferred */
+    public boolean canTransfer(int input) {
+        return bitfields[input] >= 0;
+    }
+
+    /** The reason color on the input can't be transferred, or null if it can */
+    @Nullable
+    public Reason getReason(int input) {
+        return bitfields[input] < 0 ? REASONS[-bitfields[input] - 1] : null;
+    }
+
+    /** The bitfield of outputs the color of the input goes to */
+    public int getBitfield(int input) throws KernelException {
+        return checkBitfield(bitfields[input], input);
+    }
+
+    /** The number of outputs that can be colored */
+    public int getColorableOutputCount() {
+        return capacities.length;
+    }
+
+    /** The most color the output can hold */
+    public long getCapacity(int output) {
+        return capacities[output];
+    }
+
+    /** Thrown when color arrives on an input that can't transfer it */
+    public static class KernelException extends UnsupportedOperationException {
+        private final Reason reason;
+        private final int input;
+
+        public KernelException(Reason reason, int input) {
+            super("input " + input + " can't transfer color: " + reason);
+            this.reason = reason;
+            this.input = input;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        public int getInput() {
+            return input;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.Utils;
 import org.smartcolors.marshal.*;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.*;
 
@@ -112,9 +113,11 @@ public abstract class ColorProof extends HashableSerializable {
             ser.write(quantity);
     }
 
+    private static final byte[] HMAC_KEY = Utils.HEX.decode("b96dae8e52cb124d01804353736a8384");
+
     @Override
     public byte[] getHmacKey() {
-        return Utils.HEX.decode("b96dae8e52cb124d01804353736a8384");
+        return HMAC_KEY.clone();
     }
 
     protected abstract int getType();
@@ -122,8 +125,15 @@ public abstract class ColorProof extends HashableSerializable {
     public static final byte[] FILE_MAGIC = Utils.HEX.decode("00536d617274636f6c6f727300f8acdc00436f6c6f7270726f6f6600cb93f2c5");
 
     public static ColorProof deserializeFromFile(final NetworkParameters params, InputStream is) throws SerializationException {
-        MemoizedDeserializer des = new MemoizedDeserializer(is);
+        return deserializeFromFile(params, new MemoizedDeserializer(is));
+    }
+
+    /** Read a proof file through a read-only mapping */
+    public static ColorProof deserializeFromFile(final NetworkParameters params, File file) throws SerializationException {
+        return deserializeFromFile(params, MappedDeserializer.open(file));
+    }
 
+    public static ColorProof deserializeFromFile(final NetworkParameters params, Deserializer des) throws SerializationException {
         FileSerializer fser = new FileSerializer() {
             @Override
             protected byte[] getMagic() {
@@ -141,14 +151,17 @@ public abstract class ColorProof extends HashableSerializable {
         return me;
     }
 
+    /** Validate this proof and the proofs it depends on, on the calling thread.  See {@link ProofValidator}. */
     public void validate() throws ValidationException {
-        Queue<ColorProof> queue = Queues.newArrayDeque();
-        queue.add(this);
-        while (!queue.isEmpty()) {
-            queue.poll().doValidate(queue);
-        }
+        validate(new ProofValidator());
+    }
+
+    /** Validate this proof and the proofs it depends on with the validator */
+    public ProofValidator.Report validate(ProofValidator validator) throws ValidationException {
+        return validator.validate(this);
     }
 
+    /** Validate this proof only, adding the proofs it depends on to the queue */
     protected abstract void doValidate(Queue<ColorProof> queue) throws ValidationException;
 
     public abstract TransactionOutPoint getOutPoint();
@@ -25,7 +25,7 @@ public class GenesisOutPointsMerbinnerTree extends MerbinnerTree<TransactionOutP
 
             @Override
             public HashCode getHash(TransactionOutPoint obj) {
-                return Hashes.calcHash(obj);
+                return getKeyHash(obj);
             }
         });
     }
@@ -47,14 +47,28 @@ public class GenesisOutPointsMerbinnerTree extends MerbinnerTree<TransactionOutP
 
     @Override
     protected void deserializeNode(Deserializer des) throws SerializationException {
-        TransactionOutPoint key = des.readObject(new Deserializer.ObjectReader<TransactionOutPoint>() {
+        TransactionOutPoint key = readKey(des);
+        put(key, readValue(des));
+    }
+
+    @Override
+    protected TransactionOutPoint readKey(Deserializer des) throws SerializationException {
+        return des.readObject(new Deserializer.ObjectReader<TransactionOutPoint>() {
             @Override
             public TransactionOutPoint readObject(Deserializer des) throws SerializationException {
                 return new TransactionOutPoint(params, des.readBytes(36), 0);
             }
         });
-        long value = des.readVarulong();
-        entries.put(key, value);
+    }
+
+    @Override
+    protected Long readValue(Deserializer des) throws SerializationException {
+        return des.readVarulong();
+    }
+
+    @Override
+    protected Long deserializeHashedValue(byte[] bytes) throws SerializationException {
+        return new BytesDeserializer(bytes).readVarulong();
     }
 
     @Override
@@ -62,9 +76,11 @@ public class GenesisOutPointsMerbinnerTree extends MerbinnerTree<TransactionOutP
         ser.write(sum);
     }
 
+    private static final byte[] HMAC_KEY = Utils.HEX.decode("d8497e1258c3f8e747341cb361676cee");
+
     @Override
     public byte[] getHmacKey() {
-        return Utils.HEX.decode("d8497e1258c3f8e747341cb361676cee");
+        return HMAC_KEY.clone();
     }
 
     public GenesisOutPointsMerbinnerTree(NetworkParameters params, Map<TransactionOutPoint, Long> nodes) {
@@ -76,4 +92,10 @@ public class GenesisOutPointsMerbinnerTree extends MerbinnerTree<TransactionOutP
         super(Maps.<TransactionOutPoint, Long>newHashMap());
         this.params = params;
     }
+
+    /** A pruned tree, looking up entries in the source */
+    public GenesisOutPointsMerbinnerTree(NetworkParameters params, HashCode hash, long sum, Source<TransactionOutPoint, Long> source) {
+        super(hash, sum, source);
+        this.params = params;
+    }
 }
@@ -23,7 +23,7 @@ public class GenesisScriptMerbinnerTree extends MerbinnerTree<Script, Void> {
 
             @Override
             public HashCode getHash(Script obj) {
-                return Hashes.calcHash(obj);
+                return getKeyHash(obj);
             }
         });
     }
@@ -44,7 +44,12 @@ public class GenesisScriptMerbinnerTree extends MerbinnerTree<Script, Void> {
 
     @Override
     protected void deserializeNode(Deserializer des) throws SerializationException {
-        Script key = des.readObject(new Deserializer.ObjectReader<Script>() {
+        put(readKey(des), null);
+    }
+
+    @Override
+    protected Script readKey(Deserializer des) throws SerializationException {
+        return des.readObject(new Deserializer.ObjectReader<Script>() {
             @Override
             public Script readObject(Deserializer des) throws SerializationException {
                 try {
@@ -54,16 +59,27 @@ public class GenesisScriptMerbinnerTree extends MerbinnerTree<Script, Void> {
                 }
             }
         });
-        entries.put(key, null);
+    }
+
+    @Override
+    protected Void readValue(Deserializer des) {
+        return null;
+    }
+
+    @Override
+    protected Void deserializeHashedValue(byte[] bytes) {
+        return null;
     }
 
     @Override
     protected void serializeSum(Serializer ser, long sum) throws SerializationException {
     }
 
+    private static final byte[] HMAC_KEY = Utils.HEX.decode("d431b155684582c6e0eef8b38d62321e");
+
     @Override
     public byte[] getHmacKey() {
-        return Utils.HEX.decode("d431b155684582c6e0eef8b38d62321e");
+        return HMAC_KEY.clone();
     }
 
     public GenesisScriptMerbinnerTree(Map<Script, Void> nodes) {
@@ -73,4 +89,9 @@ public class GenesisScriptMerbinnerTree extends MerbinnerTree<Script, Void> {
     public GenesisScriptMerbinnerTree() {
         super(Maps.<Script, Void>newHashMap());
     }
+
+    /** A pruned tree, looking up entries in the source */
+    public GenesisScriptMerbinnerTree(HashCode hash, Source<Script, Void> source) {
+        super(hash, 0, source);
+    }
 }
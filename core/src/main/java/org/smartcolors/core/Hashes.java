@@ -26,7 +26,7 @@ public class Hashes {
         } catch (SerializationException e) {
             Throwables.propagate(e);
         }
-        return HashSerializer.calcHash(ser.getBytes(), SCRIPT_HMAC_KEY);
+        return HashSerializer.calcHash(ser, SCRIPT_HMAC_KEY);
     }
 
     public static HashCode calcHash(TransactionOutPoint key) {
@@ -40,6 +40,6 @@ public class Hashes {
         } catch (SerializationException e) {
             Throwables.propagate(e);
         }
-        return HashSerializer.calcHash(ser.getBytes(), TRANSACTION_HMAC_KEY);
+        return HashSerializer.calcHash(ser, TRANSACTION_HMAC_KEY);
     }
 }
@@ -1,14 +1,14 @@
 package org.smartcolors.core;
 
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.Utils;
 import org.smartcolors.marshal.*;
 
-import java.util.*;
+import java.util.Deque;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -28,7 +28,7 @@ public class PrevoutProofsMerbinnerTree extends MerbinnerTree<TransactionOutPoin
 
             @Override
             public HashCode getHash(TransactionOutPoint obj) {
-                return Hashes.calcHash(obj);
+                return getKeyHash(obj);
             }
         });
     }
@@ -57,7 +57,7 @@ public class PrevoutProofsMerbinnerTree extends MerbinnerTree<TransactionOutPoin
                 return ColorProof.deserialize(params, des);
             }
         });
-        entries.put(key, value);
+        put(key, value);
     }
 
     private TransactionOutPoint deserializeKey(Deserializer des) throws SerializationException {
@@ -74,9 +74,11 @@ public class PrevoutProofsMerbinnerTree extends MerbinnerTree<TransactionOutPoin
         ser.write(sum);
     }
 
+    private static final byte[] HMAC_KEY = Utils.HEX.decode("486a3b9f0cc1adc7f0f7f3e388b89dbc");
+
     @Override
     public byte[] getHmacKey() {
-        return Utils.HEX.decode("486a3b9f0cc1adc7f0f7f3e388b89dbc");
+        return HMAC_KEY.clone();
     }
 
     public PrevoutProofsMerbinnerTree(NetworkParameters params, Map<TransactionOutPoint, ColorProof> nodes) {
@@ -93,36 +95,29 @@ public class PrevoutProofsMerbinnerTree extends MerbinnerTree<TransactionOutPoin
     public void serialize(final Serializer ser, Deque<SerializationState> stack) throws SerializationException {
         SerializationState state = stack.getFirst();
 
-        Collection<TransactionOutPoint> keys = state.keys;
-        if (keys == null)
-            keys = keySet();
+        @SuppressWarnings("unchecked")
+        Node<TransactionOutPoint, ColorProof> node = (Node<TransactionOutPoint, ColorProof>) state.node;
+        if (node == null)
+            node = getRoot();
 
-        if (keys.isEmpty()) {
-            ser.write(0);
-        } else if (keys.size() == 1) {
+        if (node instanceof Leaf) {
             ser.write(1);
-            TransactionOutPoint key = keys.iterator().next();
-            serializeKey(ser, key);
-            ColorProof colorProof = entries.get(key);
+            Leaf<TransactionOutPoint, ColorProof> leaf = (Leaf<TransactionOutPoint, ColorProof>) node;
+            serializeKey(ser, leaf);
+            ColorProof colorProof = leaf.getValue();
             if (colorProof instanceof TransferColorProof) {
-                stack.push(new SerializationState((TransferColorProof) colorProof, null, 0));
+                if (ser.writeObjectHeader(colorProof))
+                    stack.push(new SerializationState((TransferColorProof) colorProof, null, SerializationState.afterWrite(ser)));
             } else {
                 serializeValue(ser, colorProof);
             }
-        } else {
+        } else if (node instanceof Inner) {
             ser.write(2);
-            Set<TransactionOutPoint> left = Sets.newHashSet();
-            Set<TransactionOutPoint> right = Sets.newHashSet();
-            for (TransactionOutPoint key : keys) {
-                byte[] keyHash = getKeyHash(key).asBytes();
-                boolean side = ((keyHash[state.depth / 8] >> (7 - (state.depth % 8))) & 1) == 1;
-                if (side)
-                    left.add(key);
-                else
-                    right.add(key);
-            }
-            stack.push(new SerializationState(this, right, state.depth + 1));
-            stack.push(new SerializationState(this, left, state.depth + 1));
+            Inner<TransactionOutPoint, ColorProof> inner = (Inner<TransactionOutPoint, ColorProof>) node;
+            stack.push(new SerializationState(this, inner.getRight()));
+            stack.push(new SerializationState(this, inner.getLeft()));
+        } else {
+            ser.write(0);
         }
     }
 
@@ -133,7 +128,7 @@ public class PrevoutProofsMerbinnerTree extends MerbinnerTree<TransactionOutPoin
         } else if (type == 1) {
             final TransactionOutPoint key = deserializeKey(des);
             ColorProof proof = ColorProof.deserialize(params, des, stack);
-            entries.put(key, proof);
+            put(key, proof);
         } else {
             checkState(type == 2);
             stack.push(new DeserializationState(this));
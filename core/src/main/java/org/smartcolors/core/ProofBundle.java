@@ -0,0 +1,143 @@
+package org.smartcolors.core;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.smartcolors.marshal.Deserializer;
+import org.smartcolors.marshal.MappedDeserializer;
+import org.smartcolors.marshal.MemoizedDeserializer;
+import org.smartcolors.marshal.MemoizedSerializer;
+import org.smartcolors.marshal.SerializationException;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The proofs for a batch of outpoints, as returned by a batch lookup.
+ * <p/>
+ * <p>The bundle is serialized with a single memo table, so a subproof shared by several outpoints
+ * is transferred and deserialized once, and the deserialized proofs share the instance.</p>
+ * <p/>
+ * <p>The format is the version, the number of outpoints, and for each outpoint its serialized form
+ * followed by the number of proofs and the proofs themselves.</p>
+ */
+public class ProofBundle {
+    public static final int VERSION = 0;
+    public static final int MAX_OUTPOINTS = 100000;
+
+    private final Map<TransactionOutPoint, List<ColorProof>> proofs = Maps.newLinkedHashMap();
+
+    public void add(ColorProof proof) {
+        add(proof.getOutPoint(), proof);
+    }
+
+    public void add(TransactionOutPoint point, ColorProof proof) {
+        List<ColorProof> list = proofs.get(point);
+        if (list == null) {
+            list = Lists.newArrayList();
+            proofs.put(point, list);
+        }
+        list.add(proof);
+    }
+
+    public void addAll(ProofBundle other) {
+        for (Map.Entry<TransactionOutPoint, List<ColorProof>> entry : other.proofs.entrySet()) {
+            for (ColorProof proof : entry.getValue())
+                add(entry.getKey(), proof);
+        }
+    }
+
+    /** The proofs for the outpoint, empty if the outpoint is not colored or not known */
+    public List<ColorProof> get(TransactionOutPoint point) {
+        List<ColorProof> list = proofs.get(point);
+        if (list == null)
+            return ImmutableList.of();
+        return Collections.unmodifiableList(list);
+    }
+
+    @Nullable
+    public ColorProof getFirst(TransactionOutPoint point) {
+        List<ColorProof> list = proofs.get(point);
+        if (list == null || list.isEmpty())
+            return null;
+        return list.get(0);
+    }
+
+    public Set<TransactionOutPoint> getOutPoints() {
+        return Collections.unmodifiableSet(proofs.keySet());
+    }
+
+    public int size() {
+        return proofs.size();
+    }
+
+    public void serialize(OutputStream os) throws SerializationException {
+        MemoizedSerializer ser = new MemoizedSerializer(os);
+        ser.write(VERSION);
+        ser.write(proofs.size());
+        for (Map.Entry<TransactionOutPoint, List<ColorProof>> entry : proofs.entrySet()) {
+            ser.write(entry.getKey().bitcoinSerialize());
+            ser.write(entry.getValue().size());
+            for (ColorProof proof : entry.getValue())
+                ser.write(proof);
+        }
+    }
+
+    public byte[] serialize() throws SerializationException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        serialize(os);
+        return os.toByteArray();
+    }
+
+    public static ProofBundle deserialize(NetworkParameters params, byte[] bytes) throws SerializationException {
+        return deserialize(params, new MappedDeserializer(ByteBuffer.wrap(bytes)));
+    }
+
+    /** Read a bundle from the stream, e.g. a response body, without buffering it first */
+    public static ProofBundle deserialize(NetworkParameters params, InputStream is) throws SerializationException {
+        return deserialize(params, new MemoizedDeserializer(is));
+    }
+
+    /** Read a bundle.  The deserializer must be memoizing, e.g. a {@link MappedDeserializer}. */
+    public static ProofBundle deserialize(final NetworkParameters params, Deserializer des) throws SerializationException {
+        int version = des.readVaruint();
+        if (version != VERSION)
+            throw new SerializationException("unknown version " + version);
+        int count = des.readVaruint();
+        if (count > MAX_OUTPOINTS)
+            throw new SerializationException("too many outpoints " + count);
+        ProofBundle bundle = new ProofBundle();
+        Deserializer.ObjectReader<ColorProof> reader = new Deserializer.ObjectReader<ColorProof>() {
+            @Override
+            public ColorProof readObject(Deserializer des) throws SerializationException {
+                return ColorProof.deserialize(params, des);
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            TransactionOutPoint point = new TransactionOutPoint(params, des.readBytes(36), 0);
+            int proofCount = des.readVaruint();
+            List<ColorProof> list = Lists.newArrayList();
+            for (int j = 0; j < proofCount; j++)
+                list.add(des.readObject(reader));
+            bundle.proofs.put(point, list);
+        }
+        return bundle;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("outpoints", proofs.size())
+                .toString();
+    }
+}
@@ -0,0 +1,533 @@
+package org.smartcolors.core;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+import org.smartcolors.marshal.Deserializer;
+import org.smartcolors.marshal.HashableSerializable;
+import org.smartcolors.marshal.MappedDeserializer;
+import org.smartcolors.marshal.MemoizedSerializer;
+import org.smartcolors.marshal.SerializationException;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A content-addressed store of proofs on disk.
+ * <p/>
+ * <p>The store is an append-only log of records, each holding one proof or one color definition
+ * under its hash.  The definition and the prevout proofs that a proof refers to are stored in
+ * records of their own first, and the record of the proof only lists their hashes.  A subproof
+ * shared by many proofs is therefore stored once.  Each record is serialized with a memo table
+ * seeded with the objects it refers to, so references cost a memo index.</p>
+ * <p/>
+ * <p>The log is scanned on open to index the records by hash and the proofs by outpoint.  A record
+ * cut short by a crash is dropped.  Appends reach the disk on {@link #flush()} or
+ * {@link #close()}.  {@link #compact} rewrites the log with only the proofs that are still
+ * needed.</p>
+ * <p/>
+ * <p>Record format: the type, the hash, the outpoint for proofs, the length of the body as four
+ * bytes, and the body - the number of references, their hashes and the memoized object.</p>
+ */
+public class ProofStore implements Closeable {
+    public static final byte[] MAGIC = Utils.HEX.decode("00536d617274636f6c6f727300f8acdc0050726f6f6673746f726500");
+    public static final int VERSION = 0;
+
+    static final int TYPE_DEFINITION = 1;
+    static final int TYPE_PROOF = 2;
+
+    private static final int FILE_HEADER_LENGTH = MAGIC.length + 1;
+    private static final int HASH_LENGTH = 32;
+    private static final int OUTPOINT_LENGTH = 36;
+
+    private final NetworkParameters params;
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long end;
+    private final Map<HashCode, Long> offsets = Maps.newHashMap();
+    private final Map<TransactionOutPoint, List<HashCode>> byOutPoint = Maps.newHashMap();
+    // Definitions are few and referred to by every proof
+    private final Map<HashCode, ColorDefinition> definitions = Maps.newHashMap();
+
+    private ProofStore(NetworkParameters params, File file) {
+        this.params = params;
+        this.file = file;
+    }
+
+    /** Open the store, creating the file if it does not exist */
+    public static ProofStore open(NetworkParameters params, File file) throws SerializationException {
+        ProofStore store = new ProofStore(params, file);
+        store.load();
+        return store;
+    }
+
+    private static class RecordHeader {
+        final int type;
+        final HashCode hash;
+        final TransactionOutPoint point;
+        final long offset;
+        final long bodyOffset;
+        final int bodyLength;
+
+        RecordHeader(int type, HashCode hash, @Nullable TransactionOutPoint point, long offset, long bodyOffset, int bodyLength) {
+            this.type = type;
+            this.hash = hash;
+            this.point = point;
+            this.offset = offset;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+        }
+
+        long getEnd() {
+            return bodyOffset + bodyLength;
+        }
+    }
+
+    private static int getHeaderLength(int type) {
+        return 1 + HASH_LENGTH + (type == TYPE_PROOF ? OUTPOINT_LENGTH : 0) + 4;
+    }
+
+    private void load() throws SerializationException {
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            long size = channel.size();
+            if (size == 0) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+                header.put(MAGIC);
+                header.put((byte) VERSION);
+                header.flip();
+                writeFully(header, 0);
+                end = FILE_HEADER_LENGTH;
+                return;
+            }
+            if (size < FILE_HEADER_LENGTH)
+                throw new SerializationException("not a proof store " + file);
+            ByteBuffer header = readFully(0, FILE_HEADER_LENGTH);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(MAGIC, magic))
+                throw new SerializationException("wrong magic " + Utils.HEX.encode(magic));
+            int version = header.get();
+            if (version != VERSION)
+                throw new SerializationException("wrong version " + version);
+            long pos = FILE_HEADER_LENGTH;
+            while (pos < size) {
+                RecordHeader record = readHeader(pos, size);
+                if (record == null)
+                    break;
+                index(record);
+                pos = record.getEnd();
+            }
+            // Drop a record that was being appended when we crashed
+            if (pos < size)
+                channel.truncate(pos);
+            end = pos;
+        } catch (IOException e) {
+            closeQuietly();
+            throw new SerializationException(e);
+        } catch (SerializationException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    // The header of the record at pos, or null if it does not end before the limit
+    @Nullable
+    private RecordHeader readHeader(long pos, long limit) throws IOException, SerializationException {
+        if (limit - pos < 1)
+            return null;
+        int type = readFully(pos, 1).get();
+        if (type != TYPE_DEFINITION && type != TYPE_PROOF)
+            throw new SerializationException("unknown record type " + type + " at " + pos);
+        int headerLength = getHeaderLength(type);
+        if (limit - pos < headerLength)
+            return null;
+        ByteBuffer buf = readFully(pos + 1, headerLength - 1);
+        byte[] hash = new byte[HASH_LENGTH];
+        buf.get(hash);
+        TransactionOutPoint point = null;
+        if (type == TYPE_PROOF) {
+            byte[] pointBytes = new byte[OUTPOINT_LENGTH];
+            buf.get(pointBytes);
+            point = new TransactionOutPoint(params, pointBytes, 0);
+        }
+        int bodyLength = buf.getInt();
+        if (bodyLength < 0 || limit - pos - headerLength < bodyLength)
+            return null;
+        return new RecordHeader(type, HashCode.fromBytes(hash), point, pos, pos + headerLength, bodyLength);
+    }
+
+    private void index(RecordHeader record) {
+        offsets.put(record.hash, record.offset);
+        if (record.point != null) {
+            List<HashCode> hashes = byOutPoint.get(record.point);
+            if (hashes == null) {
+                hashes = Lists.newArrayList();
+                byOutPoint.put(record.point, hashes);
+            }
+            hashes.add(record.hash);
+        }
+    }
+
+    private ByteBuffer readFully(long pos, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf, pos + buf.position());
+    }
+
+    private RecordHeader getHeader(HashCode hash) throws SerializationException {
+        Long offset = offsets.get(hash);
+        if (offset == null)
+            throw new SerializationException("missing record " + hash);
+        try {
+            RecordHeader record = readHeader(offset, end);
+            if (record == null || !record.hash.equals(hash))
+                throw new SerializationException("corrupt record at " + offset);
+            return record;
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        }
+    }
+
+    private ByteBuffer readBody(RecordHeader record) throws SerializationException {
+        try {
+            return readFully(record.bodyOffset, record.bodyLength);
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        }
+    }
+
+    // The hashes of the records referred to, leaving the deserializer at the object
+    private static List<HashCode> readRefs(Deserializer des) throws SerializationException {
+        int count = des.readVaruint();
+        List<HashCode> refs = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++)
+            refs.add(HashCode.fromBytes(des.readBytes(HASH_LENGTH)));
+        return refs;
+    }
+
+    public synchronized boolean contains(HashCode hash) {
+        return offsets.containsKey(hash);
+    }
+
+    /** Whether there are proofs for the outpoint */
+    public synchronized boolean contains(TransactionOutPoint point) {
+        return byOutPoint.containsKey(point);
+    }
+
+    /** The stored proofs for the outpoint, one per color, empty if there are none */
+    public synchronized List<ColorProof> get(TransactionOutPoint point) throws SerializationException {
+        List<HashCode> hashes = byOutPoint.get(point);
+        if (hashes == null)
+            return ImmutableList.of();
+        Map<HashCode, Object> loaded = Maps.newHashMap();
+        List<ColorProof> result = Lists.newArrayListWithCapacity(hashes.size());
+        for (HashCode hash : hashes)
+            result.add((ColorProof) load(hash, loaded));
+        return result;
+    }
+
+    /** The stored proof with this hash, or null if there is none */
+    @Nullable
+    public synchronized ColorProof get(HashCode hash) throws SerializationException {
+        if (!offsets.containsKey(hash))
+            return null;
+        Object obj = load(hash, Maps.<HashCode, Object>newHashMap());
+        if (!(obj instanceof ColorProof))
+            return null;
+        return (ColorProof) obj;
+    }
+
+    // Load a record after the records it refers to, without recursing, since proofs can be deep
+    private Object load(HashCode hash, Map<HashCode, Object> loaded) throws SerializationException {
+        Map<HashCode, ByteBuffer> bodies = Maps.newHashMap();
+        Map<HashCode, RecordHeader> headers = Maps.newHashMap();
+        ArrayDeque<HashCode> stack = Queues.newArrayDeque();
+        stack.push(hash);
+        while (!stack.isEmpty()) {
+            HashCode current = stack.peek();
+            if (loaded.containsKey(current)) {
+                stack.pop();
+                continue;
+            }
+            ColorDefinition def = definitions.get(current);
+            if (def != null) {
+                loaded.put(current, def);
+                stack.pop();
+                continue;
+            }
+            RecordHeader record = headers.get(current);
+            if (record == null) {
+                record = getHeader(current);
+                headers.put(current, record);
+                bodies.put(current, readBody(record));
+            }
+            List<HashCode> refs = readRefs(new MappedDeserializer(bodies.get(current)));
+            boolean ready = true;
+            for (HashCode ref : refs) {
+                if (!loaded.containsKey(ref)) {
+                    stack.push(ref);
+                    ready = false;
+                }
+            }
+            if (!ready)
+                continue;
+            stack.pop();
+            Object obj = deserialize(record, bodies.remove(current), loaded);
+            loaded.put(current, obj);
+            if (obj instanceof ColorDefinition)
+                definitions.put(current, (ColorDefinition) obj);
+        }
+        return loaded.get(hash);
+    }
+
+    private Object deserialize(RecordHeader record, ByteBuffer body, Map<HashCode, Object> loaded) throws SerializationException {
+        MappedDeserializer des = new MappedDeserializer(body);
+        for (HashCode ref : readRefs(des))
+            des.addExternalMemo(loaded.get(ref));
+        HashableSerializable obj;
+        if (record.type == TYPE_DEFINITION) {
+            obj = des.readObject(new Deserializer.ObjectReader<ColorDefinition>() {
+                @Override
+                public ColorDefinition readObject(Deserializer des) throws SerializationException {
+                    return ColorDefinition.deserialize(params, des);
+                }
+            });
+        } else {
+            obj = des.readObject(new Deserializer.ObjectReader<ColorProof>() {
+                @Override
+                public ColorProof readObject(Deserializer des) throws SerializationException {
+                    return ColorProof.deserialize(params, des);
+                }
+            });
+        }
+        if (!obj.getHash().equals(record.hash))
+            throw new SerializationException("hash mismatch at " + record.offset);
+        return obj;
+    }
+
+    /** Store a proof and everything it depends on that is not stored yet */
+    public synchronized void put(ColorProof proof) throws SerializationException {
+        ArrayDeque<ColorProof> stack = Queues.newArrayDeque();
+        stack.push(proof);
+        while (!stack.isEmpty()) {
+            ColorProof current = stack.peek();
+            if (offsets.containsKey(current.getHash())) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (ColorProof child : getPrevoutProofs(current)) {
+                if (!offsets.containsKey(child.getHash())) {
+                    stack.push(child);
+                    ready = false;
+                }
+            }
+            if (!ready)
+                continue;
+            stack.pop();
+            ColorDefinition def = current.getDefinition();
+            if (!offsets.containsKey(def.getHash()))
+                append(TYPE_DEFINITION, def, null, ImmutableList.<HashCode>of());
+            Set<HashCode> refs = Sets.newLinkedHashSet();
+            refs.add(def.getHash());
+            for (ColorProof child : getPrevoutProofs(current))
+                refs.add(child.getHash());
+            append(TYPE_PROOF, current, current.getOutPoint(), refs);
+        }
+    }
+
+    public void putAll(Iterable<ColorProof> proofs) throws SerializationException {
+        for (ColorProof proof : proofs)
+            put(proof);
+    }
+
+    private static Collection<ColorProof> getPrevoutProofs(ColorProof proof) {
+        if (proof instanceof TransferColorProof)
+            return ((TransferColorProof) proof).getPrevouts().values();
+        return Collections.emptyList();
+    }
+
+    private void append(int type, HashableSerializable obj, @Nullable TransactionOutPoint point, Collection<HashCode> refs) throws SerializationException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MemoizedSerializer ser = new MemoizedSerializer(bos);
+        ser.write(refs.size());
+        for (HashCode ref : refs) {
+            ser.write(ref.asBytes());
+            ser.addExternalMemo(ref);
+        }
+        ser.write(obj);
+        byte[] body = bos.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(getHeaderLength(type) + body.length);
+        buf.put((byte) type);
+        buf.put(obj.getHash().asBytes());
+        if (point != null)
+            buf.put(point.bitcoinSerialize());
+        buf.putInt(body.length);
+        buf.put(body);
+        buf.flip();
+        try {
+            writeFully(buf, end);
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        }
+        index(new RecordHeader(type, obj.getHash(), point, end, end + getHeaderLength(type), body.length));
+        end += buf.limit();
+    }
+
+    /**
+     * Rewrite the log with only the proofs for the live outpoints and what they depend on.
+     *
+     * @return the number of records dropped
+     */
+    public synchronized int compact(Set<TransactionOutPoint> live) throws SerializationException {
+        Set<HashCode> keep = Sets.newHashSet();
+        ArrayDeque<HashCode> queue = Queues.newArrayDeque();
+        for (TransactionOutPoint point : live) {
+            List<HashCode> hashes = byOutPoint.get(point);
+            if (hashes != null)
+                queue.addAll(hashes);
+        }
+        while (!queue.isEmpty()) {
+            HashCode hash = queue.poll();
+            if (keep.add(hash))
+                queue.addAll(readRefs(new MappedDeserializer(readBody(getHeader(hash)))));
+        }
+        int dropped = offsets.size() - keep.size();
+        if (dropped == 0)
+            return 0;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile tmpRaf = null;
+        try {
+            tmpRaf = new RandomAccessFile(tmp, "rw");
+            FileChannel tmpChannel = tmpRaf.getChannel();
+            tmpChannel.truncate(0);
+            // Copy in log order, so that records still follow the records they refer to
+            long written = transfer(0, FILE_HEADER_LENGTH, tmpChannel, 0);
+            long pos = FILE_HEADER_LENGTH;
+            while (pos < end) {
+                RecordHeader record = readHeader(pos, end);
+                if (record == null)
+                    throw new SerializationException("corrupt record at " + pos);
+                if (keep.contains(record.hash))
+                    written += transfer(pos, (int) (record.getEnd() - pos), tmpChannel, written);
+                pos = record.getEnd();
+            }
+            tmpChannel.force(true);
+            tmpRaf.close();
+            tmpRaf = null;
+            close();
+            Files.move(tmp, file);
+        } catch (IOException e) {
+            // Keep the store usable with the old log
+            if (raf == null) {
+                offsets.clear();
+                byOutPoint.clear();
+                load();
+            }
+            throw new SerializationException(e);
+        } finally {
+            if (tmpRaf != null) {
+                try {
+                    tmpRaf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                tmp.delete();
+            }
+        }
+        offsets.clear();
+        byOutPoint.clear();
+        load();
+        return dropped;
+    }
+
+    private long transfer(long pos, int length, FileChannel target, long targetPos) throws IOException {
+        ByteBuffer buf = readFully(pos, length);
+        while (buf.hasRemaining())
+            target.write(buf, targetPos + buf.position());
+        return length;
+    }
+
+    /** The number of records, proofs and definitions */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /** The size of the log in bytes */
+    public synchronized long getFileSize() {
+        return end;
+    }
+
+    /** Force appended records to disk */
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf == null)
+            return;
+        try {
+            channel.force(true);
+        } finally {
+            raf.close();
+            raf = null;
+            channel = null;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (raf != null)
+                raf.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        raf = null;
+        channel = null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("file", file)
+                .add("records", offsets.size())
+                .add("bytes", end)
+                .toString();
+    }
+}
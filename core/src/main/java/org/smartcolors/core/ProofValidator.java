@@ -0,0 +1,234 @@
+package org.smartcolors.core;
+
+import com.google.common.base.Function;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validates a proof and all the proofs it depends on.
+ * <p/>
+ * <p>Proofs are deduplicated by hash, so a prevout proof shared by several branches is only
+ * validated once.  With an executor, independent proofs are validated concurrently and the first
+ * failure stops the remaining work.  Each run reports how long every proof took.</p>
+ * <p/>
+ * <p>{@link #validate} blocks until the work on the executor is done, so it must not be called
+ * from a thread of a bounded executor that the validator uses - all the threads could end up
+ * waiting for work queued behind them.  Use {@link #validateAsync} there instead.</p>
+ * <p/>
+ * <p>With a {@link ValidatedProofCache}, proofs that were validated before are trusted together
+ * with everything below them, and a successful run adds all the proofs it validated.</p>
+ */
+public class ProofValidator {
+    private final Executor executor;
+    private final ValidatedProofCache cache;
+
+    /** Validate on the calling thread */
+    public ProofValidator() {
+        this(null, null);
+    }
+
+    /** Validate on the executor, or on the calling thread if null */
+    public ProofValidator(@Nullable Executor executor) {
+        this(executor, null);
+    }
+
+    /** Validate on the executor, or on the calling thread if null, skipping proofs in the cache */
+    public ProofValidator(@Nullable Executor executor, @Nullable ValidatedProofCache cache) {
+        this.executor = executor;
+        this.cache = cache;
+    }
+
+    @Nullable
+    public ValidatedProofCache getCache() {
+        return cache;
+    }
+
+    private boolean isTrusted(HashCode hash) {
+        return cache != null && cache.contains(hash);
+    }
+
+    /** The outcome of a successful validation */
+    public static class Report {
+        private final Map<HashCode, Long> timings;
+        private final long elapsedNanos;
+
+        Report(Map<HashCode, Long> timings, long elapsedNanos) {
+            this.timings = ImmutableMap.copyOf(timings);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Time spent validating each proof, excluding the proofs it depends on, in nanoseconds.
+         * Proofs trusted through the cache are not included.
+         */
+        public Map<HashCode, Long> getTimings() {
+            return timings;
+        }
+
+        public int getValidatedCount() {
+            return timings.size();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("validated", getValidatedCount())
+                    .add("elapsedMs", elapsedNanos / 1000000)
+                    .toString();
+        }
+    }
+
+    /** Validate, blocking until done.  See the class documentation for when this may deadlock. */
+    public Report validate(ColorProof proof) throws ColorProof.ValidationException {
+        ListenableFuture<Report> future = validateAsync(proof);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new ColorProof.ValidationException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ColorProof.ValidationException)
+                throw (ColorProof.ValidationException) e.getCause();
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Validate without waiting for the executor.  The future fails with a
+     * {@link ColorProof.ValidationException} if the proof is not valid, and cancelling it stops
+     * the remaining work.  Without an executor, the validation is done before this returns.
+     */
+    public ListenableFuture<Report> validateAsync(ColorProof proof) {
+        final long start = System.nanoTime();
+        if (isTrusted(proof.getHash()))
+            return Futures.immediateFuture(new Report(ImmutableMap.<HashCode, Long>of(), System.nanoTime() - start));
+        if (executor == null) {
+            try {
+                return Futures.immediateFuture(finish(validateInline(proof), start));
+            } catch (ColorProof.ValidationException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        return Futures.transform(new Run().start(proof), new Function<Map<HashCode, Long>, Report>() {
+            @Override
+            public Report apply(Map<HashCode, Long> timings) {
+                return finish(timings, start);
+            }
+        });
+    }
+
+    private Report finish(Map<HashCode, Long> timings, long start) {
+        if (cache != null)
+            cache.addAll(timings.keySet());
+        return new Report(timings, System.nanoTime() - start);
+    }
+
+    private Map<HashCode, Long> validateInline(ColorProof proof) throws ColorProof.ValidationException {
+        Map<HashCode, Long> timings = Maps.newHashMap();
+        ArrayDeque<ColorProof> queue = Queues.newArrayDeque();
+        ArrayDeque<ColorProof> children = Queues.newArrayDeque();
+        queue.add(proof);
+        timings.put(proof.getHash(), 0L);
+        while (!queue.isEmpty()) {
+            ColorProof current = queue.poll();
+            long start = System.nanoTime();
+            current.doValidate(children);
+            timings.put(current.getHash(), System.nanoTime() - start);
+            for (ColorProof child : children) {
+                if (!timings.containsKey(child.getHash()) && !isTrusted(child.getHash())) {
+                    timings.put(child.getHash(), 0L);
+                    queue.add(child);
+                }
+            }
+            children.clear();
+        }
+        return timings;
+    }
+
+    private class Run {
+        private final Set<HashCode> seen = Sets.newSetFromMap(Maps.<HashCode, Boolean>newConcurrentMap());
+        private final ConcurrentMap<HashCode, Long> timings = Maps.newConcurrentMap();
+        private final AtomicInteger pending = new AtomicInteger();
+        // Completed by the last proof to finish, or by the first failure
+        private final SettableFuture<Map<HashCode, Long>> result = SettableFuture.create();
+
+        ListenableFuture<Map<HashCode, Long>> start(ColorProof proof) {
+            seen.add(proof.getHash());
+            submit(proof);
+            return result;
+        }
+
+        private void submit(final ColorProof proof) {
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            validateOne(proof);
+                        } finally {
+                            finishOne();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fail(new ColorProof.ValidationException(e));
+                finishOne();
+            }
+        }
+
+        private void validateOne(ColorProof proof) {
+            // Failed or cancelled
+            if (result.isDone())
+                return;
+            ArrayDeque<ColorProof> children = Queues.newArrayDeque();
+            long start = System.nanoTime();
+            try {
+                proof.doValidate(children);
+            } catch (ColorProof.ValidationException e) {
+                fail(e);
+                return;
+            } catch (RuntimeException e) {
+                fail(new ColorProof.ValidationException(e));
+                return;
+            }
+            timings.put(proof.getHash(), System.nanoTime() - start);
+            for (ColorProof child : children) {
+                if (seen.add(child.getHash()) && !isTrusted(child.getHash()))
+                    submit(child);
+            }
+        }
+
+        private void fail(ColorProof.ValidationException e) {
+            result.setException(e);
+        }
+
+        private void finishOne() {
+            if (pending.decrementAndGet() == 0)
+                result.set(timings);
+        }
+    }
+}
@@ -17,9 +17,11 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -138,7 +140,22 @@ public class SmartColors {
     }
 
     public static ScheduledExecutorService makeSerializationService(final String name) {
-        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        return Executors.newSingleThreadScheduledExecutor(makeSerializationThreadFactory(name, false));
+    }
+
+    /** A scheduled pool of threads with room for deep proofs, named name-1, name-2, ... */
+    public static ScheduledExecutorService makeSerializationService(final String name, int threads) {
+        return Executors.newScheduledThreadPool(threads, makeSerializationThreadFactory(name, true));
+    }
+
+    /** A fixed pool of threads with room for deep proofs, named name-1, name-2, ... */
+    public static ExecutorService makeSerializationExecutor(final String name, int threads) {
+        return Executors.newFixedThreadPool(threads, makeSerializationThreadFactory(name, true));
+    }
+
+    private static ThreadFactory makeSerializationThreadFactory(final String name, final boolean numbered) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
             @Override
             public Thread newThread(final Runnable r) {
                 final Context context = Context.get();
@@ -153,13 +170,13 @@ public class SmartColors {
                                 r.run();
                             }
                         },
-                        name,
+                        numbered ? name + "-" + count.incrementAndGet() : name,
                         SERIALIZATION_STACK_SIZE);
                 t.setDaemon(true);
                 t.setPriority(Thread.MIN_PRIORITY);
                 return t;
             }
-        });
+        };
     }
 
     private static class AssetMainNetParams extends MainNetParams {
@@ -54,7 +54,7 @@ public class TransferColorProof extends ColorProof implements IterativeSerializa
     private void afterDeserializeSelf() throws SerializationException {
         try {
             quantity = calcQuantity();
-        } catch (UnsupportedOperationException e) {
+        } catch (ColorKernel.KernelException e) {
             throw new SerializationException(e);
         } catch (IllegalStateException e) {
             throw new SerializationException(e);
@@ -167,6 +167,10 @@ public class TransferColorProof extends ColorProof implements IterativeSerializa
         return tx;
     }
 
+    public PrevoutProofsMerbinnerTree getPrevouts() {
+        return prevouts;
+    }
+
     @Override
     public TransactionOutPoint getOutPoint() {
         return new TransactionOutPoint(params, index, tx);
@@ -175,6 +179,7 @@ public class TransferColorProof extends ColorProof implements IterativeSerializa
     @Override
     public void serialize(Serializer ser, Deque<SerializationState> stack) throws SerializationException {
         serializeSelf(ser);
-        stack.push(new SerializationState(prevouts, null, 0));
+        if (ser.writeObjectHeader(prevouts))
+            stack.push(new SerializationState(prevouts, null, SerializationState.afterWrite(ser)));
     }
 }
@@ -0,0 +1,110 @@
+package org.smartcolors.core;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded set of proof hashes that were fully validated, including everything they depend on.
+ * <p/>
+ * <p>A {@link ProofValidator} with a cache skips any proof whose hash is in it, along with the
+ * proofs below it.  The least recently used hashes are evicted first.  Hits and misses are
+ * counted so that the cache can be sized.</p>
+ */
+public class ValidatedProofCache {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    private final LinkedHashMap<HashCode, Boolean> hashes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ValidatedProofCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ValidatedProofCache(final int capacity) {
+        checkArgument(capacity > 0);
+        this.capacity = capacity;
+        this.hashes = new LinkedHashMap<HashCode, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HashCode, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Whether the proof with this hash is known to be valid, counting a hit or miss */
+    public boolean contains(HashCode hash) {
+        boolean found;
+        synchronized (hashes) {
+            found = hashes.get(hash) != null;
+        }
+        if (found)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return found;
+    }
+
+    public void add(HashCode hash) {
+        synchronized (hashes) {
+            hashes.put(hash, Boolean.TRUE);
+        }
+    }
+
+    public void addAll(Iterable<HashCode> toAdd) {
+        synchronized (hashes) {
+            for (HashCode hash : toAdd)
+                hashes.put(hash, Boolean.TRUE);
+        }
+    }
+
+    /** The hashes, least recently used first, e.g. for persisting */
+    public List<HashCode> getHashes() {
+        synchronized (hashes) {
+            return Lists.newArrayList(hashes.keySet());
+        }
+    }
+
+    public int size() {
+        synchronized (hashes) {
+            return hashes.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (hashes) {
+            hashes.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", size())
+                .add("capacity", capacity)
+                .add("hits", hits.get())
+                .add("misses", misses.get())
+                .toString();
+    }
+}
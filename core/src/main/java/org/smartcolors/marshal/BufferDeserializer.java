@@ -0,0 +1,94 @@
+package org.smartcolors.marshal;
+
+/**
+ * A deserializer reading from a region of a byte array.
+ * <p/>
+ * <p>Varints are decoded directly from the array.  All reads are bounds checked, and running
+ * out of input is an error rather than a short value.</p>
+ */
+public class BufferDeserializer implements Deserializer {
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
+
+    public BufferDeserializer(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public BufferDeserializer(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length || offset + length < 0)
+            throw new IndexOutOfBoundsException();
+        this.buf = bytes;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    @Override
+    public long readVarulong() throws SerializationException {
+        byte[] buf = this.buf;
+        int pos = this.pos;
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (pos >= limit)
+                throw new SerializationException("short read");
+            int b = buf[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                break;
+            shift += 7;
+            if (shift > 63)
+                throw new SerializationException("varint too long");
+        }
+        this.pos = pos;
+        return value;
+    }
+
+    @Override
+    public int readVaruint() throws SerializationException {
+        long value = readVarulong();
+        if (value > Integer.MAX_VALUE || value < 0)
+            throw new SerializationException("invalid int " + value);
+        return (int) value;
+    }
+
+    @Override
+    public byte[] readBytes(int expectedLength) throws SerializationException {
+        if (expectedLength < 0 || expectedLength > limit - pos)
+            throw new SerializationException("short read");
+        byte[] bytes = new byte[expectedLength];
+        System.arraycopy(buf, pos, bytes, 0, expectedLength);
+        pos += expectedLength;
+        return bytes;
+    }
+
+    @Override
+    public byte[] readBytes() throws SerializationException {
+        long length = readVarulong();
+        if (length > StreamDeserializer.MAX_BYTES || length < 0)
+            throw new SerializationException("bytes longer than max");
+        return readBytes((int) length);
+    }
+
+    @Override
+    public <T> T readObjectHeader() throws SerializationException {
+        return null;
+    }
+
+    @Override
+    public <T> T readObject(ObjectReader<T> reader) throws SerializationException {
+        return reader.readObject(this);
+    }
+
+    @Override
+    public <T> void afterReadObject(T obj) throws SerializationException {
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public int remaining() {
+        return limit - pos;
+    }
+}
@@ -0,0 +1,122 @@
+package org.smartcolors.marshal;
+
+import com.google.common.collect.Queues;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A serializer writing to a growable byte array.
+ * <p/>
+ * <p>Varints are encoded directly into the array, and the array is only reallocated when it has
+ * to grow.  A serializer can be reused with {@link #reset()}.</p>
+ */
+public class BufferSerializer implements Serializer {
+    public static final int DEFAULT_CAPACITY = 64;
+    // A varint is at most ten bytes
+    static final int MAX_VARINT = 10;
+
+    private byte[] buf;
+    private int pos;
+
+    public BufferSerializer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BufferSerializer(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (pos + extra > buf.length) {
+            int needed = pos + extra;
+            if (needed < 0)
+                throw new IllegalStateException("buffer too large");
+            buf = Arrays.copyOf(buf, Math.max(needed, buf.length * 2));
+        }
+    }
+
+    /** Encode a varint into buf at pos, which must have room for {@link #MAX_VARINT} bytes, returning the new position */
+    static int encodeVarint(long value, byte[] buf, int pos) {
+        while ((value & ~0x7fL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    @Override
+    public void write(long value) throws SerializationException {
+        ensureCapacity(MAX_VARINT);
+        pos = encodeVarint(value, buf, pos);
+    }
+
+    @Override
+    public void write(byte[] bytes) throws SerializationException {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    @Override
+    public void writeWithLength(byte[] bytes) throws SerializationException {
+        write(bytes.length);
+        write(bytes);
+    }
+
+    @Override
+    public void write(Serializable obj) throws SerializationException {
+        if (obj instanceof IterativeSerializable) {
+            // Switch to iterative serialization
+            ArrayDeque<SerializationState> stack = Queues.newArrayDeque();
+            stack.push(new SerializationState((IterativeSerializable) obj, null));
+            while (!stack.isEmpty()) {
+                SerializationState state = stack.getFirst();
+                if (state.isDone) {
+                    if (state.callback != null)
+                        state.callback.call(state.serializable);
+                    stack.pop();
+                } else {
+                    state.serializable.serialize(this, stack);
+                    state.isDone = true;
+                }
+            }
+        } else {
+            obj.serialize(this);
+        }
+    }
+
+    @Override
+    public boolean writeObjectHeader(Serializable obj) throws SerializationException {
+        return true;
+    }
+
+    @Override
+    public void afterWriteObject(Serializable obj) throws SerializationException {
+    }
+
+    @Override
+    public void write(Object obj, SerializerHelper helper) throws SerializationException {
+        helper.serialize(this, obj);
+    }
+
+    /** A copy of the bytes written so far */
+    public byte[] getBytes() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /** The underlying array, valid up to {@link #size()} */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    public int size() {
+        return pos;
+    }
+
+    /** Discard what was written, keeping the array for reuse */
+    public void reset() {
+        pos = 0;
+    }
+}
@@ -1,12 +1,10 @@
 package org.smartcolors.marshal;
 
-import java.io.ByteArrayInputStream;
-
 /**
  * Created by devrandom on 2014-Nov-17.
  */
-public class BytesDeserializer extends StreamDeserializer {
+public class BytesDeserializer extends BufferDeserializer {
     public BytesDeserializer(byte[] bytes) {
-        super(new ByteArrayInputStream(bytes));
+        super(bytes);
     }
 }
@@ -28,4 +28,14 @@ public class DummySerializer implements Serializer {
     public void write(Object obj, SerializerHelper helper) throws SerializationException {
 
     }
+
+    @Override
+    public boolean writeObjectHeader(Serializable obj) throws SerializationException {
+        return true;
+    }
+
+    @Override
+    public void afterWriteObject(Serializable obj) throws SerializationException {
+
+    }
 }
@@ -23,7 +23,7 @@ public abstract class FileSerializer {
         ser.write(hash);
     }
 
-    public void readHeader(MemoizedDeserializer des) throws SerializationException {
+    public void readHeader(Deserializer des) throws SerializationException {
         byte[] expectedMagic = getMagic();
         byte[] magic = des.readBytes(expectedMagic.length);
         if (!Arrays.equals(expectedMagic, magic))
@@ -33,7 +33,7 @@ public abstract class FileSerializer {
             throw new SerializationException("wrong version " + version);
     }
 
-    public void verifyHash(MemoizedDeserializer des, Serializable obj) throws SerializationException {
+    public void verifyHash(Deserializer des, Serializable obj) throws SerializationException {
         HashCode hash = obj.getHash();
         byte[] expectedHash = des.readBytes(32);
         if (!hash.equals(HashCode.fromBytes(expectedHash)))
@@ -1,31 +1,84 @@
 package org.smartcolors.marshal;
 
-import com.google.common.base.Throwables;
 import com.google.common.collect.Queues;
 import com.google.common.hash.HashCode;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayDeque;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Created by devrandom on 2014-Nov-17.
+ * <p/>
+ * <p>Writes the hashed form of objects, where sub-objects are replaced by their hashes.  A
+ * serializer created with an HMAC key feeds the bytes straight into the HMAC instead of
+ * buffering them, and the result is obtained with {@link #finish()}.</p>
  */
 public class HashSerializer extends BytesSerializer {
+    private final HmacEngine engine;
+    private final byte[] varintBuf;
+
+    /** Buffer the hashed form, for callers that need the bytes */
+    public HashSerializer() {
+        this.engine = null;
+        this.varintBuf = null;
+    }
+
+    /** Stream the hashed form into an HMAC with the key.  Must be finished or released on this thread. */
+    public HashSerializer(byte[] hmacKey) {
+        this.engine = HmacEngine.acquire(hmacKey);
+        this.varintBuf = new byte[MAX_VARINT];
+    }
+
+    public boolean isStreaming() {
+        return engine != null;
+    }
+
+    @Override
+    public void write(long value) throws SerializationException {
+        if (engine == null) {
+            super.write(value);
+        } else {
+            engine.update(varintBuf, 0, encodeVarint(value, varintBuf, 0));
+        }
+    }
+
     @Override
+    public void write(byte[] bytes) throws SerializationException {
+        if (engine == null)
+            super.write(bytes);
+        else
+            engine.update(bytes);
+    }
+
+    /** The HMAC of what was written, for a streaming serializer */
+    public HashCode finish() {
+        checkState(engine != null, "not streaming");
+        return engine.finish();
+    }
+
+    /** Abandon a streaming hash, e.g. after a serialization error */
+    public void release() {
+        if (engine != null)
+            engine.release();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
     public void write(Serializable obj) throws SerializationException {
         if (obj instanceof IterativeSerializable) {
             DummySerializer dummy = new DummySerializer();
             // Switch to iterative serialization
             ArrayDeque<SerializationState> stack = Queues.newArrayDeque();
             IterativeSerializable tree = (IterativeSerializable) obj;
-            stack.push(new SerializationState(tree, null, 0));
+            stack.push(new SerializationState(tree, null));
             while (!stack.isEmpty()) {
                 SerializationState state = stack.getFirst();
                 if (state.isDone) {
-                    if (state.serializable instanceof HashableSerializable) {
+                    if (state.node != null) {
+                        // Hash the subtree only, so siblings are hashed after their own children
+                        state.node.getHash((MerbinnerTree) state.serializable);
+                    } else if (state.serializable instanceof HashableSerializable) {
                         ((HashableSerializable) state.serializable).getHash();
                     }
                     stack.pop();
@@ -43,35 +96,12 @@ public class HashSerializer extends BytesSerializer {
         write(helper.getHash(obj).asBytes());
     }
 
-    public static HashCode calcHash(BytesSerializer serializer, byte[] hmacKey) {
-        Mac hmac = null;
-        try {
-            hmac = Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException e) {
-            Throwables.propagate(e);
-        }
-        SecretKeySpec macKey = new SecretKeySpec(hmacKey, "RAW");
-        try {
-            hmac.init(macKey);
-        } catch (InvalidKeyException e) {
-            Throwables.propagate(e);
-        }
-        return HashCode.fromBytes(hmac.doFinal(serializer.getBytes()));
+    public static HashCode calcHash(BufferSerializer serializer, byte[] hmacKey) {
+        checkState(!(serializer instanceof HashSerializer && ((HashSerializer) serializer).isStreaming()), "use finish()");
+        return HmacEngine.hash(hmacKey, serializer.getBuffer(), 0, serializer.size());
     }
 
     public static HashCode calcHash(byte[] content, byte[] hmacKey) {
-        Mac hmac = null;
-        try {
-            hmac = Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException e) {
-            Throwables.propagate(e);
-        }
-        SecretKeySpec macKey = new SecretKeySpec(hmacKey, "RAW");
-        try {
-            hmac.init(macKey);
-        } catch (InvalidKeyException e) {
-            Throwables.propagate(e);
-        }
-        return HashCode.fromBytes(hmac.doFinal(content));
+        return HmacEngine.hash(hmacKey, content);
     }
 }
@@ -14,13 +14,15 @@ public abstract class HashableSerializable implements Serializable {
     public HashCode getHash() {
         if (cachedHash != null)
             return cachedHash;
-        HashSerializer serializer = new HashSerializer();
+        HashSerializer serializer = new HashSerializer(getHmacKey());
         try {
             serialize(serializer);
+            cachedHash = serializer.finish();
         } catch (SerializationException e) {
-            Throwables.propagate(e);
+            throw Throwables.propagate(e);
+        } finally {
+            serializer.release();
         }
-        cachedHash = HashSerializer.calcHash(serializer, getHmacKey());
         return cachedHash;
     }
 
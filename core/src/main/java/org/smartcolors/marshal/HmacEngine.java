@@ -0,0 +1,116 @@
+package org.smartcolors.marshal;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.hash.HashCode;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An HMAC-SHA256 computation with a streaming interface.
+ * <p/>
+ * <p>Engines are pooled per thread and per key, so the {@link Mac} lookup and key schedule happen
+ * once per thread rather than once per hash.  An engine is taken from the pool with
+ * {@link #acquire(byte[])} and returned to it by {@link #finish()}.  Hashes may nest - an engine
+ * acquired while another one with the same key is in use gets its own {@link Mac}.  An engine
+ * must be finished on the thread that acquired it.</p>
+ */
+public class HmacEngine {
+    public static final String ALGORITHM = "HmacSHA256";
+
+    private static final ThreadLocal<Map<ByteBuffer, ArrayDeque<HmacEngine>>> pools =
+            new ThreadLocal<Map<ByteBuffer, ArrayDeque<HmacEngine>>>() {
+                @Override
+                protected Map<ByteBuffer, ArrayDeque<HmacEngine>> initialValue() {
+                    return Maps.newHashMap();
+                }
+            };
+
+    private final Mac mac;
+    private final ArrayDeque<HmacEngine> pool;
+    private boolean inUse;
+
+    private HmacEngine(Mac mac, ArrayDeque<HmacEngine> pool) {
+        this.mac = mac;
+        this.pool = pool;
+    }
+
+    /** Get an engine for the key, ready to be updated */
+    public static HmacEngine acquire(byte[] key) {
+        Map<ByteBuffer, ArrayDeque<HmacEngine>> map = pools.get();
+        ArrayDeque<HmacEngine> pool = map.get(ByteBuffer.wrap(key));
+        if (pool == null) {
+            pool = Queues.newArrayDeque();
+            map.put(ByteBuffer.wrap(key.clone()), pool);
+        }
+        HmacEngine engine = pool.poll();
+        if (engine == null)
+            engine = new HmacEngine(newMac(key), pool);
+        engine.inUse = true;
+        return engine;
+    }
+
+    private static Mac newMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, "RAW"));
+            return mac;
+        } catch (NoSuchAlgorithmException e) {
+            throw Throwables.propagate(e);
+        } catch (InvalidKeyException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public HmacEngine update(byte b) {
+        checkState(inUse, "engine was released");
+        mac.update(b);
+        return this;
+    }
+
+    public HmacEngine update(byte[] bytes) {
+        checkState(inUse, "engine was released");
+        mac.update(bytes);
+        return this;
+    }
+
+    public HmacEngine update(byte[] bytes, int offset, int length) {
+        checkState(inUse, "engine was released");
+        mac.update(bytes, offset, length);
+        return this;
+    }
+
+    /** Finish the hash and return the engine to its pool */
+    public HashCode finish() {
+        checkState(inUse, "engine was released");
+        byte[] result = mac.doFinal();
+        release();
+        return HashCode.fromBytes(result);
+    }
+
+    /** Abandon the hash and return the engine to its pool */
+    public void release() {
+        if (!inUse)
+            return;
+        mac.reset();
+        inUse = false;
+        pool.push(this);
+    }
+
+    public static HashCode hash(byte[] key, byte[] content) {
+        return hash(key, content, 0, content.length);
+    }
+
+    public static HashCode hash(byte[] key, byte[] content, int offset, int length) {
+        return acquire(key).update(content, offset, length).finish();
+    }
+}
@@ -0,0 +1,256 @@
+package org.smartcolors.marshal;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A memoizing deserializer over a {@link ByteBuffer}, usually a read-only mapping of a file.
+ * <p/>
+ * <p>Opening a file is O(1) - pages are only read in as they are touched.  {@link #readSlice(int)}
+ * returns a view of the underlying buffer without copying.  The position can be moved freely, and
+ * with indexing enabled the start offset of each memoized object is recorded, so that objects
+ * can be re-read selectively.</p>
+ * <p/>
+ * <p>The memo table follows {@link MemoizedDeserializer}, so files written by a
+ * {@link MemoizedSerializer} can be read with either.  A {@link #plain} deserializer reads the
+ * form written by a {@link BufferSerializer} instead, without object headers.</p>
+ */
+public class MappedDeserializer implements Deserializer {
+    private final ByteBuffer buf;
+    private final List<Object> memos = Lists.newArrayList();
+    private final List<Integer> memoOffsets;
+    // Start offsets of the objects being read, since objects nest
+    private final List<Integer> pendingOffsets;
+    private final boolean memoized;
+
+    public MappedDeserializer(ByteBuffer buf) {
+        this(buf, false);
+    }
+
+    /**
+     * @param buf      the buffer to read, from its current position to its limit
+     * @param indexing whether to record the offset of each memoized object
+     */
+    public MappedDeserializer(ByteBuffer buf, boolean indexing) {
+        this(buf, indexing, true);
+    }
+
+    private MappedDeserializer(ByteBuffer buf, boolean indexing, boolean memoized) {
+        this.buf = buf.slice();
+        this.memoOffsets = indexing ? Lists.<Integer>newArrayList() : null;
+        this.pendingOffsets = indexing ? Lists.<Integer>newArrayList() : null;
+        this.memoized = memoized;
+    }
+
+    /** A deserializer for the form written by a {@link BufferSerializer}, which has no object headers */
+    public static MappedDeserializer plain(ByteBuffer buf) {
+        return new MappedDeserializer(buf, false, false);
+    }
+
+    /**
+     * Another deserializer over the same buffer, at offset zero and with no memos, so that parts of
+     * the buffer can be re-read independently.
+     */
+    public MappedDeserializer duplicate() {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(0);
+        return new MappedDeserializer(dup, false, memoized);
+    }
+
+    /** Whether objects are read with the headers written by a {@link MemoizedSerializer} */
+    public boolean isMemoized() {
+        return memoized;
+    }
+
+    /** Map a region of a file read-only.  The mapping stays valid after the file is closed. */
+    public static MappedDeserializer open(File file, long offset, boolean indexing) throws SerializationException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size() - offset;
+            if (size < 0 || size > Integer.MAX_VALUE)
+                throw new SerializationException("cannot map " + file + " at " + offset);
+            return new MappedDeserializer(channel.map(FileChannel.MapMode.READ_ONLY, offset, size), indexing);
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public static MappedDeserializer open(File file) throws SerializationException {
+        return open(file, 0, false);
+    }
+
+    public int position() {
+        return buf.position();
+    }
+
+    public void position(int position) {
+        buf.position(position);
+    }
+
+    public int remaining() {
+        return buf.remaining();
+    }
+
+    public int size() {
+        return buf.limit();
+    }
+
+    /** A view of the next length bytes, sharing the underlying buffer */
+    public ByteBuffer readSlice(int length) throws SerializationException {
+        if (length < 0 || length > buf.remaining())
+            throw new SerializationException("short read");
+        ByteBuffer slice = buf.slice();
+        slice.limit(length);
+        buf.position(buf.position() + length);
+        return slice;
+    }
+
+    /** A view of the region between two offsets, without moving the position */
+    public ByteBuffer slice(int from, int to) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(to);
+        dup.position(from);
+        return dup.slice();
+    }
+
+    @Override
+    public long readVarulong() throws SerializationException {
+        long value = 0;
+        int shift = 0;
+        try {
+            while (true) {
+                long b = buf.get() & 0xff;
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    break;
+                shift += 7;
+                if (shift > 63)
+                    throw new SerializationException("varint too long");
+            }
+        } catch (BufferUnderflowException e) {
+            throw new SerializationException("short read");
+        }
+        return value;
+    }
+
+    @Override
+    public int readVaruint() throws SerializationException {
+        long value = readVarulong();
+        if (value > Integer.MAX_VALUE || value < 0)
+            throw new SerializationException("invalid int " + value);
+        return (int) value;
+    }
+
+    @Override
+    public byte[] readBytes(int expectedLength) throws SerializationException {
+        if (expectedLength < 0 || expectedLength > buf.remaining())
+            throw new SerializationException("short read");
+        byte[] bytes = new byte[expectedLength];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public byte[] readBytes() throws SerializationException {
+        long length = readVarulong();
+        if (length > StreamDeserializer.MAX_BYTES || length < 0)
+            throw new SerializationException("bytes longer than max");
+        return readBytes((int) length);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T readObjectHeader() throws SerializationException {
+        if (!memoized)
+            return null;
+        int start = buf.position();
+        long idx = readVarulong();
+        if (idx > 0)
+            return (T) getMemo(idx);
+        if (pendingOffsets != null)
+            pendingOffsets.add(start);
+        return null;
+    }
+
+    @Override
+    public <T> void afterReadObject(T obj) throws SerializationException {
+        if (memoized)
+            addMemo(obj);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T readObject(ObjectReader<T> reader) throws SerializationException {
+        if (!memoized)
+            return reader.readObject(this);
+        int start = buf.position();
+        long idx = readVarulong();
+        if (idx > 0)
+            return (T) getMemo(idx);
+        if (pendingOffsets != null)
+            pendingOffsets.add(start);
+        T obj = reader.readObject(this);
+        addMemo(obj);
+        return obj;
+    }
+
+    /**
+     * Add an object that the writer referenced without writing, see
+     * {@link MemoizedSerializer#addExternalMemo}.  Its offset is recorded as -1.
+     */
+    public void addExternalMemo(Object obj) {
+        memos.add(obj);
+        if (memoOffsets != null)
+            memoOffsets.add(-1);
+    }
+
+    private Object getMemo(long idx) throws SerializationException {
+        if (idx - 1 >= memos.size())
+            throw new SerializationException("invalid index " + idx + " only have " + memos.size());
+        return memos.get((int) idx - 1);
+    }
+
+    private void addMemo(Object obj) {
+        memos.add(obj);
+        if (pendingOffsets != null)
+            memoOffsets.add(pendingOffsets.remove(pendingOffsets.size() - 1));
+    }
+
+    /** Whether the offsets of memoized objects are being recorded */
+    public boolean isIndexing() {
+        return memoOffsets != null;
+    }
+
+    public int getMemoCount() {
+        return memos.size();
+    }
+
+    /**
+     * The offset of the header of a memoized object, by the index it would be referenced with
+     * in the file (one based).  Only available when indexing.
+     */
+    public int getMemoOffset(long idx) throws SerializationException {
+        if (memoOffsets == null)
+            throw new IllegalStateException("not indexing");
+        if (idx < 1 || idx - 1 >= memoOffsets.size())
+            throw new SerializationException("invalid index " + idx + " only have " + memoOffsets.size());
+        return memoOffsets.get((int) idx - 1);
+    }
+}
@@ -0,0 +1,217 @@
+package org.smartcolors.marshal;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The entries of a serialized {@link MerbinnerTree}, read in place from the buffer of a
+ * {@link MappedDeserializer}, usually a mapped file.
+ * <p/>
+ * <p>The tree is scanned once when indexed.  Only the offset of the right child of each inner
+ * node is kept, along with the hash and sum of subtrees with more than {@link #SUMMARIZED_LEAVES}
+ * leaves.  A key is then proved by reading the nodes on its path, plus the small sibling subtrees
+ * whose hashes were not kept.  Nothing that is read is retained, and the buffer must not change
+ * while the source is in use.</p>
+ */
+public class MappedMerbinnerSource<K, V> implements MerbinnerTree.Source<K, V> {
+    /** Subtrees with more leaves than this have their hash and sum kept by the index */
+    public static final int SUMMARIZED_LEAVES = 64;
+
+    // Used for reading and hashing entries, not for its own entries
+    private final MerbinnerTree<K, V> type;
+    private final MappedDeserializer des;
+    private final int rootOffset;
+    // The offsets of the inner nodes in the order written, which is ascending, and of their right children
+    private final int[] innerOffsets;
+    private final int[] rightOffsets;
+    private final Map<Integer, Summary> summaries;
+    private final Summary root;
+
+    private MappedMerbinnerSource(MerbinnerTree<K, V> type, MappedDeserializer des, int rootOffset, Index index, Summary root) {
+        this.type = type;
+        this.des = des;
+        this.rootOffset = rootOffset;
+        this.innerOffsets = Arrays.copyOf(index.innerOffsets, index.size);
+        this.rightOffsets = Arrays.copyOf(index.rightOffsets, index.size);
+        this.summaries = index.summaries;
+        this.root = root;
+    }
+
+    /**
+     * Index the tree at the position of the deserializer, leaving it after the tree.
+     *
+     * @param type a tree of the type serialized, only used to read and hash entries
+     */
+    public static <K, V> MappedMerbinnerSource<K, V> index(MerbinnerTree<K, V> type, MappedDeserializer des) throws SerializationException {
+        int rootOffset = des.position();
+        Index index = new Index();
+        Summary root = new Walker<K, V>(type, index, null, null).walk(des, 0);
+        return new MappedMerbinnerSource<K, V>(type, des.duplicate(), rootOffset, index, root);
+    }
+
+    public HashCode getRootHash() {
+        return root.hash;
+    }
+
+    public long getRootSum() {
+        return root.sum;
+    }
+
+    @Override
+    public MerbinnerProof prove(K key) throws SerializationException {
+        byte[] keyHash = type.getKeyHash(key).asBytes();
+        List<HashCode> siblingHashes = Lists.newArrayList();
+        List<Long> siblingSums = Lists.newArrayList();
+        MappedDeserializer des = this.des.duplicate();
+        int offset = rootOffset;
+        for (int depth = 0; ; depth++) {
+            des.position(offset);
+            long nodeType = des.readVarulong();
+            if (nodeType == 0) {
+                return new MerbinnerProof(siblingHashes, siblingSums);
+            } else if (nodeType == 1) {
+                K leafKey = type.readKey(des);
+                V value = type.readValue(des);
+                HashSerializer keySer = new HashSerializer();
+                type.serializeKey(keySer, leafKey);
+                HashSerializer valueSer = new HashSerializer();
+                type.serializeValue(valueSer, value);
+                return new MerbinnerProof(siblingHashes, siblingSums, keySer.getBytes(), valueSer.getBytes(), type.getSum(value));
+            } else if (nodeType == 2) {
+                if (depth >= MerbinnerTree.MAX_DEPTH)
+                    throw new SerializationException("Merbinner tree too deep");
+                int left = des.position();
+                int right = getRightOffset(offset);
+                int sibling;
+                if (MerbinnerTree.getSide(keyHash, depth)) {
+                    offset = left;
+                    sibling = right;
+                } else {
+                    offset = right;
+                    sibling = left;
+                }
+                Summary summary = summaries.get(sibling);
+                if (summary == null) {
+                    des.position(sibling);
+                    summary = new Walker<K, V>(type, null, null, null).walk(des, depth + 1);
+                }
+                siblingHashes.add(summary.hash);
+                siblingSums.add(summary.sum);
+            } else {
+                throw new SerializationException("unknown Merbinner node type " + nodeType);
+            }
+        }
+    }
+
+    @Override
+    public void visitAll(MerbinnerTree.Visitor<K, V> visitor) throws SerializationException {
+        walkAll(visitor, null);
+    }
+
+    @Override
+    public void serialize(Serializer ser) throws SerializationException {
+        walkAll(null, ser);
+    }
+
+    /** Read the whole tree, checking that it still has the root hash */
+    private void walkAll(@Nullable MerbinnerTree.Visitor<K, V> visitor, @Nullable Serializer ser) throws SerializationException {
+        MappedDeserializer des = this.des.duplicate();
+        des.position(rootOffset);
+        Summary summary = new Walker<K, V>(type, null, visitor, ser).walk(des, 0);
+        if (!summary.hash.equals(root.hash))
+            throw new SerializationException("tree does not match indexed root " + root.hash);
+    }
+
+    private int getRightOffset(int innerOffset) throws SerializationException {
+        int i = Arrays.binarySearch(innerOffsets, innerOffset);
+        if (i < 0)
+            throw new SerializationException("no inner node at " + innerOffset);
+        return rightOffsets[i];
+    }
+
+    private static class Summary {
+        final HashCode hash;
+        final long sum;
+        final long leaves;
+
+        Summary(HashCode hash, long sum, long leaves) {
+            this.hash = hash;
+            this.sum = sum;
+            this.leaves = leaves;
+        }
+    }
+
+    private static class Index {
+        int[] innerOffsets = new int[16];
+        int[] rightOffsets = new int[16];
+        int size;
+        final Map<Integer, Summary> summaries = Maps.newHashMap();
+
+        int add(int innerOffset) {
+            if (size == innerOffsets.length) {
+                innerOffsets = Arrays.copyOf(innerOffsets, size * 2);
+                rightOffsets = Arrays.copyOf(rightOffsets, size * 2);
+            }
+            innerOffsets[size] = innerOffset;
+            return size++;
+        }
+    }
+
+    /** Reads a subtree, hashing it and optionally indexing it, visiting its entries or copying it */
+    private static class Walker<K, V> {
+        private final MerbinnerTree<K, V> type;
+        private final Index index;
+        private final MerbinnerTree.Visitor<K, V> visitor;
+        private final Serializer ser;
+
+        Walker(MerbinnerTree<K, V> type, @Nullable Index index, @Nullable MerbinnerTree.Visitor<K, V> visitor, @Nullable Serializer ser) {
+            this.type = type;
+            this.index = index;
+            this.visitor = visitor;
+            this.ser = ser;
+        }
+
+        Summary walk(MappedDeserializer des, int depth) throws SerializationException {
+            int offset = des.position();
+            long nodeType = des.readVarulong();
+            if (ser != null)
+                ser.write(nodeType);
+            if (nodeType == 0) {
+                return new Summary(MerbinnerTree.Node.<K, V>empty().getHash(type), 0, 0);
+            } else if (nodeType == 1) {
+                K key = type.readKey(des);
+                V value = type.readValue(des);
+                if (visitor != null)
+                    visitor.visit(key, value);
+                if (ser != null) {
+                    type.serializeKey(ser, key);
+                    type.serializeValue(ser, value);
+                }
+                HashSerializer valueSer = new HashSerializer();
+                type.serializeValue(valueSer, value);
+                return new Summary(type.hashLeaf(type.getKeyHash(key).asBytes(), valueSer.getBytes()), type.getSum(value), 1);
+            } else if (nodeType == 2) {
+                if (depth >= MerbinnerTree.MAX_DEPTH)
+                    throw new SerializationException("Merbinner tree too deep");
+                int slot = index != null ? index.add(offset) : -1;
+                Summary left = walk(des, depth + 1);
+                if (index != null)
+                    index.rightOffsets[slot] = des.position();
+                Summary right = walk(des, depth + 1);
+                Summary summary = new Summary(type.hashInner(left.hash, left.sum, right.hash, right.sum),
+                        MerbinnerTree.doSum(left.sum, right.sum), left.leaves + right.leaves);
+                if (index != null && summary.leaves > SUMMARIZED_LEAVES)
+                    index.summaries.put(offset, summary);
+                return summary;
+            } else {
+                throw new SerializationException("unknown Merbinner node type " + nodeType);
+            }
+        }
+    }
+}
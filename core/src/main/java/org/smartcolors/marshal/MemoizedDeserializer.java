@@ -26,6 +26,11 @@ public class MemoizedDeserializer extends StreamDeserializer {
         return null;
     }
 
+    /** Add an object that the writer referenced without writing, see {@link MemoizedSerializer#addExternalMemo} */
+    public void addExternalMemo(Object obj) {
+        memos.add(obj);
+    }
+
     @Override
     public <T> void afterReadObject(T obj) throws SerializationException {
         memos.add(obj);
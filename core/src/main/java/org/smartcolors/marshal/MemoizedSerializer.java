@@ -18,18 +18,37 @@ public class MemoizedSerializer extends StreamSerializer {
 
     @Override
     public void write(Serializable obj) throws SerializationException {
-        HashCode hash = obj.getHash();
-        Long idx = memos.get(hash);
-        if (idx != null)
-            write(idx);
-        else {
-            write(0);
+        if (writeObjectHeader(obj)) {
             super.write(obj);
-            idx = memos.size() + 1L;
-            memos.put(hash, idx);
+            afterWriteObject(obj);
         }
     }
 
+    @Override
+    public boolean writeObjectHeader(Serializable obj) throws SerializationException {
+        Long idx = memos.get(obj.getHash());
+        if (idx != null) {
+            write(idx);
+            return false;
+        }
+        write(0);
+        return true;
+    }
+
+    /**
+     * Assign the next memo index to an object that the reader already has, so that it is written
+     * as a reference.  The reader must add the same objects in the same order before reading.
+     */
+    public void addExternalMemo(HashCode hash) {
+        memos.put(hash, memos.size() + 1L);
+    }
+
+    @Override
+    public void afterWriteObject(Serializable obj) throws SerializationException {
+        // Indexes are assigned after the body, in the order the deserializer sees objects complete
+        memos.put(obj.getHash(), memos.size() + 1L);
+    }
+
     @Override
     public void write(Object obj, SerializerHelper helper) throws SerializationException {
         HashCode hash = helper.getHash(obj);
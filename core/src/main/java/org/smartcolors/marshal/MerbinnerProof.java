@@ -0,0 +1,126 @@
+package org.smartcolors.marshal;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+
+import java.util.List;
+
+/**
+ * An authentication path in a {@link MerbinnerTree}, proving that a key is or isn't in the tree
+ * with a given root hash.
+ * <p/>
+ * <p>Holds the hash and sum of each sibling on the path of the key from the root, and the node
+ * the path ends at.  That node is either empty, or a leaf in the hashed form, i.e. the key and
+ * value as written by a {@link HashSerializer}.  A leaf with a different key, or an empty node,
+ * proves that the key is not in the tree.</p>
+ * <p/>
+ * <p>Verification is done by {@link MerbinnerTree#verify} and {@link MerbinnerTree#verifyAbsent},
+ * which can be called on an empty tree of the right type.</p>
+ */
+public class MerbinnerProof {
+    public static final int VERSION = 1;
+
+    private final List<HashCode> siblingHashes;
+    private final List<Long> siblingSums;
+    private final byte[] leafKey;
+    private final byte[] leafValue;
+    private final long leafSum;
+
+    /** A path ending at an empty node */
+    public MerbinnerProof(List<HashCode> siblingHashes, List<Long> siblingSums) {
+        this(siblingHashes, siblingSums, null, null, 0);
+    }
+
+    /** A path ending at a leaf, where leafKey and leafValue are in the hashed form */
+    public MerbinnerProof(List<HashCode> siblingHashes, List<Long> siblingSums, byte[] leafKey, byte[] leafValue, long leafSum) {
+        this.siblingHashes = ImmutableList.copyOf(siblingHashes);
+        this.siblingSums = ImmutableList.copyOf(siblingSums);
+        this.leafKey = leafKey;
+        this.leafValue = leafValue;
+        this.leafSum = leafSum;
+    }
+
+    /** Hashes of the siblings on the path, starting at the root */
+    public List<HashCode> getSiblingHashes() {
+        return siblingHashes;
+    }
+
+    /** Sums of the siblings on the path, starting at the root */
+    public List<Long> getSiblingSums() {
+        return siblingSums;
+    }
+
+    public int getDepth() {
+        return siblingHashes.size();
+    }
+
+    /** Whether the path ends at a leaf, rather than an empty node */
+    public boolean hasLeaf() {
+        return leafKey != null;
+    }
+
+    public byte[] getLeafKey() {
+        return leafKey;
+    }
+
+    public byte[] getLeafValue() {
+        return leafValue;
+    }
+
+    public long getLeafSum() {
+        return leafSum;
+    }
+
+    public void serialize(Serializer ser) throws SerializationException {
+        ser.write(VERSION);
+        ser.write(siblingHashes.size());
+        for (int i = 0; i < siblingHashes.size(); i++) {
+            ser.write(siblingHashes.get(i).asBytes());
+            ser.write(siblingSums.get(i));
+        }
+        if (hasLeaf()) {
+            ser.write(1);
+            ser.writeWithLength(leafKey);
+            ser.writeWithLength(leafValue);
+            ser.write(leafSum);
+        } else {
+            ser.write(0);
+        }
+    }
+
+    public static MerbinnerProof deserialize(Deserializer des) throws SerializationException {
+        long version = des.readVarulong();
+        if (version != VERSION)
+            throw new SerializationException("unknown version " + version);
+        int depth = des.readVaruint();
+        if (depth > MerbinnerTree.MAX_DEPTH)
+            throw new SerializationException("path too deep " + depth);
+        List<HashCode> hashes = Lists.newArrayListWithCapacity(depth);
+        List<Long> sums = Lists.newArrayListWithCapacity(depth);
+        for (int i = 0; i < depth; i++) {
+            hashes.add(HashCode.fromBytes(des.readBytes(32)));
+            sums.add(des.readVarulong());
+        }
+        long type = des.readVarulong();
+        if (type == 0) {
+            return new MerbinnerProof(hashes, sums);
+        } else if (type == 1) {
+            byte[] key = des.readBytes();
+            byte[] value = des.readBytes();
+            long sum = des.readVarulong();
+            return new MerbinnerProof(hashes, sums, key, value, sum);
+        } else {
+            throw new SerializationException("unknown Merbinner proof node type " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("depth", getDepth())
+                .add("leaf", hasLeaf())
+                .toString();
+    }
+}
@@ -1,33 +1,210 @@
 package org.smartcolors.marshal;
 
-import com.google.common.collect.Sets;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.hash.HashCode;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Created by devrandom on 2014-Nov-17.
+ * <p/>
+ * <p>The entries are backed by a persistent binary trie keyed by the bits of each key hash.  Nodes
+ * are immutable and shared between successive versions of the trie, and each node caches its hash
+ * and sum once computed.  Adding or removing an entry through {@link #put} or {@link #remove}
+ * only replaces the nodes on the path to the root, so the next {@link #getHash()} rehashes
+ * O(depth) nodes.</p>
+ * <p/>
+ * <p>A tree that is no longer changed can be read and hashed from several threads, e.g. when
+ * proofs are validated in parallel.  Changes must not run concurrently with anything else.</p>
+ * <p/>
+ * <p>A tree can also be pruned, keeping only the hash and sum of the root.  Entries are then
+ * looked up in a {@link Source} as authenticated paths, and the last {@link #LOOKUP_CACHE_SIZE}
+ * lookups are kept, including keys that were not found.  A pruned tree is serialized straight
+ * from the source, and stays pruned.</p>
  */
 public abstract class MerbinnerTree<K, V> extends HashableSerializable {
+    public static final int MAX_DEPTH = 256;
+    /** How many lookups a pruned tree keeps */
+    public static final int LOOKUP_CACHE_SIZE = 10000;
+
     protected Map<K, V> entries;
+    // Built lazily, possibly by several validating threads at once, so published through a volatile
+    private volatile Node<K, V> root;
+    // Only for pruned trees, which don't use entries
+    private final Source<K, V> source;
+    private final HashCode prunedHash;
+    private final long prunedSum;
+    private final Cache<K, Lookup<V>> lookups;
+
+    /** Backing store for the entries of a pruned tree */
+    public interface Source<K, V> {
+        /** An authentication path for the key, against the root of the pruned tree */
+        MerbinnerProof prove(K key) throws SerializationException;
+
+        /** Pass each entry of the tree to the visitor, without keeping them */
+        void visitAll(Visitor<K, V> visitor) throws SerializationException;
+
+        /** Write the tree in the same form as {@link MerbinnerTree#serialize} */
+        void serialize(Serializer ser) throws SerializationException;
+    }
+
+    /** Receives the entries of a tree one at a time, see {@link #visitAll} */
+    public interface Visitor<K, V> {
+        void visit(K key, V value);
+    }
 
     public MerbinnerTree(Map<K, V> entries) {
         this.entries = entries;
+        this.source = null;
+        this.prunedHash = null;
+        this.prunedSum = 0;
+        this.lookups = null;
+    }
+
+    /** A pruned tree with the given root hash and sum, backed by the source */
+    protected MerbinnerTree(HashCode hash, long sum, Source<K, V> source) {
+        this.entries = Collections.emptyMap();
+        this.prunedHash = hash;
+        this.prunedSum = sum;
+        this.source = source;
+        this.lookups = CacheBuilder.newBuilder().maximumSize(LOOKUP_CACHE_SIZE).build();
     }
 
     public MerbinnerTree() {
+        this(null);
     }
 
     public V get(K key) {
+        if (isPruned())
+            return lookup(key).value;
         return entries.get(key);
     }
 
     public boolean containsKey(K key) {
+        if (isPruned())
+            return lookup(key).present;
         return entries.containsKey(key);
     }
 
+    public boolean isPruned() {
+        return source != null;
+    }
+
+    private Lookup<V> lookup(K key) {
+        Lookup<V> lookup = lookups.getIfPresent(key);
+        if (lookup == null) {
+            lookup = fetch(key);
+            lookups.put(key, lookup);
+        }
+        return lookup;
+    }
+
+    /** Fetch the path for the key from the source and check it against the root */
+    private Lookup<V> fetch(K key) {
+        try {
+            MerbinnerProof proof = source.prove(key);
+            if (proof.hasLeaf()) {
+                V value = deserializeHashedValue(proof.getLeafValue());
+                if (verify(proof, prunedHash, key, value))
+                    return new Lookup<V>(true, value);
+            }
+            if (verifyAbsent(proof, prunedHash, key))
+                return new Lookup<V>(false, null);
+            throw new SerializationException("path for " + key + " does not match pruned root " + prunedHash);
+        } catch (SerializationException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * All the entries.  A pruned tree reads them from its source, and does not keep them, so this
+     * is expensive for a large pruned tree.
+     */
+    public Map<K, V> getAll() {
+        if (!isPruned())
+            return Collections.unmodifiableMap(entries);
+        final Map<K, V> res = Maps.newHashMap();
+        visitAll(new Visitor<K, V>() {
+            @Override
+            public void visit(K key, V value) {
+                res.put(key, value);
+            }
+        });
+        return Collections.unmodifiableMap(res);
+    }
+
+    /**
+     * Pass each entry to the visitor.  A pruned tree streams them from its source, so unlike
+     * {@link #getAll} this does not hold all of the entries at once.
+     */
+    public void visitAll(Visitor<K, V> visitor) {
+        if (!isPruned()) {
+            for (Map.Entry<K, V> entry : entries.entrySet()) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        try {
+            source.visitAll(visitor);
+        } catch (SerializationException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Read a value in the form written by a {@link HashSerializer}, so that entries can be
+     * faulted in from authentication paths.  Subclasses that can be pruned must implement this.
+     */
+    protected V deserializeHashedValue(byte[] bytes) throws SerializationException {
+        throw new SerializationException(getClass().getSimpleName() + " cannot be pruned");
+    }
+
+    /**
+     * Read a key as written by {@link #serializeKey}, so that the tree can be read in place by a
+     * {@link MappedMerbinnerSource}.
+     */
+    protected K readKey(Deserializer des) throws SerializationException {
+        throw new SerializationException(getClass().getSimpleName() + " cannot be read in place");
+    }
+
+    /** Read a value as written by {@link #serializeValue}, see {@link #readKey} */
+    protected V readValue(Deserializer des) throws SerializationException {
+        throw new SerializationException(getClass().getSimpleName() + " cannot be read in place");
+    }
+
+    /** Add or replace an entry, updating the path to the root of the trie if it was already built */
+    public void put(K key, V value) {
+        checkState(!isPruned(), "pruned");
+        HashCode keyHash = getKeyHash(key);
+        entries.put(key, value);
+        Node<K, V> current = root;
+        if (current != null)
+            root = current.put(this, new Leaf<K, V>(key, keyHash.asBytes(), value), 0);
+    }
+
+    /** Remove an entry, updating the path to the root of the trie if it was already built */
+    public void remove(K key) {
+        checkState(!isPruned(), "pruned");
+        if (!entries.containsKey(key))
+            return;
+        byte[] keyHash = getKeyHash(key).asBytes();
+        entries.remove(key);
+        Node<K, V> current = root;
+        if (current != null)
+            root = current.remove(key, keyHash, 0);
+    }
+
     public abstract void serializeKey(Serializer ser, K key) throws SerializationException;
 
     public abstract void serializeValue(Serializer ser, V value) throws SerializationException;
@@ -36,59 +213,213 @@ public abstract class MerbinnerTree<K, V> extends HashableSerializable {
 
     public abstract com.google.common.hash.HashCode getKeyHash(K key);
 
+    /**
+     * Serialize the key of a leaf.  Keys are hashed as their key hash, which the leaf already has.
+     */
+    protected void serializeKey(Serializer ser, Leaf<K, V> leaf) throws SerializationException {
+        if (ser instanceof HashSerializer)
+            ser.write(leaf.getKeyHash());
+        else
+            serializeKey(ser, leaf.getKey());
+    }
+
+    /** The keys.  Not available while pruned, see {@link #getAll} */
     public Set<K> keySet() {
+        checkState(!isPruned(), "pruned");
         return entries.keySet();
     }
 
-
+    /** The values.  Not available while pruned, see {@link #getAll} */
     public Collection<V> values() {
+        checkState(!isPruned(), "pruned");
         return entries.values();
     }
 
-    @Override
-    public void serialize(final Serializer ser) throws SerializationException {
-        serialize(ser, entries.keySet(), 0);
+    /**
+     * The root of the trie.  Built on first use from the entries, so subclasses may fill
+     * {@link #entries} directly while deserializing.  After that, mutations must go through
+     * {@link #put} and {@link #remove}.
+     */
+    protected Node<K, V> getRoot() {
+        checkState(!isPruned(), "pruned");
+        Node<K, V> res = root;
+        if (res == null) {
+            res = build(entries);
+            root = res;
+        }
+        return res;
     }
 
-    private long serialize(Serializer ser, Collection<K> keys, int depth) throws SerializationException {
-        if (keys.isEmpty()) {
-            ser.write(0);
-            return 0;
-        } else if (keys.size() == 1) {
-            ser.write(1);
-            K key = keys.iterator().next();
-            serializeKey(ser, key);
-            serializeValue(ser, entries.get(key));
-            return getSum(entries.get(key));
+    private Node<K, V> build(Map<K, V> map) {
+        List<Leaf<K, V>> leaves = Lists.newArrayListWithCapacity(map.size());
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            leaves.add(new Leaf<K, V>(entry.getKey(), getKeyHash(entry.getKey()).asBytes(), entry.getValue()));
+        }
+        return build(leaves, 0);
+    }
+
+    private Node<K, V> build(List<Leaf<K, V>> leaves, int depth) {
+        if (leaves.isEmpty()) {
+            return Node.<K, V>empty();
+        } else if (leaves.size() == 1) {
+            return leaves.get(0);
         } else {
-            ser.write(2);
-            Set<K> left = Sets.newHashSet();
-            Set<K> right = Sets.newHashSet();
-            for (K key : keys) {
-                byte[] keyHash = getKeyHash(key).asBytes();
-                boolean side = ((keyHash[depth / 8] >> (7 - (depth % 8))) & 1) == 1;
-                if (side)
-                    left.add(key);
+            checkState(depth < MAX_DEPTH, "key hash collision");
+            List<Leaf<K, V>> left = Lists.newArrayList();
+            List<Leaf<K, V>> right = Lists.newArrayList();
+            for (Leaf<K, V> leaf : leaves) {
+                if (getSide(leaf.keyHash, depth))
+                    left.add(leaf);
                 else
-                    right.add(key);
+                    right.add(leaf);
             }
-            long leftSum = subSerialize(ser, left, depth + 1);
-            long rightSum = subSerialize(ser, right, depth + 1);
-            return doSum(leftSum, rightSum);
+            return new Inner<K, V>(build(left, depth + 1), build(right, depth + 1));
         }
     }
 
-    private long subSerialize(Serializer ser, Set<K> keys, int depth) throws SerializationException {
-        if (ser instanceof HashSerializer) {
-            HashSerializer ser1 = new HashSerializer();
-            long sum = serialize(ser1, keys, depth);
-            HashCode hash = HashSerializer.calcHash(ser1, getHmacKey());
-            ser.write(hash.asBytes());
-            serializeSum(ser, sum);
-            return sum;
+    static boolean getSide(byte[] keyHash, int depth) {
+        return ((keyHash[depth / 8] >> (7 - (depth % 8))) & 1) == 1;
+    }
+
+    @Override
+    public HashCode getHash() {
+        if (isPruned())
+            return prunedHash;
+        return getRoot().getHash(this);
+    }
+
+    /** The sum of all values */
+    public long getRootSum() {
+        if (isPruned())
+            return prunedSum;
+        return getRoot().getSum(this);
+    }
+
+    /** Build an authentication path for the key, proving either that it is in the tree or that it isn't */
+    public MerbinnerProof prove(K key) {
+        if (isPruned()) {
+            try {
+                return source.prove(key);
+            } catch (SerializationException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        byte[] keyHash = getKeyHash(key).asBytes();
+        List<HashCode> siblingHashes = Lists.newArrayList();
+        List<Long> siblingSums = Lists.newArrayList();
+        Node<K, V> node = getRoot();
+        int depth = 0;
+        while (node instanceof Inner) {
+            Inner<K, V> inner = (Inner<K, V>) node;
+            Node<K, V> sibling;
+            if (getSide(keyHash, depth)) {
+                node = inner.left;
+                sibling = inner.right;
+            } else {
+                node = inner.right;
+                sibling = inner.left;
+            }
+            siblingHashes.add(sibling.getHash(this));
+            siblingSums.add(sibling.getSum(this));
+            depth++;
+        }
+        if (node instanceof Leaf) {
+            Leaf<K, V> leaf = (Leaf<K, V>) node;
+            try {
+                HashSerializer keySer = new HashSerializer();
+                serializeKey(keySer, leaf.key);
+                HashSerializer valueSer = new HashSerializer();
+                serializeValue(valueSer, leaf.value);
+                return new MerbinnerProof(siblingHashes, siblingSums, keySer.getBytes(), valueSer.getBytes(), leaf.getSum(this));
+            } catch (SerializationException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        return new MerbinnerProof(siblingHashes, siblingSums);
+    }
+
+    /**
+     * Verify that the proof shows the key mapped to the value in a tree with the given root hash.
+     * Only uses the type of this tree, not its entries.
+     */
+    public boolean verify(MerbinnerProof proof, HashCode rootHash, K key, V value) throws SerializationException {
+        if (!proof.hasLeaf())
+            return false;
+        HashSerializer keySer = new HashSerializer();
+        serializeKey(keySer, key);
+        HashSerializer valueSer = new HashSerializer();
+        serializeValue(valueSer, value);
+        if (!Arrays.equals(keySer.getBytes(), proof.getLeafKey()) ||
+                !Arrays.equals(valueSer.getBytes(), proof.getLeafValue()) ||
+                getSum(value) != proof.getLeafSum())
+            return false;
+        return calcRootHash(proof, getKeyHash(key).asBytes()).equals(rootHash);
+    }
+
+    /**
+     * Verify that the proof shows the key is not in a tree with the given root hash.
+     * Only uses the type of this tree, not its entries.
+     */
+    public boolean verifyAbsent(MerbinnerProof proof, HashCode rootHash, K key) throws SerializationException {
+        if (proof.hasLeaf()) {
+            HashSerializer keySer = new HashSerializer();
+            serializeKey(keySer, key);
+            if (Arrays.equals(keySer.getBytes(), proof.getLeafKey()))
+                return false;
+        }
+        return calcRootHash(proof, getKeyHash(key).asBytes()).equals(rootHash);
+    }
+
+    private HashCode calcRootHash(MerbinnerProof proof, byte[] keyHash) throws SerializationException {
+        if (proof.getDepth() > MAX_DEPTH)
+            return HashCode.fromBytes(new byte[32]);
+        HashCode hash;
+        long sum;
+        if (proof.hasLeaf()) {
+            hash = hashLeaf(proof.getLeafKey(), proof.getLeafValue());
+            sum = proof.getLeafSum();
         } else {
-            return serialize(ser, keys, depth);
+            hash = Node.<K, V>empty().getHash(this);
+            sum = 0;
+        }
+        for (int depth = proof.getDepth() - 1; depth >= 0; depth--) {
+            HashCode siblingHash = proof.getSiblingHashes().get(depth);
+            long siblingSum = proof.getSiblingSums().get(depth);
+            if (getSide(keyHash, depth))
+                hash = hashInner(hash, sum, siblingHash, siblingSum);
+            else
+                hash = hashInner(siblingHash, siblingSum, hash, sum);
+            sum = doSum(sum, siblingSum);
         }
+        return hash;
+    }
+
+    /** The hash of a leaf, given its key and value in the form written by a {@link HashSerializer} */
+    HashCode hashLeaf(byte[] key, byte[] value) throws SerializationException {
+        HashSerializer ser = new HashSerializer(getHmacKey());
+        ser.write(1);
+        ser.write(key);
+        ser.write(value);
+        return ser.finish();
+    }
+
+    /** The hash of an inner node, given the hashes and sums of its children */
+    HashCode hashInner(HashCode leftHash, long leftSum, HashCode rightHash, long rightSum) throws SerializationException {
+        HashSerializer ser = new HashSerializer(getHmacKey());
+        ser.write(2);
+        ser.write(leftHash.asBytes());
+        serializeSum(ser, leftSum);
+        ser.write(rightHash.asBytes());
+        serializeSum(ser, rightSum);
+        return ser.finish();
+    }
+
+    @Override
+    public void serialize(final Serializer ser) throws SerializationException {
+        if (isPruned())
+            source.serialize(ser);
+        else
+            getRoot().serialize(this, ser);
     }
 
     protected void serializeSum(Serializer ser, long sum) throws SerializationException {
@@ -111,7 +442,7 @@ public abstract class MerbinnerTree<K, V> extends HashableSerializable {
 
     protected abstract void deserializeNode(Deserializer des) throws SerializationException;
 
-    private long doSum(long leftSum, long rightSum) {
+    static long doSum(long leftSum, long rightSum) {
         return leftSum + rightSum;
     }
 
@@ -119,4 +450,230 @@ public abstract class MerbinnerTree<K, V> extends HashableSerializable {
     public String toString() {
         return getHash().toString();
     }
+
+    /** A lookup in the source of a pruned tree */
+    private static class Lookup<V> {
+        final boolean present;
+        final V value;
+
+        Lookup(boolean present, V value) {
+            this.present = present;
+            this.value = value;
+        }
+    }
+
+    /**
+     * An immutable node of the trie.  The hash and sum are computed lazily and cached, and do not
+     * depend on where the node is in the trie.  The cache fields are volatile, so nodes can be
+     * hashed from several threads - at worst a value is computed more than once.
+     */
+    public static abstract class Node<K, V> {
+        @SuppressWarnings("unchecked")
+        private static final Node EMPTY = new Empty();
+
+        private volatile HashCode hash;
+        private volatile long sum;
+        // Written after sum, so a thread that sees it set also sees the sum
+        private volatile boolean haveSum;
+
+        @SuppressWarnings("unchecked")
+        static <K, V> Node<K, V> empty() {
+            return EMPTY;
+        }
+
+        abstract Node<K, V> put(MerbinnerTree<K, V> tree, Leaf<K, V> leaf, int depth);
+
+        abstract Node<K, V> remove(K key, byte[] keyHash, int depth);
+
+        /** Serialize this node, writing child hashes and sums instead of the children if hashing */
+        abstract void serialize(MerbinnerTree<K, V> tree, Serializer ser) throws SerializationException;
+
+        abstract long calcSum(MerbinnerTree<K, V> tree);
+
+        public HashCode getHash(MerbinnerTree<K, V> tree) {
+            HashCode res = hash;
+            if (res == null) {
+                res = calcHash(tree);
+                hash = res;
+            }
+            return res;
+        }
+
+        HashCode calcHash(MerbinnerTree<K, V> tree) {
+            HashSerializer ser = new HashSerializer(tree.getHmacKey());
+            try {
+                serialize(tree, ser);
+                return ser.finish();
+            } catch (SerializationException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                ser.release();
+            }
+        }
+
+        public long getSum(MerbinnerTree<K, V> tree) {
+            if (!haveSum) {
+                sum = calcSum(tree);
+                haveSum = true;
+            }
+            return sum;
+        }
+    }
+
+    public static class Empty<K, V> extends Node<K, V> {
+        private Empty() {
+        }
+
+        @Override
+        public HashCode getHash(MerbinnerTree<K, V> tree) {
+            // Shared by all trees, so the keyed hash can't be cached here
+            return calcHash(tree);
+        }
+
+        @Override
+        Node<K, V> put(MerbinnerTree<K, V> tree, Leaf<K, V> leaf, int depth) {
+            return leaf;
+        }
+
+        @Override
+        Node<K, V> remove(K key, byte[] keyHash, int depth) {
+            return this;
+        }
+
+        @Override
+        void serialize(MerbinnerTree<K, V> tree, Serializer ser) throws SerializationException {
+            ser.write(0);
+        }
+
+        @Override
+        long calcSum(MerbinnerTree<K, V> tree) {
+            return 0;
+        }
+    }
+
+    public static class Leaf<K, V> extends Node<K, V> {
+        private final K key;
+        private final byte[] keyHash;
+        private final V value;
+
+        Leaf(K key, byte[] keyHash, V value) {
+            this.key = key;
+            this.keyHash = keyHash;
+            this.value = value;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public byte[] getKeyHash() {
+            return keyHash;
+        }
+
+        @Override
+        Node<K, V> put(MerbinnerTree<K, V> tree, Leaf<K, V> leaf, int depth) {
+            if (key.equals(leaf.key))
+                return leaf;
+            return split(this, leaf, depth);
+        }
+
+        private static <K, V> Node<K, V> split(Leaf<K, V> a, Leaf<K, V> b, int depth) {
+            checkState(depth < MAX_DEPTH, "key hash collision");
+            boolean sideA = getSide(a.keyHash, depth);
+            boolean sideB = getSide(b.keyHash, depth);
+            if (sideA == sideB) {
+                Node<K, V> child = split(a, b, depth + 1);
+                return sideA ? new Inner<K, V>(child, Node.<K, V>empty()) : new Inner<K, V>(Node.<K, V>empty(), child);
+            }
+            return sideA ? new Inner<K, V>(a, b) : new Inner<K, V>(b, a);
+        }
+
+        @Override
+        Node<K, V> remove(K key, byte[] keyHash, int depth) {
+            if (this.key.equals(key))
+                return Node.<K, V>empty();
+            return this;
+        }
+
+        @Override
+        void serialize(MerbinnerTree<K, V> tree, Serializer ser) throws SerializationException {
+            ser.write(1);
+            tree.serializeKey(ser, this);
+            tree.serializeValue(ser, value);
+        }
+
+        @Override
+        long calcSum(MerbinnerTree<K, V> tree) {
+            return tree.getSum(value);
+        }
+    }
+
+    public static class Inner<K, V> extends Node<K, V> {
+        private final Node<K, V> left;
+        private final Node<K, V> right;
+
+        Inner(Node<K, V> left, Node<K, V> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Node<K, V> getLeft() {
+            return left;
+        }
+
+        public Node<K, V> getRight() {
+            return right;
+        }
+
+        @Override
+        Node<K, V> put(MerbinnerTree<K, V> tree, Leaf<K, V> leaf, int depth) {
+            if (getSide(leaf.keyHash, depth))
+                return new Inner<K, V>(left.put(tree, leaf, depth + 1), right);
+            else
+                return new Inner<K, V>(left, right.put(tree, leaf, depth + 1));
+        }
+
+        @Override
+        Node<K, V> remove(K key, byte[] keyHash, int depth) {
+            Node<K, V> newLeft = left;
+            Node<K, V> newRight = right;
+            if (getSide(keyHash, depth))
+                newLeft = left.remove(key, keyHash, depth + 1);
+            else
+                newRight = right.remove(key, keyHash, depth + 1);
+            if (newLeft == left && newRight == right)
+                return this;
+            // Collapse back to a leaf if it is now alone, so that the trie stays canonical
+            if (newLeft instanceof Empty && newRight instanceof Leaf)
+                return newRight;
+            if (newRight instanceof Empty && newLeft instanceof Leaf)
+                return newLeft;
+            return new Inner<K, V>(newLeft, newRight);
+        }
+
+        @Override
+        void serialize(MerbinnerTree<K, V> tree, Serializer ser) throws SerializationException {
+            ser.write(2);
+            serializeChild(tree, ser, left);
+            serializeChild(tree, ser, right);
+        }
+
+        private void serializeChild(MerbinnerTree<K, V> tree, Serializer ser, Node<K, V> child) throws SerializationException {
+            if (ser instanceof HashSerializer) {
+                ser.write(child.getHash(tree).asBytes());
+                tree.serializeSum(ser, child.getSum(tree));
+            } else {
+                child.serialize(tree, ser);
+            }
+        }
+
+        @Override
+        long calcSum(MerbinnerTree<K, V> tree) {
+            return doSum(left.getSum(tree), right.getSum(tree));
+        }
+    }
 }
@@ -10,5 +10,6 @@ public interface Serializable {
 
     HashCode getHash();
 
+    /** The key of the HMAC this object is hashed with.  Returns a new array, so callers may keep it. */
     byte[] getHmacKey();
 }
@@ -1,21 +1,36 @@
 package org.smartcolors.marshal;
 
-import org.bitcoinj.core.TransactionOutPoint;
-
-import java.util.Collection;
-
 /**
  * Created by devrandom on 2015-07-19.
  */
 public class SerializationState {
-    public SerializationState(IterativeSerializable serializable, Collection<TransactionOutPoint> keys, int depth) {
+    public SerializationState(IterativeSerializable serializable, MerbinnerTree.Node<?, ?> node) {
         this.serializable = serializable;
-        this.keys = keys;
-        this.depth = depth;
+        this.node = node;
+    }
+
+    public SerializationState(IterativeSerializable serializable, MerbinnerTree.Node<?, ?> node, Callback callback) {
+        this(serializable, node);
+        this.callback = callback;
+    }
+
+    public interface Callback {
+        void call(IterativeSerializable serializable) throws SerializationException;
+    }
+
+    /** A callback finishing an object started with {@link Serializer#writeObjectHeader} */
+    public static Callback afterWrite(final Serializer ser) {
+        return new Callback() {
+            @Override
+            public void call(IterativeSerializable serializable) throws SerializationException {
+                ser.afterWriteObject((Serializable) serializable);
+            }
+        };
     }
 
     public IterativeSerializable serializable;
-    public Collection<TransactionOutPoint> keys;
-    public int depth;
+    /** The subtree to serialize, or null for the root */
+    public MerbinnerTree.Node<?, ?> node;
+    public Callback callback;
     public boolean isDone = false;
 }
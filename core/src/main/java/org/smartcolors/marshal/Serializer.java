@@ -13,4 +13,14 @@ public interface Serializer {
     void write(Serializable obj) throws SerializationException;
 
     void write(Object obj, SerializerHelper helper) throws SerializationException;
+
+    /**
+     * Write the object header (if any) of an object that is serialized iteratively.
+     *
+     * @return true if the object body should be written, false if it was written by reference
+     */
+    boolean writeObjectHeader(Serializable obj) throws SerializationException;
+
+    /** Called when the body of an object started with {@link #writeObjectHeader} is done */
+    void afterWriteObject(Serializable obj) throws SerializationException;
 }
@@ -1,5 +1,8 @@
 package org.smartcolors.marshal;
 
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -19,18 +22,20 @@ public class StreamDeserializer implements Deserializer {
         long value = 0;
         int shift = 0;
         while (true) {
-            long b = 0;
+            int b;
             try {
                 b = is.read();
-                if (b < 0)
-                    break;
             } catch (IOException e) {
                 throw new SerializationException(e);
             }
-            value |= (b & 0x7f) << shift;
+            if (b < 0)
+                throw new SerializationException("short read");
+            value |= (long) (b & 0x7f) << shift;
             if ((b & 0x80) == 0)
                 break;
             shift += 7;
+            if (shift > 63)
+                throw new SerializationException("varint too long");
         }
         return value;
     }
@@ -47,7 +52,9 @@ public class StreamDeserializer implements Deserializer {
     public byte[] readBytes(int expectedLength) throws SerializationException {
         byte[] buf = new byte[expectedLength];
         try {
-            is.read(buf);
+            ByteStreams.readFully(is, buf);
+        } catch (EOFException e) {
+            throw new SerializationException("short read");
         } catch (IOException e) {
             throw new SerializationException(e);
         }
@@ -63,18 +70,8 @@ public class StreamDeserializer implements Deserializer {
     public byte[] readBytes() throws SerializationException {
         long length = readVarulong();
         if (length > MAX_BYTES || length < 0)
-            throw new RuntimeException("bytes longer than max");
-        byte[] buf = new byte[(int) length];
-        try {
-            if (length > 0) {
-                int len = is.read(buf);
-                if (len < buf.length)
-                    throw new SerializationException("short read");
-            }
-        } catch (IOException e) {
-            throw new SerializationException(e);
-        }
-        return buf;
+            throw new SerializationException("bytes longer than max");
+        return readBytes((int) length);
     }
 
     public <T> T readObject(ObjectReader<T> reader) throws SerializationException {
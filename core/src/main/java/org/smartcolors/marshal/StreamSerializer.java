@@ -1,7 +1,6 @@
 package org.smartcolors.marshal;
 
 import com.google.common.collect.Queues;
-import org.smartcolors.core.PrevoutProofsMerbinnerTree;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -12,6 +11,7 @@ import java.util.ArrayDeque;
  */
 public class StreamSerializer implements Serializer {
     protected final OutputStream os;
+    private final byte[] varintBuf = new byte[BufferSerializer.MAX_VARINT];
 
     public StreamSerializer(OutputStream os) {
         this.os = os;
@@ -19,16 +19,10 @@ public class StreamSerializer implements Serializer {
 
     @Override
     public void write(long value) throws SerializationException {
+        // Encode into a scratch buffer so the stream sees one write per varint
+        int len = BufferSerializer.encodeVarint(value, varintBuf, 0);
         try {
-            if (value == 0)
-                os.write(0);
-            while (value != 0) {
-                int b = (int) (value & 0x7f);
-                value = (value >> 7) & Long.MAX_VALUE;
-                if (value != 0)
-                    b |= 0x80;
-                os.write(b);
-            }
+            os.write(varintBuf, 0, len);
         } catch (IOException e) {
             throw new SerializationException(e);
         }
@@ -58,11 +52,12 @@ public class StreamSerializer implements Serializer {
         if (obj instanceof IterativeSerializable) {
             // Switch to iterative serialization
             ArrayDeque<SerializationState> stack = Queues.newArrayDeque();
-            IterativeSerializable tree = (PrevoutProofsMerbinnerTree) obj;
-            stack.push(new SerializationState(tree, null, 0));
+            stack.push(new SerializationState((IterativeSerializable) obj, null));
             while (!stack.isEmpty()) {
                 SerializationState state = stack.getFirst();
                 if (state.isDone) {
+                    if (state.callback != null)
+                        state.callback.call(state.serializable);
                     stack.pop();
                 } else {
                     state.serializable.serialize(this, stack);
@@ -78,4 +73,13 @@ public class StreamSerializer implements Serializer {
     public void write(Object obj, SerializerHelper helper) throws SerializationException {
         helper.serialize(this, obj);
     }
+
+    @Override
+    public boolean writeObjectHeader(Serializable obj) throws SerializationException {
+        return true;
+    }
+
+    @Override
+    public void afterWriteObject(Serializable obj) throws SerializationException {
+    }
 }
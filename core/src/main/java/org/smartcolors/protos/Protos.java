@@ -5333,6 +5333,23 @@ public final class Protos {
          * <code>repeated bytes pending = 3;</code>
          */
         com.google.protobuf.ByteString getPending(int index);
+
+        // repeated bytes validated_proofs = 4;
+
+        /**
+         * <code>repeated bytes validated_proofs = 4;</code>
+         */
+        java.util.List<com.google.protobuf.ByteString> getValidatedProofsList();
+
+        /**
+         * <code>repeated bytes validated_proofs = 4;</code>
+         */
+        int getValidatedProofsCount();
+
+        /**
+         * <code>repeated bytes validated_proofs = 4;</code>
+         */
+        com.google.protobuf.ByteString getValidatedProofs(int index);
     }
 
     /**
@@ -5416,6 +5433,14 @@ public final class Protos {
                             pending_.add(input.readBytes());
                             break;
                         }
+                        case 34: {
+                            if (!((mutable_bitField0_ & 0x00000008) == 0x00000008)) {
+                                validatedProofs_ = new java.util.ArrayList<com.google.protobuf.ByteString>();
+                                mutable_bitField0_ |= 0x00000008;
+                            }
+                            validatedProofs_.add(input.readBytes());
+                            break;
+                        }
                     }
                 }
             } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -5433,6 +5458,9 @@ public final class Protos {
                 if (((mutable_bitField0_ & 0x00000004) == 0x00000004)) {
                     pending_ = java.util.Collections.unmodifiableList(pending_);
                 }
+                if (((mutable_bitField0_ & 0x00000008) == 0x00000008)) {
+                    validatedProofs_ = java.util.Collections.unmodifiableList(validatedProofs_);
+                }
                 this.unknownFields = unknownFields.build();
                 makeExtensionsImmutable();
             }
@@ -5573,10 +5601,37 @@ public final class Protos {
             return pending_.get(index);
         }
 
+        // repeated bytes validated_proofs = 4;
+        public static final int VALIDATED_PROOFS_FIELD_NUMBER = 4;
+        private java.util.List<com.google.protobuf.ByteString> validatedProofs_;
+
+        /**
+         * <code>repeated bytes validated_proofs = 4;</code>
+         */
+        public java.util.List<com.google.protobuf.ByteString>
+        getValidatedProofsList() {
+            return validatedProofs_;
+        }
+
+        /**
+         * <code>repeated bytes validated_proofs = 4;</code>
+         */
+        public int getValidatedProofsCount() {
+            return validatedProofs_.size();
+        }
+
+        /**
+         * <code>repeated bytes validated_proofs = 4;</code>
+         */
+        public com.google.protobuf.ByteString getValidatedProofs(int index) {
+            return validatedProofs_.get(index);
+        }
+
         private void initFields() {
             blockToTransaction_ = java.util.Collections.emptyList();
             tracks_ = java.util.Collections.emptyList();
             pending_ = java.util.Collections.emptyList();
+            validatedProofs_ = java.util.Collections.emptyList();
         }
 
         private byte memoizedIsInitialized = -1;
@@ -5613,6 +5668,9 @@ public final class Protos {
             for (int i = 0; i < pending_.size(); i++) {
                 output.writeBytes(3, pending_.get(i));
             }
+            for (int i = 0; i < validatedProofs_.size(); i++) {
+                output.writeBytes(4, validatedProofs_.get(i));
+            }
             getUnknownFields().writeTo(output);
         }
 
@@ -5640,6 +5698,15 @@ public final class Protos {
                 size += dataSize;
                 size += 1 * getPendingList().size();
             }
+            {
+                int dataSize = 0;
+                for (int i = 0; i < validatedProofs_.size(); i++) {
+                    dataSize += com.google.protobuf.CodedOutputStream
+                            .computeBytesSizeNoTag(validatedProofs_.get(i));
+                }
+                size += dataSize;
+                size += 1 * getValidatedProofsList().size();
+            }
             size += getUnknownFields().getSerializedSize();
             memoizedSerializedSize = size;
             return size;
@@ -5794,6 +5861,8 @@ public final class Protos {
                 }
                 pending_ = java.util.Collections.emptyList();
                 bitField0_ = (bitField0_ & ~0x00000004);
+                validatedProofs_ = java.util.Collections.emptyList();
+                bitField0_ = (bitField0_ & ~0x00000008);
                 return this;
             }
 
@@ -5844,6 +5913,11 @@ public final class Protos {
                     bitField0_ = (bitField0_ & ~0x00000004);
                 }
                 result.pending_ = pending_;
+                if (((bitField0_ & 0x00000008) == 0x00000008)) {
+                    validatedProofs_ = java.util.Collections.unmodifiableList(validatedProofs_);
+                    bitField0_ = (bitField0_ & ~0x00000008);
+                }
+                result.validatedProofs_ = validatedProofs_;
                 onBuilt();
                 return result;
             }
@@ -5921,6 +5995,16 @@ public final class Protos {
                     }
                     onChanged();
                 }
+                if (!other.validatedProofs_.isEmpty()) {
+                    if (validatedProofs_.isEmpty()) {
+                        validatedProofs_ = other.validatedProofs_;
+                        bitField0_ = (bitField0_ & ~0x00000008);
+                    } else {
+                        ensureValidatedProofsIsMutable();
+                        validatedProofs_.addAll(other.validatedProofs_);
+                    }
+                    onChanged();
+                }
                 this.mergeUnknownFields(other.getUnknownFields());
                 return this;
             }
@@ -6561,6 +6645,86 @@ public final class Protos {
                 return this;
             }
 
+            // repeated bytes validated_proofs = 4;
+            private java.util.List<com.google.protobuf.ByteString> validatedProofs_ = java.util.Collections.emptyList();
+
+            private void ensureValidatedProofsIsMutable() {
+                if (!((bitField0_ & 0x00000008) == 0x00000008)) {
+                    validatedProofs_ = new java.util.ArrayList<com.google.protobuf.ByteString>(validatedProofs_);
+                    bitField0_ |= 0x00000008;
+                }
+            }
+
+            /**
+             * <code>repeated bytes validated_proofs = 4;</code>
+             */
+            public java.util.List<com.google.protobuf.ByteString>
+            getValidatedProofsList() {
+                return java.util.Collections.unmodifiableList(validatedProofs_);
+            }
+
+            /**
+             * <code>repeated bytes validated_proofs = 4;</code>
+             */
+            public int getValidatedProofsCount() {
+                return validatedProofs_.size();
+            }
+
+            /**
+             * <code>repeated bytes validated_proofs = 4;</code>
+             */
+            public com.google.protobuf.ByteString getValidatedProofs(int index) {
+                return validatedProofs_.get(index);
+            }
+
+            /**
+             * <code>repeated bytes validated_proofs = 4;</code>
+             */
+            public Builder setValidatedProofs(
+                    int index, com.google.protobuf.ByteString value) {
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                ensureValidatedProofsIsMutable();
+                validatedProofs_.set(index, value);
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>repeated bytes validated_proofs = 4;</code>
+             */
+            public Builder addValidatedProofs(com.google.protobuf.ByteString value) {
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                ensureValidatedProofsIsMutable();
+                validatedProofs_.add(value);
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>repeated bytes validated_proofs = 4;</code>
+             */
+            public Builder addAllValidatedProofs(
+                    java.lang.Iterable<? extends com.google.protobuf.ByteString> values) {
+                ensureValidatedProofsIsMutable();
+                super.addAll(values, validatedProofs_);
+                onChanged();
+                return this;
+            }
+
+            /**
+             * <code>repeated bytes validated_proofs = 4;</code>
+             */
+            public Builder clearValidatedProofs() {
+                validatedProofs_ = java.util.Collections.emptyList();
+                bitField0_ = (bitField0_ & ~0x00000008);
+                onChanged();
+                return this;
+            }
+
             // @@protoc_insertion_point(builder_scope:smartcolors.ColorScanner)
         }
 
@@ -6632,11 +6796,12 @@ public final class Protos {
                         "\n\017unspent_outputs\030\003 \003(\0132\032.smartcolors.Ou" +
                         "tPointValue\022+\n\003txs\030\004 \003(\0132\036.smartcolors.S" +
                         "ortedTransaction\022\'\n\006proofs\030\n \003(\0132\027.smart" +
-                        "colors.ColorProof\"\215\001\n\014ColorScanner\022C\n\024bl" +
+                        "colors.ColorProof\"\247\001\n\014ColorScanner\022C\n\024bl" +
                         "ock_to_transaction\030\001 \003(\0132%.smartcolors.B" +
                         "lockToSortedTransaction\022\'\n\006tracks\030\002 \003(\0132" +
                         "\027.smartcolors.ColorTrack\022\017\n\007pending\030\003 \003(" +
-                        "\014B \n\026org.smartcolors.protosB\006Protos"
+                        "\014\022\030\n\020validated_proofs\030\004 \003(\014B \n\026org.smartcolors.pr" +
+                        "otosB\006Protos"
         };
         com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
                 new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -6684,7 +6849,7 @@ public final class Protos {
                         internal_static_smartcolors_ColorScanner_fieldAccessorTable = new
                                 com.google.protobuf.GeneratedMessage.FieldAccessorTable(
                                 internal_static_smartcolors_ColorScanner_descriptor,
-                                new java.lang.String[]{"BlockToTransaction", "Tracks", "Pending",});
+                                new java.lang.String[]{"BlockToTransaction", "Tracks", "Pending", "ValidatedProofs",});
                         return null;
                     }
                 };
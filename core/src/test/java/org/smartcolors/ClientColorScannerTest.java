@@ -2,9 +2,12 @@ package org.smartcolors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -25,14 +28,19 @@ import org.junit.Test;
 import org.smartcolors.core.*;
 import org.smartcolors.protos.Protos;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.security.SecureRandom;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
@@ -113,19 +121,18 @@ public class ClientColorScannerTest extends ColorTest {
         expect(proof.getHash()).andStubReturn(HashCode.fromBytes(new byte[32]));
         expect(proof.getOutPoint()).andStubReturn(tx2.getOutput(0).getOutPointFor());
         expect(proof.getQuantity()).andStubReturn(10L);
-        proof.validate();
-        expectLastCall();
+        expect(proof.validate((ProofValidator) anyObject())).andReturn(null);
         fetcher.stop();
         expectLastCall().asStub();
         scanner.setFetcher(fetcher);
 
         final TransactionOutPoint point = tx2.getOutput(0).getOutPointFor();
         final CyclicBarrier barrier = new CyclicBarrier(2);
-        expect(fetcher.fetch(point)).andStubAnswer(new IAnswer<ColorProof>() {
+        expect(fetcher.fetchAsync(point)).andStubAnswer(new IAnswer<ListenableFuture<List<ColorProof>>>() {
             @Override
-            public ColorProof answer() throws Throwable {
+            public ListenableFuture<List<ColorProof>> answer() throws Throwable {
                 barrier.await();
-                return proof;
+                return Futures.<List<ColorProof>>immediateFuture(ImmutableList.of(proof));
             }
         });
         replay(fetcher, proof);
@@ -196,6 +203,185 @@ public class ClientColorScannerTest extends ColorTest {
         assertEquals(expected, res);
     }
 
+    @Test
+    public void fetchAll() throws Exception {
+        TransactionOutPoint genesisPoint = genesisTx.getOutput(0).getOutPointFor();
+        GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, genesisPoint);
+        proofs.put(genesisPoint, genesisProof);
+        Transaction tx2 = makeTx2(colorKey);
+        TransactionOutPoint point2 = tx2.getOutput(0).getOutPointFor();
+        TransferColorProof tx2Proof = new TransferColorProof(def, tx2, 0, Maps.newHashMap(proofs));
+        proofs.put(point2, tx2Proof);
+        Transaction tx3 = new Transaction(params);
+        tx3.addInput(SmartColors.makeAssetInput(tx3, tx2, 0));
+        tx3.addOutput(Utils.makeAssetCoin(2), makeP2SHOutputScript(colorKey));
+        tx3.addOutput(Coin.ZERO, opReturnScript);
+        TransactionOutPoint point3 = tx3.getOutput(0).getOutPointFor();
+        TransferColorProof tx3Proof = new TransferColorProof(def, tx3, 0, Maps.newHashMap(proofs));
+        TransactionOutPoint unknown = new TransactionOutPoint(params, 123, Sha256Hash.of(new byte[]{0, 1, 2, 3}));
+
+        LocalProofServer server = new LocalProofServer(params);
+        server.add(genesisProof);
+        server.add(tx2Proof);
+        server.add(tx3Proof);
+        server.start();
+        ClientColorScanner.Fetcher fetcher = new ClientColorScanner.Fetcher(server.getUri(), params);
+        try {
+            ProofBundle bundle = fetcher.fetchAll(Lists.newArrayList(genesisPoint, point2, point3, unknown));
+            assertEquals(1, server.getBatchRequestCount());
+            assertEquals(3, bundle.size());
+            assertEquals(genesisProof.getHash(), bundle.getFirst(genesisPoint).getHash());
+            assertEquals(tx2Proof.getHash(), bundle.getFirst(point2).getHash());
+            assertEquals(tx3Proof.getHash(), bundle.getFirst(point3).getHash());
+            assertTrue(bundle.get(unknown).isEmpty());
+            // Shared subproofs are deserialized once
+            TransferColorProof fetched3 = (TransferColorProof) bundle.getFirst(point3);
+            assertSame(bundle.getFirst(point2), fetched3.getPrevouts().get(point2));
+
+            assertEquals(tx3Proof.getHash(), fetcher.fetch(point3).get(0).getHash());
+            assertTrue(fetcher.fetch(unknown).isEmpty());
+            assertEquals(2, server.getSingleRequestCount());
+            assertEquals(3, server.getBinaryResponseCount());
+        } finally {
+            fetcher.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void fetchJsonFallback() throws Exception {
+        TransactionOutPoint genesisPoint = genesisTx.getOutput(0).getOutPointFor();
+        GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, genesisPoint);
+        proofs.put(genesisPoint, genesisProof);
+        Transaction tx2 = makeTx2(colorKey);
+        TransactionOutPoint point2 = tx2.getOutput(0).getOutPointFor();
+        TransferColorProof tx2Proof = new TransferColorProof(def, tx2, 0, Maps.newHashMap(proofs));
+        TransactionOutPoint unknown = new TransactionOutPoint(params, 123, Sha256Hash.of(new byte[]{0, 1, 2, 3}));
+
+        LocalProofServer server = new LocalProofServer(params);
+        server.add(genesisProof);
+        server.add(tx2Proof);
+        server.setBinaryEnabled(false);
+        server.start();
+        ClientColorScanner.Fetcher fetcher = new ClientColorScanner.Fetcher(server.getUri(), params);
+        try {
+            assertEquals(tx2Proof.getHash(), fetcher.fetch(point2).get(0).getHash());
+            assertTrue(fetcher.fetch(unknown).isEmpty());
+            ProofBundle bundle = fetcher.fetchAll(Lists.newArrayList(genesisPoint, point2, unknown));
+            assertEquals(2, bundle.size());
+            assertEquals(genesisProof.getHash(), bundle.getFirst(genesisPoint).getHash());
+            assertEquals(0, server.getBinaryResponseCount());
+        } finally {
+            fetcher.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void asyncFetcher() throws Exception {
+        TransactionOutPoint genesisPoint = genesisTx.getOutput(0).getOutPointFor();
+        GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, genesisPoint);
+        proofs.put(genesisPoint, genesisProof);
+        Transaction tx2 = makeTx2(colorKey);
+        TransactionOutPoint point2 = tx2.getOutput(0).getOutPointFor();
+        TransferColorProof tx2Proof = new TransferColorProof(def, tx2, 0, Maps.newHashMap(proofs));
+        TransactionOutPoint unknown = new TransactionOutPoint(params, 123, Sha256Hash.of(new byte[]{0, 1, 2, 3}));
+
+        LocalProofServer server = new LocalProofServer(params);
+        server.add(genesisProof);
+        server.add(tx2Proof);
+        server.start();
+        AsyncFetcher fetcher = new AsyncFetcher(server.getUri(), params, 2, true);
+        try {
+            // More requests in flight than connections
+            List<ListenableFuture<List<ColorProof>>> futures = Lists.newArrayList();
+            for (int i = 0; i < 5; i++) {
+                futures.add(fetcher.fetchAsync(genesisPoint));
+                futures.add(fetcher.fetchAsync(point2));
+            }
+            ListenableFuture<List<ColorProof>> unknownFuture = fetcher.fetchAsync(unknown);
+            ListenableFuture<ProofBundle> bundleFuture = fetcher.fetchAllAsync(Lists.newArrayList(genesisPoint, point2, unknown));
+            List<List<ColorProof>> fetched = Futures.allAsList(futures).get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < fetched.size(); i += 2) {
+                assertEquals(genesisProof.getHash(), fetched.get(i).get(0).getHash());
+                assertEquals(tx2Proof.getHash(), fetched.get(i + 1).get(0).getHash());
+            }
+            assertTrue(unknownFuture.get(10, TimeUnit.SECONDS).isEmpty());
+            ProofBundle bundle = bundleFuture.get(10, TimeUnit.SECONDS);
+            assertEquals(2, bundle.size());
+            assertEquals(tx2Proof.getHash(), bundle.getFirst(point2).getHash());
+            assertTrue(bundle.get(unknown).isEmpty());
+            assertEquals(11, server.getSingleRequestCount());
+            assertEquals(1, server.getBatchRequestCount());
+            assertEquals(12, server.getGzipResponseCount());
+            assertEquals(12, server.getBinaryResponseCount());
+
+            // The client is started again after a stop
+            fetcher.stop();
+            assertEquals(genesisProof.getHash(), fetcher.fetch(genesisPoint).get(0).getHash());
+        } finally {
+            fetcher.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void asyncFetcherStreaming() throws Exception {
+        TransactionOutPoint genesisPoint = genesisTx.getOutput(0).getOutPointFor();
+        GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, genesisPoint);
+        proofs.put(genesisPoint, genesisProof);
+        Transaction tx2 = makeTx2(colorKey);
+        TransactionOutPoint point2 = tx2.getOutput(0).getOutPointFor();
+        TransferColorProof tx2Proof = new TransferColorProof(def, tx2, 0, Maps.newHashMap(proofs));
+
+        LocalProofServer server = new LocalProofServer(params);
+        server.add(genesisProof);
+        server.add(tx2Proof);
+        server.start();
+        for (boolean gzip : new boolean[]{false, true}) {
+            AsyncFetcher fetcher = new AsyncFetcher(server.getUri(), params, 2, gzip);
+            // Every response is larger than the buffer, so input is suspended until decoded
+            fetcher.setBufferSize(16);
+            try {
+                ProofBundle bundle = fetcher.fetchAll(Lists.newArrayList(genesisPoint, point2));
+                assertEquals(2, bundle.size());
+                assertEquals(tx2Proof.getHash(), bundle.getFirst(point2).getHash());
+                server.setBinaryEnabled(false);
+                assertEquals(tx2Proof.getHash(), fetcher.fetch(point2).get(0).getHash());
+                server.setBinaryEnabled(true);
+            } finally {
+                fetcher.stop();
+            }
+        }
+        server.stop();
+    }
+
+    @Test
+    public void asyncFetcherStalledResponse() throws Exception {
+        TransactionOutPoint genesisPoint = genesisTx.getOutput(0).getOutPointFor();
+        GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, genesisPoint);
+
+        LocalProofServer server = new LocalProofServer(params);
+        server.add(genesisProof);
+        server.start();
+        AsyncFetcher fetcher = new AsyncFetcher(server.getUri(), params, 2, false);
+        CountDownLatch stall = new CountDownLatch(1);
+        server.setBatchStall(stall);
+        try {
+            ListenableFuture<ProofBundle> stalled = fetcher.fetchAllAsync(Lists.newArrayList(genesisPoint));
+            Thread.sleep(200);
+            // Decoded while the batch response is still waiting for its body
+            assertEquals(genesisProof.getHash(), fetcher.fetchAsync(genesisPoint).get(5, TimeUnit.SECONDS).get(0).getHash());
+            assertFalse(stalled.isDone());
+            stall.countDown();
+            assertEquals(1, stalled.get(5, TimeUnit.SECONDS).size());
+        } finally {
+            stall.countDown();
+            fetcher.stop();
+            server.stop();
+        }
+    }
+
     @Test
     public void testEncrypt() throws Exception {
         GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, genesisTx.getOutput(0).getOutPointFor());
@@ -267,11 +453,11 @@ public class ClientColorScannerTest extends ColorTest {
         // We don't put the genesis in the track so that we get a fetch for it
 
         final CyclicBarrier barrier = new CyclicBarrier(2);
-        expect(fetcher.fetch(point)).andStubAnswer(new IAnswer<ColorProof>() {
+        expect(fetcher.fetchAsync(point)).andStubAnswer(new IAnswer<ListenableFuture<List<ColorProof>>>() {
             @Override
-            public ColorProof answer() throws Throwable {
+            public ListenableFuture<List<ColorProof>> answer() throws Throwable {
                 barrier.await();
-                return genesisProof;
+                return Futures.<List<ColorProof>>immediateFuture(ImmutableList.<ColorProof>of(genesisProof));
             }
         });
         replay(fetcher);
@@ -294,6 +480,257 @@ public class ClientColorScannerTest extends ColorTest {
         expected.put(def, 5L);
     }
 
+    @Test
+    public void lookupPipeline() throws Exception {
+        scanner.setConcurrency(2, 1, 1);
+        scanner.start(multiWallet);
+        ClientColorScanner.Fetcher fetcher = createMock(ClientColorScanner.Fetcher.class);
+        fetcher.stop();
+        expectLastCall().asStub();
+        scanner.setFetcher(fetcher);
+        TransactionOutPoint point = genesisTx.getOutput(0).getOutPointFor();
+        final GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, point);
+
+        final AtomicInteger fetches = new AtomicInteger();
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        expect(fetcher.fetchAsync(point)).andStubAnswer(new IAnswer<ListenableFuture<List<ColorProof>>>() {
+            @Override
+            public ListenableFuture<List<ColorProof>> answer() throws Throwable {
+                fetches.incrementAndGet();
+                fetching.countDown();
+                proceed.await();
+                return Futures.<List<ColorProof>>immediateFuture(ImmutableList.<ColorProof>of(genesisProof));
+            }
+        });
+        replay(fetcher);
+
+        // Both transactions spend the genesis output
+        Transaction tx2 = makeTx2(colorKey);
+        Transaction tx2b = new Transaction(params);
+        tx2b.addInput(SmartColors.makeAssetInput(tx2b, genesisTx, 0));
+        tx2b.addOutput(Utils.makeAssetCoin(4), makeP2SHOutputScript(colorKey));
+        tx2b.addOutput(Coin.ZERO, opReturnScript);
+        scanner.onTransaction(multiWallet, tx2);
+        scanner.onTransaction(multiWallet, tx2b);
+        assertTrue(fetching.await(10, TimeUnit.SECONDS));
+
+        // Only one lookup is admitted, the other one waits its turn
+        for (int i = 0; i < 100 && scanner.getWaitingLookupCount() == 0; i++)
+            Thread.sleep(50);
+        assertEquals(1, scanner.getWaitingLookupCount());
+        proceed.countDown();
+
+        for (int i = 0; i < 100 && scanner.getPendingCount() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, scanner.getPendingCount());
+        assertEquals(0, scanner.getWaitingLookupCount());
+        // The second lookup found the proof already applied
+        assertEquals(1, fetches.get());
+        assertTrue(scanner.contains(point));
+        verify(fetcher);
+    }
+
+    @Test
+    public void waitingLookupsBounded() throws Exception {
+        scanner.setConcurrency(2, 1, 1);
+        scanner.setMaxWaitingLookups(1);
+        scanner.start(multiWallet);
+        ClientColorScanner.Fetcher fetcher = createMock(ClientColorScanner.Fetcher.class);
+        fetcher.stop();
+        expectLastCall().asStub();
+        scanner.setFetcher(fetcher);
+        TransactionOutPoint point = genesisTx.getOutput(0).getOutPointFor();
+        final GenesisOutPointColorProof genesisProof = new GenesisOutPointColorProof(def, point);
+
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        expect(fetcher.fetchAsync(point)).andStubAnswer(new IAnswer<ListenableFuture<List<ColorProof>>>() {
+            @Override
+            public ListenableFuture<List<ColorProof>> answer() throws Throwable {
+                fetching.countDown();
+                proceed.await();
+                return Futures.<List<ColorProof>>immediateFuture(ImmutableList.<ColorProof>of(genesisProof));
+            }
+        });
+        replay(fetcher);
+
+        // Three transactions spend the genesis output
+        List<Transaction> txs = Lists.newArrayList(makeTx2(colorKey));
+        for (int i = 0; i < 2; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addInput(SmartColors.makeAssetInput(tx, genesisTx, 0));
+            tx.addOutput(Utils.makeAssetCoin(4 - i), makeP2SHOutputScript(colorKey));
+            tx.addOutput(Coin.ZERO, opReturnScript);
+            txs.add(tx);
+        }
+        for (Transaction tx : txs)
+            scanner.onTransaction(multiWallet, tx);
+        assertTrue(fetching.await(10, TimeUnit.SECONDS));
+
+        // One lookup is admitted, one waits and the last one is dropped
+        for (int i = 0; i < 100 && scanner.getWaitingLookupCount() == 0; i++)
+            Thread.sleep(50);
+        Thread.sleep(200);
+        assertEquals(1, scanner.getWaitingLookupCount());
+        assertEquals(3, scanner.getPendingCount());
+        proceed.countDown();
+
+        // The dropped transaction is looked up once the queue drains
+        for (int i = 0; i < 100 && scanner.getPendingCount() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, scanner.getPendingCount());
+        assertEquals(0, scanner.getWaitingLookupCount());
+        assertTrue(scanner.contains(point));
+        verify(fetcher);
+    }
+
+    @Test
+    public void sharedBatches() throws Exception {
+        scanner.start(multiWallet);
+        ClientColorScanner.Fetcher fetcher = createMock(ClientColorScanner.Fetcher.class);
+        fetcher.stop();
+        expectLastCall().asStub();
+        scanner.setFetcher(fetcher);
+        TransactionOutPoint point = genesisTx.getOutput(0).getOutPointFor();
+        final ProofBundle bundle = new ProofBundle();
+        bundle.add(new GenesisOutPointColorProof(def, point));
+
+        final AtomicInteger fetches = new AtomicInteger();
+        final Capture<Collection<TransactionOutPoint>> batch = new Capture<Collection<TransactionOutPoint>>();
+        expect(fetcher.fetchAllAsync(capture(batch))).andStubAnswer(new IAnswer<ListenableFuture<ProofBundle>>() {
+            @Override
+            public ListenableFuture<ProofBundle> answer() throws Throwable {
+                fetches.incrementAndGet();
+                return Futures.immediateFuture(bundle);
+            }
+        });
+        replay(fetcher);
+
+        // Two unconfirmed transactions, spending the genesis output and an uncolored one
+        Transaction tx2 = makeTx2(colorKey);
+        Transaction tx3 = new Transaction(params);
+        TransactionOutPoint other = new TransactionOutPoint(params, 1, Sha256Hash.ZERO_HASH);
+        tx3.addInput(new TransactionInput(params, tx3, new byte[0], other));
+        tx3.addOutput(Utils.makeAssetCoin(1), makeP2SHOutputScript(colorKey));
+        scanner.onTransaction(multiWallet, tx2);
+        scanner.onTransaction(multiWallet, tx3);
+        for (int i = 0; i < 100 && scanner.getPendingCount() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, scanner.getPendingCount());
+        // The outpoints of both lookups went out in one request
+        assertEquals(1, fetches.get());
+        assertEquals(Sets.newHashSet(point, other), Sets.newHashSet(batch.getValue()));
+        assertTrue(scanner.contains(point));
+        verify(fetcher);
+    }
+
+    @Test
+    public void proofStore() throws Exception {
+        File file = File.createTempFile("proofs", ".scstore");
+        file.deleteOnExit();
+        file.delete();
+        ProofStore store = ProofStore.open(params, file);
+        TransactionOutPoint point = genesisTx.getOutput(0).getOutPointFor();
+        store.put(new GenesisOutPointColorProof(def, point));
+        scanner.setProofStore(store);
+        scanner.start(multiWallet);
+        // Any fetch is unexpected
+        ClientColorScanner.Fetcher fetcher = createMock(ClientColorScanner.Fetcher.class);
+        fetcher.stop();
+        expectLastCall().asStub();
+        scanner.setFetcher(fetcher);
+        replay(fetcher);
+        try {
+            Transaction tx2 = makeTx2(colorKey);
+            scanner.onTransaction(multiWallet, tx2);
+            for (int i = 0; i < 100 && scanner.getPendingCount() > 0; i++)
+                Thread.sleep(50);
+            assertEquals(0, scanner.getPendingCount());
+            assertTrue(scanner.contains(point));
+            verify(fetcher);
+            // The genesis output is still in the track
+            assertEquals(0, scanner.compactProofStore());
+            assertEquals(2, store.size());
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void multipleColors() throws Exception {
+        // A second color issued on the same genesis output
+        Map<TransactionOutPoint, Long> nodes = Maps.newHashMap();
+        nodes.put(genesisOutPoint, 3L);
+        Map<String, String> metadata = Maps.newHashMap();
+        metadata.put("name", "gadgets");
+        ColorDefinition def2 = new ColorDefinition(params, new GenesisOutPointsMerbinnerTree(params, nodes), new GenesisScriptMerbinnerTree(), metadata);
+        scanner.addDefinition(def2);
+        ClientColorTrack track2 = (ClientColorTrack) scanner.getColorTrackByDefinition(def2);
+        scanner.start(multiWallet);
+        ClientColorScanner.Fetcher fetcher = createMock(ClientColorScanner.Fetcher.class);
+        fetcher.stop();
+        expectLastCall().asStub();
+        scanner.setFetcher(fetcher);
+        TransactionOutPoint point = genesisTx.getOutput(0).getOutPointFor();
+        final List<ColorProof> genesisProofs = ImmutableList.<ColorProof>of(
+                new GenesisOutPointColorProof(def, point),
+                new GenesisOutPointColorProof(def2, point));
+
+        final AtomicInteger fetches = new AtomicInteger();
+        expect(fetcher.fetchAsync(point)).andStubAnswer(new IAnswer<ListenableFuture<List<ColorProof>>>() {
+            @Override
+            public ListenableFuture<List<ColorProof>> answer() throws Throwable {
+                fetches.incrementAndGet();
+                return Futures.immediateFuture(genesisProofs);
+            }
+        });
+        replay(fetcher);
+
+        Transaction tx2 = makeTx2(colorKey);
+        scanner.onTransaction(multiWallet, tx2);
+        for (int i = 0; i < 100 && scanner.getPendingCount() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, scanner.getPendingCount());
+        // Both colors were applied from a single fetch
+        assertEquals(1, fetches.get());
+        assertTrue(track.isColored(point));
+        assertTrue(track2.isColored(point));
+        verify(fetcher);
+    }
+
+    @Test
+    public void outputIndex() throws Exception {
+        TransactionOutPoint point = genesisTx.getOutput(0).getOutPointFor();
+        assertFalse(scanner.contains(point));
+        track.add(new GenesisOutPointColorProof(def, point));
+        assertTrue(scanner.contains(point));
+        assertSame(track, scanner.getColorTrackByHash(def.getHash()));
+        assertEquals(def, scanner.getColorDefinitionByHash(def.getHash()));
+        assertEquals(scanner.getBitcoinDefinition(), scanner.getColorDefinitionByHash(scanner.getBitcoinDefinition().getHash()));
+
+        // Spending the colored output is derived from the index
+        Transaction tx2 = makeTx2(colorKey);
+        Map<ColorDefinition, Long> values = scanner.getOutputValue(tx2.getOutput(0), wallet);
+        assertEquals(5L, (long) values.get(def));
+        assertEquals(5L, (long) scanner.getInputValue(tx2.getInput(0), wallet).get(def));
+
+        track.reset();
+        assertFalse(scanner.contains(point));
+        track.add(new GenesisOutPointColorProof(def, point));
+        assertTrue(scanner.removeDefinition(def));
+        assertFalse(scanner.contains(point));
+        assertNull(scanner.getColorTrackByDefinition(def));
+        assertNull(scanner.getColorDefinitionByHash(def.getHash()));
+        assertFalse(scanner.removeDefinition(def));
+    }
+
+    @Test(expected = ColorScanner.ColorDefinitionExists.class)
+    public void addDefinitionTwice() throws Exception {
+        scanner.addDefinition(def);
+    }
+
     @Test
     public void json() throws Exception {
         String fixture = FixtureHelpers.fixture("tracker1.json");
@@ -309,7 +746,7 @@ public class ClientColorScannerTest extends ColorTest {
             public void run() {
                 try {
                     System.out.println("start");
-                    ColorProof res = fetcher.fetch(genesisTx.getOutput(0).getOutPointFor());
+                    List<ColorProof> res = fetcher.fetch(genesisTx.getOutput(0).getOutPointFor());
                     System.out.println("stop " + res);
                 } catch (Exception e) {
                     System.out.println(e);
@@ -342,6 +779,7 @@ public class ClientColorScannerTest extends ColorTest {
         }
         verify(client, response);
         assertEquals(base.resolve("outpoint/" + point.getHash() + "/123"), cap.getValue().getURI());
+        assertEquals(ClientColorScanner.Fetcher.ACCEPT, cap.getValue().getFirstHeader("Accept").getValue());
 
         reset(client, response);
 
@@ -374,9 +812,9 @@ public class ClientColorScannerTest extends ColorTest {
         // Not colored
         mockResponse(client, cap, response, "{\"status\":\"NOT_COLORED\", \"proofs\":{}}");
         replay(client, response);
-        ColorProof res = fetcher.fetch(point);
+        List<ColorProof> res = fetcher.fetch(point);
         verify(client, response);
-        assertNull(res);
+        assertTrue(res.isEmpty());
 
         reset(client, response);
 
@@ -385,7 +823,7 @@ public class ClientColorScannerTest extends ColorTest {
         replay(client, response);
         res = fetcher.fetch(point);
         verify(client, response);
-        assertNull(res);
+        assertTrue(res.isEmpty());
 
         reset(client, response);
 
@@ -397,7 +835,8 @@ public class ClientColorScannerTest extends ColorTest {
         replay(client, response);
         res = fetcher.fetch(point);
         verify(client, response);
-        assertEquals("fdd29f08a159af536cfd1370ed7d4f303dc1b21685afb6e2bc0f3862d7f5e42d", res.getHash().toString());
+        assertEquals(1, res.size());
+        assertEquals("fdd29f08a159af536cfd1370ed7d4f303dc1b21685afb6e2bc0f3862d7f5e42d", res.get(0).getHash().toString());
     }
 
     @Test
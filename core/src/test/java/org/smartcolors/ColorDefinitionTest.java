@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
@@ -12,13 +13,20 @@ import org.junit.Test;
 import org.smartcolors.core.*;
 import org.smartcolors.marshal.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.smartcolors.Utils.parseHex;
 
 public class ColorDefinitionTest {
@@ -76,6 +84,101 @@ public class ColorDefinitionTest {
         System.out.println(Utils.HEX.encode(ser.getBytes()));
     }
 
+    @Test
+    public void scdefMapped() throws IOException, SerializationException {
+        File file = File.createTempFile("gold", ".scdef");
+        file.deleteOnExit();
+        Resources.asByteSource(Resources.getResource("gold.scdef")).copyTo(Files.asByteSink(file));
+        ColorDefinition def = ColorDefinition.deserializeFromFile(params, file);
+        assertEquals("812d469f6aa2c320767c7444610df2b7bcb048d1a5f11630e4a9c0d1051c0bd3", def.getHash().toString());
+
+        MappedDeserializer des = MappedDeserializer.open(file, 0, true);
+        ColorDefinition.deserializeFromFile(params, des);
+        assertEquals(0, des.remaining());
+        // The definition itself is memoized last, right after the file header
+        assertEquals(ColorDefinition.FILE_MAGIC.length + 1, des.getMemoOffset(des.getMemoCount()));
+    }
+
+    @Test
+    public void pruned() throws IOException, SerializationException {
+        File file = File.createTempFile("gold", ".scdef");
+        file.deleteOnExit();
+        Resources.asByteSource(Resources.getResource("gold.scdef")).copyTo(Files.asByteSink(file));
+        ColorDefinition full = ColorDefinition.deserializeFromFile(params, file);
+        ColorDefinition pruned = ColorDefinition.loadPruned(params, file);
+        assertTrue(pruned.getOutPointGenesisPoints().isPruned());
+        assertEquals(full.getHash(), pruned.getHash());
+        for (TransactionOutPoint point : full.getOutPointGenesisPoints().keySet()) {
+            assertTrue(pruned.contains(point));
+            assertEquals(full.getOutPointGenesisPoints().get(point), pruned.getOutPointGenesisPoints().get(point));
+        }
+        TransactionOutPoint missing = new TransactionOutPoint(params, 7, Sha256Hash.wrap("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"));
+        assertFalse(pruned.contains(missing));
+        assertEquals(full.getOutPointGenesisPoints().getAll(), pruned.getOutPointGenesisPoints().getAll());
+
+        // Serialized straight from the file, without unpruning
+        BytesSerializer ser = new BytesSerializer();
+        pruned.serialize(ser);
+        BytesSerializer fullSer = new BytesSerializer();
+        full.serialize(fullSer);
+        assertArrayEquals(fullSer.getBytes(), ser.getBytes());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        pruned.serializeToFile(os);
+        ByteArrayOutputStream fullOs = new ByteArrayOutputStream();
+        full.serializeToFile(fullOs);
+        assertArrayEquals(fullOs.toByteArray(), os.toByteArray());
+        assertTrue(pruned.getOutPointGenesisPoints().isPruned());
+    }
+
+    @Test
+    public void header() throws IOException, SerializationException {
+        ColorDefinition gold = ColorDefinition.deserializeFromFile(params, Resources.getResource("gold.scdef").openStream());
+        ColorDefinition.Header header = gold.getHeader();
+        assertEquals(gold.getHash(), header.getHash());
+        assertEquals(def.getHash(), def.getHeader().getHash());
+        Map<String, String> metadata = Maps.newHashMap();
+        metadata.put(ColorDefinition.METADATA_EXTRAHASH, "extra");
+        ColorDefinition extra = new ColorDefinition(params, new GenesisOutPointsMerbinnerTree(params), new GenesisScriptMerbinnerTree(), metadata);
+        assertEquals(extra.getHash(), extra.getHeader().getHash());
+
+        GenesisOutPointsMerbinnerTree points = new GenesisOutPointsMerbinnerTree(params);
+        for (int i = 0; i < 10; i++)
+            points.put(new TransactionOutPoint(params, i, Sha256Hash.of(new byte[]{(byte) i})), (long) i + 1);
+        ColorDefinition issued = new ColorDefinition(params, points, new GenesisScriptMerbinnerTree(), metadata, 100, new byte[16]);
+        header = issued.getHeader();
+        assertEquals(issued.getHash(), header.getHash());
+        TransactionOutPoint point = new TransactionOutPoint(params, 3, Sha256Hash.of(new byte[]{3}));
+        MerbinnerProof proof = points.prove(point);
+        assertTrue(header.verifyGenesisOutPoint(issued.getHash(), proof, point, 4));
+        assertFalse(header.verifyGenesisOutPoint(issued.getHash(), proof, point, 5));
+        // Bound to the definition, not just to the root
+        assertFalse(header.verifyGenesisOutPoint(extra.getHash(), proof, point, 4));
+        assertFalse(header.verifyNotGenesisOutPoint(issued.getHash(), proof, point));
+
+        TransactionOutPoint missing = new TransactionOutPoint(params, 7, Sha256Hash.wrap("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"));
+        MerbinnerProof absent = points.prove(missing);
+        assertTrue(header.verifyNotGenesisOutPoint(issued.getHash(), absent, missing));
+        assertFalse(header.verifyNotGenesisOutPoint(extra.getHash(), absent, missing));
+    }
+
+    @Test
+    public void prunedLarge() throws SerializationException {
+        GenesisOutPointsMerbinnerTree tree = new GenesisOutPointsMerbinnerTree(params);
+        for (int i = 0; i < 1000; i++)
+            tree.put(new TransactionOutPoint(params, i, Sha256Hash.of(new byte[]{(byte) i, (byte) (i >> 8)})), (long) i);
+        ColorDefinition full = new ColorDefinition(params, tree, new GenesisScriptMerbinnerTree());
+        BytesSerializer ser = new BytesSerializer();
+        full.serialize(ser);
+        ColorDefinition pruned = ColorDefinition.deserializePruned(params, MappedDeserializer.plain(ByteBuffer.wrap(ser.getBytes())));
+        assertEquals(full.getHash(), pruned.getHash());
+        assertEquals(tree.getRootSum(), pruned.getOutPointGenesisPoints().getRootSum());
+        for (TransactionOutPoint point : tree.keySet()) {
+            assertEquals(tree.get(point), pruned.getOutPointGenesisPoints().get(point));
+            TransactionOutPoint missing = new TransactionOutPoint(params, point.getIndex() + 1000, point.getHash());
+            assertFalse(pruned.contains(missing));
+        }
+    }
+
     @Test
     public void json() throws IOException {
         Map<String, Object> values = Maps.newHashMap();
@@ -84,6 +187,7 @@ public class ColorDefinitionTest {
         ColorDefinition gold = mapper.readValue(FixtureHelpers.fixture("newgold.json"), ColorDefinition.TYPE_REFERENCE);
         assertEquals("Gold", gold.getName());
         assertEquals(NEW_GOLD_HASH, gold.getHash().toString());
+        assertFalse(gold.getOutPointGenesisPoints().isPruned());
         String oilJson = mapper.writeValueAsString(gold);
         Map goldMap = mapper.readValue(FixtureHelpers.fixture("newgold.json"), Map.class);
         Map reconstructedMap = mapper.readValue(oilJson, Map.class);
@@ -104,6 +208,63 @@ public class ColorDefinitionTest {
 
         Long[] colorOut = def.applyKernel(tx, item.inputs);
         assertArrayEquals(item.comment, item.expected, colorOut);
+
+        // The primitive path must agree, even with dirty buffers
+        long[] colorIns = new long[item.inputs.length];
+        for (int i = 0; i < colorIns.length; i++)
+            colorIns[i] = item.inputs[i] == null ? ColorDefinition.UNCOLORED : item.inputs[i];
+        long[] colorOuts = new long[tx.getOutputs().size() + 1];
+        Arrays.fill(colorOuts, 99);
+        boolean colored = def.applyKernel(ColorKernel.compile(tx), colorIns, colorOuts);
+        boolean expectColored = false;
+        for (int i = 0; i < item.expected.length; i++) {
+            Long expected = item.expected[i];
+            assertEquals(item.comment, expected == null ? ColorDefinition.UNCOLORED : expected, colorOuts[i]);
+            if (expected != null)
+                expectColored = true;
+        }
+        assertEquals(item.comment, expectColored, colored);
+    }
+
+    @Test
+    public void kernelErrors() {
+        Transaction tx = new Transaction(params);
+        long[] nseqs = {0x0001007EL, 0xFFFFFFFFL, 0x0000007FL, 0x0000007DL, 0x0000017EL};
+        for (long nseq : nseqs) {
+            TransactionInput input = new TransactionInput(params, tx, new byte[0]);
+            input.setSequenceNumber(nseq);
+            tx.addInput(input);
+        }
+        tx.addOutput(Coin.valueOf(SmartColors.addMsbdropValuePadding(1, 0)), new Script(new byte[0]));
+        ColorKernel kernel = ColorKernel.compile(tx);
+        assertTrue(kernel.canTransfer(0));
+        assertEquals(ColorKernel.Reason.ENCRYPTED_NSEQUENCE, kernel.getReason(1));
+        assertEquals(ColorKernel.Reason.RESERVED_KERNEL, kernel.getReason(2));
+        assertEquals(ColorKernel.Reason.UNKNOWN_KERNEL, kernel.getReason(3));
+        assertEquals(ColorKernel.Reason.UNSUPPORTED_QTY_SHIFT, kernel.getReason(4));
+
+        // Uncolored inputs may use any nSequence
+        long none = ColorDefinition.UNCOLORED;
+        long[] colorOuts = new long[1];
+        assertTrue(def.applyKernel(kernel, new long[]{1, none, none, none, none}, colorOuts));
+        assertEquals(1, colorOuts[0]);
+        colorOuts[0] = none;
+        assertTrue(def.applyColorTransferred(kernel, 0, 1, colorOuts));
+        assertEquals(1, colorOuts[0]);
+        try {
+            def.applyColorTransferred(kernel, 1, 1, colorOuts);
+            fail();
+        } catch (ColorKernel.KernelException e) {
+            assertEquals(1, e.getInput());
+            assertEquals(ColorKernel.Reason.ENCRYPTED_NSEQUENCE, e.getReason());
+        }
+        try {
+            def.applyKernel(kernel, new long[]{none, none, 1, none, none}, colorOuts);
+            fail();
+        } catch (ColorKernel.KernelException e) {
+            assertEquals(2, e.getInput());
+            assertEquals(ColorKernel.Reason.RESERVED_KERNEL, e.getReason());
+        }
     }
 
     @Test
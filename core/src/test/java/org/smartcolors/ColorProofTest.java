@@ -1,6 +1,8 @@
 package org.smartcolors;
 
+import com.google.common.hash.HashCode;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.bitcoinj.core.NetworkParameters;
 import org.junit.Before;
 import org.junit.Test;
@@ -11,8 +13,15 @@ import org.smartcolors.marshal.SerializationException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -75,6 +84,67 @@ public class ColorProofTest {
         }
     }
 
+    @Test
+    public void parallelValidation() throws Exception {
+        ColorProof proof = readProof("proofs/transferred/29ac0d5313882c337921dd34fee09efce6bd9fcc2d5c16155e9c22af1b4b9a13:0.scproof");
+        ProofValidator.Report inline = new ProofValidator().validate(proof);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ProofValidator.Report parallel = new ProofValidator(executor).validate(proof);
+            assertEquals(inline.getTimings().keySet(), parallel.getTimings().keySet());
+            assertTrue(parallel.getTimings().containsKey(proof.getHash()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncValidationOnExecutor() throws Exception {
+        final ColorProof proof = readProof("proofs/transferred/29ac0d5313882c337921dd34fee09efce6bd9fcc2d5c16155e9c22af1b4b9a13:0.scproof");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final ProofValidator validator = new ProofValidator(executor);
+            // Started from the only thread of the executor, which a blocking validate() would deadlock
+            Future<ListenableFuture<ProofValidator.Report>> started = executor.submit(new Callable<ListenableFuture<ProofValidator.Report>>() {
+                @Override
+                public ListenableFuture<ProofValidator.Report> call() {
+                    return validator.validateAsync(proof);
+                }
+            });
+            ProofValidator.Report report = started.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+            assertTrue(report.getTimings().containsKey(proof.getHash()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void validatedCache() throws Exception {
+        ColorProof proof = readProof("proofs/transferred/29ac0d5313882c337921dd34fee09efce6bd9fcc2d5c16155e9c22af1b4b9a13:0.scproof");
+        ValidatedProofCache cache = new ValidatedProofCache();
+        ProofValidator validator = new ProofValidator(null, cache);
+        ProofValidator.Report first = validator.validate(proof);
+        assertTrue(first.getValidatedCount() > 0);
+        assertEquals(first.getValidatedCount(), cache.size());
+        assertEquals(0, cache.getHits());
+
+        ProofValidator.Report second = validator.validate(proof);
+        assertEquals(0, second.getValidatedCount());
+        assertEquals(1, cache.getHits());
+
+        // Least recently used hashes are evicted first
+        ValidatedProofCache small = new ValidatedProofCache(2);
+        HashCode a = HashCode.fromInt(1), b = HashCode.fromInt(2), c = HashCode.fromInt(3);
+        small.add(a);
+        small.add(b);
+        assertTrue(small.contains(a));
+        small.add(c);
+        assertTrue(small.contains(a));
+        assertFalse(small.contains(b));
+        assertEquals(2, small.getHits());
+        assertEquals(1, small.getMisses());
+    }
+
     private void testMutate(ColorProof proof) throws SerializationException {
         if (DISABLE_SLOW_TESTS) return;
         System.out.println("testMutate " + proof.getHash());
@@ -0,0 +1,231 @@
+package org.smartcolors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.smartcolors.core.ColorProof;
+import org.smartcolors.core.ProofBundle;
+import org.smartcolors.marshal.BytesSerializer;
+import org.smartcolors.marshal.SerializationException;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the proof server, serving proofs from memory on a local port.
+ * <p/>
+ * <p>Answers with a binary {@link ProofBundle} if the client accepts it, otherwise single
+ * outpoint lookups get the JSON format of the tracker and batch lookups get the bundle wrapped in
+ * JSON.  Responses are compressed if the client accepts gzip.</p>
+ */
+public class LocalProofServer {
+    private final NetworkParameters params;
+    private final HttpServer server;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ProofBundle proofs = new ProofBundle();
+    private final AtomicInteger singleRequests = new AtomicInteger();
+    private final AtomicInteger batchRequests = new AtomicInteger();
+    private final AtomicInteger gzipResponses = new AtomicInteger();
+    private final AtomicInteger binaryResponses = new AtomicInteger();
+    private volatile boolean binaryEnabled = true;
+    @Nullable
+    private volatile CountDownLatch batchStall;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    public LocalProofServer(NetworkParameters params) throws IOException {
+        this.params = params;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Handlers can stall, so they must not hold up each other
+        server.setExecutor(executor);
+        server.createContext("/outpoint/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                singleRequests.incrementAndGet();
+                handleSingle(exchange);
+            }
+        });
+        server.createContext("/outpoints", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                batchRequests.incrementAndGet();
+                handleBatch(exchange);
+            }
+        });
+    }
+
+    public synchronized void add(ColorProof proof) {
+        proofs.add(proof);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        CountDownLatch stall = batchStall;
+        if (stall != null)
+            stall.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public URI getUri() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    public int getSingleRequestCount() {
+        return singleRequests.get();
+    }
+
+    public int getBatchRequestCount() {
+        return batchRequests.get();
+    }
+
+    public int getGzipResponseCount() {
+        return gzipResponses.get();
+    }
+
+    public int getBinaryResponseCount() {
+        return binaryResponses.get();
+    }
+
+    /** Whether to serve binary responses, or only JSON like an older server */
+    public void setBinaryEnabled(boolean binaryEnabled) {
+        this.binaryEnabled = binaryEnabled;
+    }
+
+    /** Stop batch responses after their first byte until the latch is released, or null to not stall */
+    public void setBatchStall(@Nullable CountDownLatch batchStall) {
+        this.batchStall = batchStall;
+    }
+
+    private boolean acceptsBinary(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return binaryEnabled && accept != null && accept.contains(ClientColorScanner.Fetcher.PROOFS_MIME_TYPE);
+    }
+
+    private byte[] serialize(ProofBundle bundle) {
+        try {
+            return bundle.serialize();
+        } catch (SerializationException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void handleSingle(HttpExchange exchange) throws IOException {
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        TransactionOutPoint point = new TransactionOutPoint(params, Long.parseLong(parts[3]), Sha256Hash.wrap(parts[2]));
+        Map<String, Object> res = Maps.newHashMap();
+        Map<String, Map<String, byte[]>> byDefinition = Maps.newHashMap();
+        List<ColorProof> found;
+        synchronized (this) {
+            found = proofs.get(point);
+        }
+        if (acceptsBinary(exchange)) {
+            ProofBundle bundle = new ProofBundle();
+            for (ColorProof proof : found)
+                bundle.add(point, proof);
+            respondBinary(exchange, serialize(bundle));
+            return;
+        }
+        for (ColorProof proof : found) {
+            String defHash = proof.getDefinition().getHash().toString();
+            if (!byDefinition.containsKey(defHash))
+                byDefinition.put(defHash, Maps.<String, byte[]>newHashMap());
+            BytesSerializer ser = new BytesSerializer();
+            try {
+                proof.serialize(ser);
+            } catch (SerializationException e) {
+                throw Throwables.propagate(e);
+            }
+            byDefinition.get(defHash).put(proof.getHash().toString(), ser.getBytes());
+        }
+        res.put("status", found.isEmpty() ? "NOT_COLORED" : "COLORED");
+        res.put("proofs", byDefinition);
+        respond(exchange, mapper.writeValueAsBytes(res), "application/json");
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        ClientColorScanner.BatchRequest request =
+                mapper.readValue(ByteStreams.toByteArray(exchange.getRequestBody()), ClientColorScanner.BatchRequest.class);
+        ProofBundle bundle = new ProofBundle();
+        synchronized (this) {
+            for (String outpoint : request.outpoints) {
+                String[] parts = outpoint.split(":");
+                TransactionOutPoint point = new TransactionOutPoint(params, Long.parseLong(parts[1]), Sha256Hash.wrap(parts[0]));
+                for (ColorProof proof : proofs.get(point))
+                    bundle.add(point, proof);
+            }
+        }
+        if (acceptsBinary(exchange)) {
+            respondBinary(exchange, serialize(bundle), batchStall);
+            return;
+        }
+        ClientColorScanner.BatchResponse res = new ClientColorScanner.BatchResponse();
+        res.status = "OK";
+        res.bundle = serialize(bundle);
+        respond(exchange, mapper.writeValueAsBytes(res), "application/json", batchStall);
+    }
+
+    private void respondBinary(HttpExchange exchange, byte[] body) throws IOException {
+        respondBinary(exchange, body, null);
+    }
+
+    private void respondBinary(HttpExchange exchange, byte[] body, @Nullable CountDownLatch stall) throws IOException {
+        binaryResponses.incrementAndGet();
+        respond(exchange, body, ClientColorScanner.Fetcher.PROOFS_MIME_TYPE, stall);
+    }
+
+    private void respond(HttpExchange exchange, byte[] body, String contentType) throws IOException {
+        respond(exchange, body, contentType, null);
+    }
+
+    private void respond(HttpExchange exchange, byte[] body, String contentType, @Nullable CountDownLatch stall) throws IOException {
+        ByteStreams.toByteArray(exchange.getRequestBody());
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            GZIPOutputStream gos = new GZIPOutputStream(bos);
+            gos.write(body);
+            gos.close();
+            body = bos.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            gzipResponses.incrementAndGet();
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream os = exchange.getResponseBody();
+        if (stall != null) {
+            os.write(body, 0, 1);
+            os.flush();
+            try {
+                stall.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            os.write(body, 1, body.length - 1);
+        } else {
+            os.write(body);
+        }
+        os.close();
+    }
+}
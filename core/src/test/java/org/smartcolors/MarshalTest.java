@@ -2,12 +2,16 @@ package org.smartcolors;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.hash.HashCode;
 import org.junit.Before;
 import org.junit.Test;
 import org.smartcolors.marshal.*;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -127,6 +131,54 @@ public class MarshalTest {
         }
     }
 
+    @Test
+    public void testHmacEngine() throws Exception {
+        byte[] key = Utils.HEX.decode("dd2617248e435da6db7c119c17cc19cd");
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "RAW"));
+        HashCode expected = HashCode.fromBytes(mac.doFinal(Utils.HEX.decode("deadbeef")));
+
+        assertEquals(expected, HmacEngine.hash(key, Utils.HEX.decode("deadbeef")));
+        // Nested use of the same key must not disturb the outer hash
+        HmacEngine outer = HmacEngine.acquire(key);
+        outer.update(Utils.HEX.decode("dead"));
+        assertEquals(expected, HmacEngine.hash(key, Utils.HEX.decode("deadbeef")));
+        outer.update(Utils.HEX.decode("beef"));
+        assertEquals(expected, outer.finish());
+        assertEquals(expected, HmacEngine.hash(key, Utils.HEX.decode("deadbeef")));
+    }
+
+    @Test
+    public void testTruncated() throws SerializationException {
+        byte[][] inputs = {new byte[0], Utils.HEX.decode("80"), Utils.HEX.decode("ffff")};
+        for (byte[] input : inputs) {
+            try {
+                new BytesDeserializer(input).readVarulong();
+                fail();
+            } catch (SerializationException e) {
+                // expected
+            }
+            try {
+                new StreamDeserializer(new ByteArrayInputStream(input)).readVarulong();
+                fail();
+            } catch (SerializationException e) {
+                // expected
+            }
+        }
+        try {
+            new BytesDeserializer(Utils.HEX.decode("04dead")).readBytes();
+            fail();
+        } catch (SerializationException e) {
+            // expected
+        }
+        try {
+            new StreamDeserializer(new ByteArrayInputStream(Utils.HEX.decode("dead"))).readBytes(4);
+            fail();
+        } catch (SerializationException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testBytes() throws IOException, SerializationException {
         List<List<String>> items =
@@ -256,4 +308,76 @@ public class MarshalTest {
             }
         }
     }
+
+    @Test
+    public void testMerbinnerIncremental() throws IOException, SerializationException {
+        List<List<Object>> items =
+                mapper.readValue(FixtureHelpers.fixture("marshal/merbinnertree_hashes.json"),
+                        new TypeReference<List<List<Object>>>() {
+                        });
+        for (List<Object> entry : items) {
+            if (entry.size() == 1) continue; // comment
+            Map<String, String> map = (Map<String, String>) entry.get(0);
+            Map<byte[], byte[]> nodes = Maps.newHashMap();
+            for (String keyString : map.keySet()) {
+                nodes.put(Utils.HEX.decode(keyString), Utils.HEX.decode(map.get(keyString)));
+            }
+            TestMerbinnerTree expected = new TestMerbinnerTree(nodes);
+
+            TestMerbinnerTree tree = new TestMerbinnerTree(Maps.<byte[], byte[]>newHashMap());
+            tree.getHash(); // build the empty trie, so that the following puts are incremental
+            for (Map.Entry<byte[], byte[]> node : nodes.entrySet()) {
+                tree.put(node.getKey(), node.getValue());
+            }
+            assertEquals(expected.getHash(), tree.getHash());
+            BytesSerializer ser = new BytesSerializer();
+            ser.write(expected);
+            BytesSerializer ser1 = new BytesSerializer();
+            ser1.write(tree);
+            assertArrayEquals(ser.getBytes(), ser1.getBytes());
+
+            for (byte[] key : Lists.newArrayList(nodes.keySet())) {
+                tree.remove(key);
+                nodes.remove(key);
+                assertEquals(new TestMerbinnerTree(nodes).getHash(), tree.getHash());
+            }
+        }
+    }
+
+    @Test
+    public void testMerbinnerProofs() throws IOException, SerializationException {
+        List<List<Object>> items =
+                mapper.readValue(FixtureHelpers.fixture("marshal/merbinnertree_hashes.json"),
+                        new TypeReference<List<List<Object>>>() {
+                        });
+        TestMerbinnerTree verifier = new TestMerbinnerTree(Maps.<byte[], byte[]>newHashMap());
+        byte[] absent = Utils.HEX.decode("12345678");
+        for (List<Object> entry : items) {
+            if (entry.size() == 1) continue; // comment
+            Map<String, String> map = (Map<String, String>) entry.get(0);
+            Map<byte[], byte[]> nodes = Maps.newHashMap();
+            for (String keyString : map.keySet()) {
+                nodes.put(Utils.HEX.decode(keyString), Utils.HEX.decode(map.get(keyString)));
+            }
+            if (map.containsKey("12345678")) continue;
+            TestMerbinnerTree tree = new TestMerbinnerTree(nodes);
+            HashCode root = tree.getHash();
+            for (Map.Entry<byte[], byte[]> node : nodes.entrySet()) {
+                MerbinnerProof proof = roundTrip(tree.prove(node.getKey()));
+                assertTrue(verifier.verify(proof, root, node.getKey(), node.getValue()));
+                assertFalse(verifier.verifyAbsent(proof, root, node.getKey()));
+                assertFalse(verifier.verify(proof, root, node.getKey(), Utils.HEX.decode("00000000")));
+            }
+            MerbinnerProof proof = roundTrip(tree.prove(absent));
+            assertTrue(verifier.verifyAbsent(proof, root, absent));
+            assertFalse(verifier.verify(proof, root, absent, Utils.HEX.decode("00000000")));
+            assertFalse(verifier.verifyAbsent(proof, HashCode.fromBytes(new byte[32]), absent));
+        }
+    }
+
+    private MerbinnerProof roundTrip(MerbinnerProof proof) throws SerializationException {
+        BytesSerializer ser = new BytesSerializer();
+        proof.serialize(ser);
+        return MerbinnerProof.deserialize(new BytesDeserializer(ser.getBytes()));
+    }
 }
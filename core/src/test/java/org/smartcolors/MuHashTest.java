@@ -0,0 +1,38 @@
+package org.smartcolors;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MuHashTest {
+    private static byte[] element(int i) {
+        return new byte[]{(byte) i, (byte) (i >> 8)};
+    }
+
+    @Test
+    public void multiset() {
+        MuHash empty = new MuHash();
+        MuHash a = new MuHash();
+        MuHash b = new MuHash();
+        for (int i = 0; i < 20; i++) {
+            a.add(element(i));
+            b.add(element(19 - i));
+        }
+        // Order does not matter
+        assertArrayEquals(a.getDigest(), b.getDigest());
+
+        // Multiplicity does
+        b.add(element(3));
+        assertFalse(Arrays.equals(a.getDigest(), b.getDigest()));
+        b.remove(element(3));
+        assertArrayEquals(a.getDigest(), b.getDigest());
+
+        for (int i = 0; i < 20; i++)
+            a.remove(element(i));
+        assertArrayEquals(empty.getDigest(), a.getDigest());
+        b.clear();
+        assertArrayEquals(empty.getDigest(), b.getDigest());
+    }
+}
@@ -0,0 +1,77 @@
+package org.smartcolors;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OutPointTableTest {
+    private OutPointTable<String> table;
+
+    @Before
+    public void setUp() {
+        table = new OutPointTable<String>();
+    }
+
+    private Sha256Hash makeHash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    @Test
+    public void basic() {
+        Sha256Hash hash = makeHash(new Random(1));
+        assertTrue(table.put(hash, 1, "a"));
+        assertFalse(table.put(hash, 1, "a"));
+        assertTrue(table.put(hash, 1, "b"));
+        assertEquals(2, table.size());
+        assertEquals(Sets.newHashSet("a", "b"), Sets.newHashSet(table.get(hash, 1)));
+        assertTrue(table.get(hash, 2).isEmpty());
+        assertFalse(table.contains(hash, 2));
+
+        assertTrue(table.remove(hash, 1, "a"));
+        assertFalse(table.remove(hash, 1, "a"));
+        assertEquals(Lists.newArrayList("b"), table.get(hash, 1));
+        table.removeAll("b");
+        assertFalse(table.contains(hash, 1));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void sameAsMultimap() {
+        Random random = new Random(2);
+        SetMultimap<Map.Entry<Sha256Hash, Integer>, String> expected = HashMultimap.create();
+        List<Sha256Hash> hashes = Lists.newArrayList();
+        for (int i = 0; i < 500; i++)
+            hashes.add(makeHash(random));
+        String[] values = {"a", "b", "c"};
+        for (int i = 0; i < 20000; i++) {
+            Sha256Hash hash = hashes.get(random.nextInt(hashes.size()));
+            int index = random.nextInt(4);
+            String value = values[random.nextInt(values.length)];
+            Map.Entry<Sha256Hash, Integer> key = new AbstractMap.SimpleEntry<Sha256Hash, Integer>(hash, index);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(key, value), table.remove(hash, index, value));
+            else
+                assertEquals(expected.put(key, value), table.put(hash, index, value));
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Sha256Hash, Integer> key : expected.keySet()) {
+            assertEquals(expected.get(key), Sets.newHashSet(table.get(key.getKey(), key.getValue())));
+        }
+        table.removeAll("a");
+        expected.values().removeAll(Lists.newArrayList("a"));
+        assertEquals(expected.size(), table.size());
+    }
+}
@@ -0,0 +1,154 @@
+package org.smartcolors;
+
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OutPointValueMapTest {
+    private NetworkParameters params;
+    private OutPointValueMap map;
+
+    @Before
+    public void setUp() {
+        params = NetworkParameters.fromID(NetworkParameters.ID_REGTEST);
+        map = new OutPointValueMap(params);
+    }
+
+    private TransactionOutPoint makePoint(Random random, long index) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new TransactionOutPoint(params, index, Sha256Hash.wrap(bytes));
+    }
+
+    @Test
+    public void basic() {
+        Random random = new Random(1);
+        TransactionOutPoint point = makePoint(random, 1);
+        TransactionOutPoint other = new TransactionOutPoint(params, 2, point.getHash());
+        assertNull(map.put(point, 5L));
+        assertEquals(5L, (long) map.put(point, 6L));
+        assertEquals(1, map.size());
+        assertTrue(map.containsKey(point));
+        assertTrue(map.containsOutPoint(point.getHash(), 1));
+        assertFalse(map.containsKey(other));
+        assertEquals(6L, (long) map.get(point));
+        assertEquals(-1L, map.getValue(other, -1L));
+        assertNull(map.get("not an outpoint"));
+
+        Map.Entry<TransactionOutPoint, Long> entry = map.entrySet().iterator().next();
+        assertEquals(point, entry.getKey());
+        entry.setValue(7L);
+        assertEquals(7L, (long) map.get(point));
+
+        assertEquals(7L, (long) map.remove(point));
+        assertNull(map.remove(point));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void sameAsHashMap() {
+        Random random = new Random(2);
+        Map<TransactionOutPoint, Long> expected = Maps.newHashMap();
+        TransactionOutPoint[] points = new TransactionOutPoint[500];
+        for (int i = 0; i < points.length; i++)
+            points[i] = makePoint(random, random.nextInt(3));
+        for (int i = 0; i < 100000; i++) {
+            TransactionOutPoint point = points[random.nextInt(points.length)];
+            if (random.nextBoolean()) {
+                long value = random.nextLong();
+                assertEquals(expected.put(point, value), map.put(point, value));
+            } else {
+                assertEquals(expected.remove(point), map.remove(point));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected, new OutPointValueMap(params, expected));
+
+        // Remove through the iterator
+        Iterator<TransactionOutPoint> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            TransactionOutPoint point = it.next();
+            if (random.nextBoolean()) {
+                it.remove();
+                expected.remove(point);
+            }
+        }
+        assertEquals(expected, map);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(points[0]));
+    }
+
+    @Test
+    public void mapped() throws Exception {
+        File file = File.createTempFile("outputs", ".map");
+        file.deleteOnExit();
+        map = OutPointValueMap.open(params, file);
+        assertTrue(map.isMapped());
+        Random random = new Random(3);
+        Map<TransactionOutPoint, Long> expected = Maps.newHashMap();
+        for (int i = 0; i < 1000; i++) {
+            TransactionOutPoint point = makePoint(random, i % 3);
+            expected.put(point, (long) i);
+            map.put(point, (long) i);
+        }
+        map.close();
+        map = OutPointValueMap.open(params, file);
+        assertEquals(expected, map);
+
+        // Unflushed changes are recounted on open
+        TransactionOutPoint point = expected.keySet().iterator().next();
+        map.remove(point);
+        expected.remove(point);
+        map = OutPointValueMap.open(params, file);
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        map.close();
+        file.delete();
+    }
+
+    @Test
+    public void digest() {
+        Random random = new Random(5);
+        byte[] empty = map.getDigest();
+        TransactionOutPoint[] points = new TransactionOutPoint[100];
+        for (int i = 0; i < points.length; i++)
+            points[i] = makePoint(random, i % 3);
+        for (int i = 0; i < 10000; i++) {
+            TransactionOutPoint point = points[random.nextInt(points.length)];
+            if (random.nextBoolean())
+                map.put(point, (long) random.nextInt(5));
+            else
+                map.remove(point);
+            if (i % 100 == 0) {
+                // Does not depend on the history of changes or on the storage
+                OutPointValueMap copy = OutPointValueMap.offHeap(params, map.size());
+                copy.putAll(map);
+                assertArrayEquals(copy.getDigest(), map.getDigest());
+            }
+        }
+        map.clear();
+        assertArrayEquals(empty, map.getDigest());
+    }
+
+    @Test
+    public void offHeap() {
+        map = OutPointValueMap.offHeap(params, 100);
+        TransactionOutPoint point = makePoint(new Random(4), 0);
+        map.put(point, 5L);
+        assertEquals(5L, map.getValue(point, 0));
+        assertFalse(map.isMapped());
+    }
+}
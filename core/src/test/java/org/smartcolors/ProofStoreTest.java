@@ -0,0 +1,148 @@
+package org.smartcolors;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartcolors.core.*;
+import org.smartcolors.marshal.SerializationException;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProofStoreTest extends ColorTest {
+    private File file;
+    private ProofStore store;
+    private TransactionOutPoint genesisPoint;
+    private GenesisOutPointColorProof genesisProof;
+    private TransactionOutPoint point2;
+    private TransferColorProof tx2Proof;
+    private TransactionOutPoint point3;
+    private TransferColorProof tx3Proof;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("proofs", ".scstore");
+        file.deleteOnExit();
+        file.delete();
+        store = ProofStore.open(params, file);
+
+        Map<TransactionOutPoint, ColorProof> proofs = Maps.newHashMap();
+        genesisPoint = genesisTx.getOutput(0).getOutPointFor();
+        genesisProof = new GenesisOutPointColorProof(def, genesisPoint);
+        proofs.put(genesisPoint, genesisProof);
+        Transaction tx2 = makeTx2(new ECKey());
+        point2 = tx2.getOutput(0).getOutPointFor();
+        tx2Proof = new TransferColorProof(def, tx2, 0, Maps.newHashMap(proofs));
+        proofs.put(point2, tx2Proof);
+        Transaction tx3 = new Transaction(params);
+        tx3.addInput(SmartColors.makeAssetInput(tx3, tx2, 0));
+        tx3.addOutput(Utils.makeAssetCoin(2), makeP2SHOutputScript(new ECKey()));
+        tx3.addOutput(Coin.ZERO, opReturnScript);
+        point3 = tx3.getOutput(0).getOutPointFor();
+        tx3Proof = new TransferColorProof(def, tx3, 0, Maps.newHashMap(proofs));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+    }
+
+    private ProofStore reopen() throws Exception {
+        store.close();
+        store = ProofStore.open(params, file);
+        return store;
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        assertTrue(store.get(point3).isEmpty());
+        store.put(tx3Proof);
+        // The definition and each proof in the chain
+        assertEquals(4, store.size());
+        assertTrue(store.contains(genesisPoint));
+        assertTrue(store.contains(tx2Proof.getHash()));
+
+        // Subproofs are stored once
+        long size = store.getFileSize();
+        store.put(tx2Proof);
+        assertEquals(4, store.size());
+        assertEquals(size, store.getFileSize());
+
+        reopen();
+        assertEquals(4, store.size());
+        List<ColorProof> stored = store.get(point3);
+        assertEquals(1, stored.size());
+        TransferColorProof proof3 = (TransferColorProof) stored.get(0);
+        assertEquals(tx3Proof.getHash(), proof3.getHash());
+        assertEquals(tx3Proof.getQuantity(), proof3.getQuantity());
+        proof3.validate();
+        assertEquals(tx2Proof.getHash(), proof3.getPrevouts().get(point2).getHash());
+        assertEquals(genesisProof.getHash(), store.get(genesisProof.getHash()).getHash());
+        assertNull(store.get(def.getHash()));
+        assertTrue(store.get(new TransactionOutPoint(params, 1, Sha256Hash.ZERO_HASH)).isEmpty());
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        store.put(tx2Proof);
+        long size = store.getFileSize();
+        store.put(tx3Proof);
+        store.close();
+        // Cut the last record short, as a crash during an append would
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        store = ProofStore.open(params, file);
+        assertEquals(3, store.size());
+        assertEquals(size, store.getFileSize());
+        assertTrue(store.get(point3).isEmpty());
+        assertEquals(tx2Proof.getHash(), store.get(point2).get(0).getHash());
+        // Appending works after the truncated record was dropped
+        store.put(tx3Proof);
+        reopen();
+        assertEquals(tx3Proof.getHash(), store.get(point3).get(0).getHash());
+    }
+
+    @Test
+    public void compact() throws Exception {
+        store.put(tx3Proof);
+        // Everything is needed by the proof of the live outpoint
+        assertEquals(0, store.compact(ImmutableSet.of(point3)));
+        assertEquals(4, store.size());
+
+        long size = store.getFileSize();
+        assertEquals(2, store.compact(ImmutableSet.of(genesisPoint)));
+        assertEquals(2, store.size());
+        assertTrue(store.getFileSize() < size);
+        assertTrue(store.get(point3).isEmpty());
+        assertEquals(genesisProof.getHash(), store.get(genesisPoint).get(0).getHash());
+
+        reopen();
+        assertEquals(2, store.size());
+        assertEquals(genesisProof.getHash(), store.get(genesisPoint).get(0).getHash());
+    }
+
+    @Test(expected = SerializationException.class)
+    public void wrongMagic() throws Exception {
+        store.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(1);
+        raf.write(0xff);
+        raf.close();
+        ProofStore.open(params, file);
+    }
+}
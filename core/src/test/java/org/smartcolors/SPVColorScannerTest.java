@@ -1,6 +1,8 @@
 package org.smartcolors;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.ScriptBuilder;
@@ -11,9 +13,14 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.smartcolors.core.ColorDefinition;
 import org.smartcolors.core.SmartColors;
+import org.smartcolors.marshal.BytesSerializer;
+import org.smartcolors.marshal.MappedDeserializer;
 import org.smartcolors.protos.Protos;
 
 import javax.annotation.Nullable;
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Map;
@@ -61,6 +68,102 @@ public class SPVColorScannerTest extends ColorTest {
         assertTrue(getBloomFilter().contains(org.bitcoinj.core.Utils.HEX.decode("534d415254415353")));
     }
 
+    @Test
+    public void testGetRelevantTracks() {
+        ColorTrack track = scanner.getColorTrackByDefinition(def);
+        Transaction tx2 = makeTx2(new ECKey());
+        assertEquals(Sets.newHashSet(track), scanner.getRelevantTracks(genesisTx));
+        assertTrue(scanner.getRelevantTracks(tx2).isEmpty());
+
+        scanner.receiveFromBlock(genesisTx, genesisBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(Sets.newHashSet(track), scanner.getRelevantTracks(tx2));
+        scanner.receiveFromBlock(tx2, FakeTxBuilder.createFakeBlock(blockStore, tx2).storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(5L, (long) track.getColor(new TransactionOutPoint(params, 0, tx2)));
+        // Spent color is no longer relevant
+        assertTrue(scanner.getRelevantTracks(makeTx2(new ECKey())).isEmpty());
+
+        scanner.removeDefinition(def);
+        assertTrue(scanner.getRelevantTracks(genesisTx).isEmpty());
+    }
+
+    @Test
+    public void testPrunedDefinition() throws Exception {
+        BytesSerializer ser = new BytesSerializer();
+        def.serialize(ser);
+        ColorDefinition pruned = ColorDefinition.deserializePruned(params, MappedDeserializer.plain(ByteBuffer.wrap(ser.getBytes())));
+        assertTrue(pruned.getOutPointGenesisPoints().isPruned());
+        scanner = new SPVColorScanner(params);
+        scanner.addDefinition(pruned);
+        ColorTrack track = scanner.getColorTrackByDefinition(pruned);
+        assertEquals(Sets.newHashSet(track), scanner.getRelevantTracks(genesisTx));
+
+        scanner.receiveFromBlock(genesisTx, genesisBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(10L, (long) track.getColor(genesisOutPoint));
+        Transaction tx2 = makeTx2(new ECKey());
+        scanner.receiveFromBlock(tx2, FakeTxBuilder.createFakeBlock(blockStore, tx2).storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(5L, (long) track.getColor(new TransactionOutPoint(params, 0, tx2)));
+
+        scanner.removeDefinition(pruned);
+        assertTrue(scanner.getRelevantTracks(genesisTx).isEmpty());
+    }
+
+    @Test
+    public void testReplayAfterCrash() {
+        SPVColorTrack track = (SPVColorTrack) scanner.getColorTrackByDefinition(def);
+        Transaction tx2 = makeTx2(new ECKey());
+        StoredBlock block2 = FakeTxBuilder.createFakeBlock(blockStore, tx2).storedBlock;
+        scanner.receiveFromBlock(genesisTx, genesisBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        scanner.receiveFromBlock(tx2, block2, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        Sha256Hash commitment = track.getStateCommitment();
+
+        // The wallet was saved before these blocks, but the track was not
+        scanner.receiveFromBlock(genesisTx, genesisBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        scanner.receiveFromBlock(tx2, block2, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(commitment, track.getStateCommitment());
+        assertEquals(1, track.getPosition(tx2));
+        assertEquals(5L, (long) track.getColor(new TransactionOutPoint(params, 0, tx2)));
+    }
+
+    @Test
+    public void testStoredTracks() throws Exception {
+        File dir = Files.createTempDir();
+        scanner = new SPVColorScanner(params);
+        scanner.setTrackDirectory(dir);
+        scanner.addDefinition(def);
+        Transaction tx2 = makeTx2(new ECKey());
+        scanner.receiveFromBlock(genesisTx, genesisBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        scanner.receiveFromBlock(tx2, FakeTxBuilder.createFakeBlock(blockStore, tx2).storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        TransactionOutPoint point = new TransactionOutPoint(params, 0, tx2);
+        assertTrue(scanner.contains(point));
+        scanner.stop();
+
+        // Reopened tracks are asked for their outputs rather than read into the index
+        scanner = new SPVColorScanner(params);
+        scanner.setTrackDirectory(dir);
+        scanner.addDefinition(def);
+        assertTrue(scanner.contains(point));
+        assertFalse(scanner.contains(new TransactionOutPoint(params, 5, tx2)));
+        Transaction tx3 = new Transaction(params);
+        tx3.addInput(SmartColors.makeAssetInput(tx3, tx2, 0));
+        ColorTrack track = scanner.getColorTrackByDefinition(def);
+        assertEquals(Sets.newHashSet(track), scanner.getRelevantTracks(tx3));
+        scanner.removeDefinition(def);
+        assertFalse(scanner.contains(point));
+    }
+
+    @Test
+    public void testPruneFinalBlocks() {
+        scanner.setFinalityDepth(2);
+        scanner.receiveFromBlock(genesisTx, genesisBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        int height = genesisBlock.getHeight();
+        scanner.notifyNewBestBlock(new StoredBlock(genesisBlock.getHeader(), BigInteger.ONE, height + 1));
+        assertEquals(1, scanner.getMapBlockTx().size());
+        scanner.notifyNewBestBlock(new StoredBlock(genesisBlock.getHeader(), BigInteger.ONE, height + 2));
+        assertTrue(scanner.getMapBlockTx().isEmpty());
+        // The track keeps the transaction
+        assertTrue(((SPVColorTrack) scanner.getColorTrackByDefinition(def)).contains(genesisTx));
+    }
+
     @Ignore
     @Test
     public void testGetNetAssetChangeUnknown() {
@@ -1,6 +1,7 @@
 package org.smartcolors;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
 import org.junit.Before;
@@ -9,10 +10,12 @@ import org.smartcolors.core.*;
 import org.smartcolors.protos.Protos;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.smartcolors.core.SmartColors.makeAssetInput;
 
@@ -20,20 +23,32 @@ public class SPVColorTrackTest {
     public static final Script EMPTY_SCRIPT = new Script(new byte[0]);
     public static final Coin ASSET_COIN_ONE = Coin.valueOf(SmartColors.addMsbdropValuePadding(1, 0));
     private NetworkParameters params;
+    private Transaction genesisTx;
+    private TransactionOutPoint genesisOutPoint;
+    private ColorDefinition def;
+    private Transaction tx2;
 
     @Before
     public void setUp() {
         params = NetworkParameters.fromID(NetworkParameters.ID_TESTNET);
         new Context(params);
+        genesisTx = new Transaction(params);
+        genesisTx.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
+        genesisOutPoint = new TransactionOutPoint(params, 0, genesisTx);
+        def = new ColorDefinition(params, makeTree(genesisOutPoint), new GenesisScriptMerbinnerTree());
+        tx2 = spend(genesisTx);
+    }
+
+    // A transaction moving the color of the first output of the parent
+    private Transaction spend(Transaction parent) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(makeAssetInput(tx, parent, 0));
+        tx.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
+        return tx;
     }
 
     @Test
     public void simpleAdd() {
-        Transaction genesisTx = new Transaction(params);
-        genesisTx.addOutput(ASSET_COIN_ONE, new Script(new byte[0]));
-        TransactionOutPoint genesisOutPoint = new TransactionOutPoint(params, 0, genesisTx);
-        GenesisOutPointsMerbinnerTree outPoints = makeTree(genesisOutPoint);
-        ColorDefinition def = new ColorDefinition(params, outPoints, new GenesisScriptMerbinnerTree());
         SPVColorTrack track = new SPVColorTrack(def);
         assertTrue(track.getOutputs().isEmpty());
         assertTrue(track.getUnspentOutputs().isEmpty());
@@ -46,9 +61,6 @@ public class SPVColorTrackTest {
         assertEquals(expectedAll, track.getOutputs());
         assertEquals(expectedUnspent, track.getUnspentOutputs());
 
-        Transaction tx2 = new Transaction(params);
-        tx2.addInput(makeAssetInput(tx2, genesisTx, 0));
-        tx2.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
         TransactionOutPoint tx2OutPoint = new TransactionOutPoint(params, 0, tx2);
         expectedAll.put(tx2OutPoint, 1L);
         expectedUnspent.remove(genesisOutPoint);
@@ -57,9 +69,7 @@ public class SPVColorTrackTest {
         assertEquals(expectedAll, track.getOutputs());
         assertEquals(expectedUnspent, track.getUnspentOutputs());
 
-        Transaction tx3 = new Transaction(params);
-        tx3.addInput(makeAssetInput(tx3, tx2, 0));
-        tx3.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
+        Transaction tx3 = spend(tx2);
         TransactionOutPoint tx3OutPoint = new TransactionOutPoint(params, 0, tx3);
         expectedAll.put(tx3OutPoint, 1L);
         expectedUnspent.remove(tx2OutPoint);
@@ -68,10 +78,8 @@ public class SPVColorTrackTest {
         assertEquals(expectedAll, track.getOutputs());
         assertEquals(expectedUnspent, track.getUnspentOutputs());
 
-        Transaction tx4 = new Transaction(params);
-        tx4.addInput(makeAssetInput(tx4, tx3, 0));
+        Transaction tx4 = spend(tx3);
         tx4.getInput(0).setSequenceNumber(0x7E); // Destroy color
-        tx4.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
         expectedUnspent.remove(tx3OutPoint);
         track.add(tx4);
         assertEquals(expectedAll, track.getOutputs());
@@ -101,31 +109,19 @@ public class SPVColorTrackTest {
 
     @Test
     public void serialize() {
-        Transaction genesisTx = new Transaction(params);
-        genesisTx.addOutput(ASSET_COIN_ONE, new Script(new byte[0]));
-        TransactionOutPoint genesisOutPoint = new TransactionOutPoint(params, 0, genesisTx);
-        GenesisOutPointsMerbinnerTree outPoints = makeTree(genesisOutPoint);
-        ColorDefinition def = new ColorDefinition(params, outPoints, new GenesisScriptMerbinnerTree());
         SPVColorTrack track = new SPVColorTrack(def);
 
         track.add(genesisTx);
 
-        Transaction tx2 = new Transaction(params);
-        tx2.addInput(makeAssetInput(tx2, genesisTx, 0));
-        tx2.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
         TransactionOutPoint tx2OutPoint = new TransactionOutPoint(params, 0, tx2);
         track.add(tx2);
 
-        Transaction tx3 = new Transaction(params);
-        tx3.addInput(makeAssetInput(tx3, tx2, 0));
-        tx3.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
+        Transaction tx3 = spend(tx2);
         TransactionOutPoint tx3OutPoint = new TransactionOutPoint(params, 0, tx3);
         track.add(tx3);
 
-        Transaction tx4 = new Transaction(params);
-        tx4.addInput(makeAssetInput(tx4, tx3, 0));
+        Transaction tx4 = spend(tx3);
         tx4.getInput(0).setSequenceNumber(0x7E); // Destroy color
-        tx4.addOutput(ASSET_COIN_ONE, EMPTY_SCRIPT);
         track.add(tx4);
 
         SmartwalletExtension ext = new SmartwalletExtension(params);
@@ -152,6 +148,90 @@ public class SPVColorTrackTest {
         assertEquals(track.getStateHash(), proof2.getStateHash());
     }
 
+    @Test
+    public void stored() throws Exception {
+        File dir = Files.createTempDir();
+        SPVColorTrack track = SPVColorTrack.open(def, dir);
+        SPVColorTrack expected = new SPVColorTrack(def);
+        assertTrue(track.isStored());
+
+        track.add(genesisTx);
+        expected.add(genesisTx);
+        track.add(tx2);
+        expected.add(tx2);
+        assertEquals(expected.getStateHash(), track.getStateHash());
+
+        // The wallet only holds the definition, the track is reopened from its files
+        Protos.ColorTrack proto = new SmartwalletExtension(params).serializeTrack(track);
+        assertEquals(0, proto.getOutputsCount());
+        track.close();
+        track = SPVColorTrack.open(def, dir);
+        SmartwalletExtension.deserializeTrackSPV(params, proto, track);
+        assertEquals(expected.getStateHash(), track.getStateHash());
+        assertTrue(track.contains(tx2));
+        assertEquals(tx2, track.getTxs().get(1));
+
+        track.undo(tx2);
+        expected.undoLast();
+        assertEquals(expected.getStateHash(), track.getStateHash());
+        assertEquals(expected.getOutputs(), track.getOutputs());
+        track.close();
+        track = SPVColorTrack.open(def, dir);
+        assertEquals(expected.getStateHash(), track.getStateHash());
+        track.close();
+    }
+
+    @Test
+    public void rollback() {
+        SPVColorTrack track = new SPVColorTrack(def);
+        SPVColorTrack expected = new SPVColorTrack(def);
+        track.add(genesisTx);
+        expected.add(genesisTx);
+        int checkpoint = track.getCheckpoint();
+
+        track.add(tx2);
+        expected.add(tx2);
+        // A double spend of the genesis output doesn't unspend it when undone
+        Transaction doubleSpend = spend(genesisTx);
+        // Otherwise the same transaction as tx2
+        doubleSpend.addOutput(Coin.ZERO, EMPTY_SCRIPT);
+        track.add(doubleSpend);
+        assertEquals(1, track.getPosition(tx2));
+        track.undo(doubleSpend);
+        assertEquals(expected.getStateHash(), track.getStateHash());
+        assertEquals(expected.getUnspentOutputs(), track.getUnspentOutputs());
+
+        Transaction tx3 = spend(tx2);
+        track.add(tx3);
+        track.rollback(checkpoint);
+        expected.undoLast();
+        assertEquals(expected.getStateHash(), track.getStateHash());
+        assertEquals(expected.getStateCommitment(), track.getStateCommitment());
+        assertEquals(-1, track.getPosition(tx2));
+        assertTrue(track.isUnspent(genesisOutPoint));
+    }
+
+    @Test
+    public void stateCommitment() {
+        SPVColorTrack track = new SPVColorTrack(def);
+        Sha256Hash empty = track.getStateCommitment();
+        track.add(genesisTx);
+        Sha256Hash afterGenesis = track.getStateCommitment();
+        assertFalse(empty.equals(afterGenesis));
+
+        track.add(tx2);
+        // Maintained incrementally, yet the same as for a track built from scratch
+        SPVColorTrack other = new SPVColorTrack(def);
+        other.add(genesisTx);
+        other.add(tx2);
+        assertEquals(other.getStateCommitment(), track.getStateCommitment());
+
+        track.undoLast();
+        assertEquals(afterGenesis, track.getStateCommitment());
+        track.undoLast();
+        assertEquals(empty, track.getStateCommitment());
+    }
+
     @Test
     public void complexAdd() {
         // TODO
@@ -0,0 +1,164 @@
+package org.smartcolors.benchmarks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.Utils;
+import org.openjdk.jmh.annotations.*;
+import org.smartcolors.FixtureHelpers;
+import org.smartcolors.marshal.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Varint and byte string coding, buffer based versus stream based.
+ * <p/>
+ * <p>Uses the valid_varuints.json and valid_bytes.json vectors, which are checked against both
+ * codecs during setup.  Run with:
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/test-classes:target/classes:$(cat cp.txt) org.openjdk.jmh.Main MarshalBenchmark
+ * </pre>
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MarshalBenchmark {
+    private long[] varuints;
+    private byte[] varuintsEncoded;
+    private byte[][] byteStrings;
+    private byte[] byteStringsEncoded;
+    private BufferSerializer reused;
+
+    @Setup
+    public void setUp() throws IOException, SerializationException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<List<String>> items = mapper.readValue(FixtureHelpers.fixture("marshal/valid_varuints.json"),
+                new TypeReference<List<List<String>>>() {
+                });
+        List<Long> values = Lists.newArrayList();
+        BytesSerializer expected = new BytesSerializer();
+        for (List<String> entry : items) {
+            if (entry.size() == 1) continue; // comment
+            long value = Long.parseLong(entry.get(1));
+            check(entry.get(0), value);
+            values.add(value);
+            expected.write(value);
+        }
+        varuints = new long[values.size()];
+        for (int i = 0; i < varuints.length; i++)
+            varuints[i] = values.get(i);
+        varuintsEncoded = expected.getBytes();
+
+        items = mapper.readValue(FixtureHelpers.fixture("marshal/valid_bytes.json"),
+                new TypeReference<List<List<String>>>() {
+                });
+        List<byte[]> strings = Lists.newArrayList();
+        expected = new BytesSerializer();
+        for (List<String> entry : items) {
+            if (entry.size() == 1 || entry.get(2) != null) continue; // comment or fixed length
+            byte[] value = Utils.HEX.decode(entry.get(1));
+            BytesSerializer ser = new BytesSerializer();
+            ser.writeWithLength(value);
+            if (!Arrays.equals(Utils.HEX.decode(entry.get(0)), ser.getBytes()))
+                throw new IllegalStateException("bytes vector " + entry.get(0));
+            strings.add(value);
+            expected.writeWithLength(value);
+        }
+        byteStrings = strings.toArray(new byte[strings.size()][]);
+        byteStringsEncoded = expected.getBytes();
+        reused = new BufferSerializer(byteStringsEncoded.length);
+    }
+
+    private void check(String hex, long value) throws SerializationException {
+        byte[] expected = Utils.HEX.decode(hex);
+        BytesSerializer ser = new BytesSerializer();
+        ser.write(value);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new StreamSerializer(os).write(value);
+        if (!Arrays.equals(expected, ser.getBytes()) || !Arrays.equals(expected, os.toByteArray()))
+            throw new IllegalStateException("varuint vector " + hex);
+        if (new BytesDeserializer(expected).readVarulong() != value
+                || new StreamDeserializer(new ByteArrayInputStream(expected)).readVarulong() != value)
+            throw new IllegalStateException("varuint vector " + hex);
+    }
+
+    @Benchmark
+    public int encodeVaruintsBuffer() throws SerializationException {
+        reused.reset();
+        for (long value : varuints)
+            reused.write(value);
+        return reused.size();
+    }
+
+    @Benchmark
+    public int encodeVaruintsStream() throws SerializationException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        StreamSerializer ser = new StreamSerializer(os);
+        for (long value : varuints)
+            ser.write(value);
+        return os.size();
+    }
+
+    @Benchmark
+    public long decodeVaruintsBuffer() throws SerializationException {
+        BufferDeserializer des = new BufferDeserializer(varuintsEncoded);
+        long sum = 0;
+        for (int i = 0; i < varuints.length; i++)
+            sum += des.readVarulong();
+        return sum;
+    }
+
+    @Benchmark
+    public long decodeVaruintsStream() throws SerializationException {
+        StreamDeserializer des = new StreamDeserializer(new ByteArrayInputStream(varuintsEncoded));
+        long sum = 0;
+        for (int i = 0; i < varuints.length; i++)
+            sum += des.readVarulong();
+        return sum;
+    }
+
+    @Benchmark
+    public int encodeBytesBuffer() throws SerializationException {
+        reused.reset();
+        for (byte[] value : byteStrings)
+            reused.writeWithLength(value);
+        return reused.size();
+    }
+
+    @Benchmark
+    public int encodeBytesStream() throws SerializationException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        StreamSerializer ser = new StreamSerializer(os);
+        for (byte[] value : byteStrings)
+            ser.writeWithLength(value);
+        return os.size();
+    }
+
+    @Benchmark
+    public int decodeBytesBuffer() throws SerializationException {
+        BufferDeserializer des = new BufferDeserializer(byteStringsEncoded);
+        int total = 0;
+        for (int i = 0; i < byteStrings.length; i++)
+            total += des.readBytes().length;
+        return total;
+    }
+
+    @Benchmark
+    public int decodeBytesStream() throws SerializationException {
+        StreamDeserializer des = new StreamDeserializer(new ByteArrayInputStream(byteStringsEncoded));
+        int total = 0;
+        for (int i = 0; i < byteStrings.length; i++)
+            total += des.readBytes().length;
+        return total;
+    }
+}
@@ -0,0 +1,75 @@
+package org.smartcolors.benchmarks;
+
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+import org.openjdk.jmh.annotations.*;
+import org.smartcolors.core.GenesisOutPointsMerbinnerTree;
+import org.smartcolors.marshal.MemoizedSerializer;
+import org.smartcolors.marshal.SerializationException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building, hashing and serialization of genesis outpoint trees.
+ * <p/>
+ * <p>Only uses the public tree API, so the same benchmark can be run against a tree that hashes
+ * keys at every depth by checking out the revision before leaves kept their key hash, and the
+ * results compared.  Run with:
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/test-classes:target/classes:$(cat cp.txt) org.openjdk.jmh.Main MerbinnerTreeBenchmark
+ * </pre>
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MerbinnerTreeBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private NetworkParameters params;
+    private Map<TransactionOutPoint, Long> nodes;
+    private GenesisOutPointsMerbinnerTree tree;
+
+    @Setup
+    public void setUp() {
+        params = NetworkParameters.fromID(NetworkParameters.ID_TESTNET);
+        nodes = Maps.newHashMap();
+        for (int i = 0; i < size; i++) {
+            byte[] seed = new byte[4];
+            Utils.uint32ToByteArrayBE(i, seed, 0);
+            nodes.put(new TransactionOutPoint(params, i % 4, Sha256Hash.of(seed)), 1L);
+        }
+        tree = new GenesisOutPointsMerbinnerTree(params, nodes);
+        tree.getHash();
+    }
+
+    @Benchmark
+    public Object buildFromEntries() {
+        return new GenesisOutPointsMerbinnerTree(params, nodes).getHash();
+    }
+
+    @Benchmark
+    public Object buildByPut() {
+        GenesisOutPointsMerbinnerTree built = new GenesisOutPointsMerbinnerTree(params);
+        for (Map.Entry<TransactionOutPoint, Long> entry : nodes.entrySet())
+            built.put(entry.getKey(), entry.getValue());
+        return built.getHash();
+    }
+
+    @Benchmark
+    public Object serialize() throws SerializationException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new MemoizedSerializer(os).write(tree);
+        return os;
+    }
+}